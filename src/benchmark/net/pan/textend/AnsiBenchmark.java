@@ -0,0 +1,92 @@
+package net.pan.textend;
+
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures conversion of received lines into text and attribute runs by
+ * {@link AnsiParser} and {@link TextAttributes}, as done for each line
+ * of output.  Results are per line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AnsiBenchmark
+{
+    private static final int LINE_COUNT = 10000;
+
+    private String[] lines;
+
+    private AnsiParser parser;
+
+    private TextAttributes attributes;
+
+    @Setup
+    public void setUp()
+    {
+        List<String> corpus = new TalkerCorpus(LINE_COUNT, 2).getLines();
+        lines = corpus.toArray(new String[0]);
+        parser = new AnsiParser();
+        attributes = new TextAttributes();
+    }
+
+    /**
+     * Parses escape sequences and collects text.
+     *
+     * @return total number of runs, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int parse()
+    {
+        int runs = 0;
+        for (String line : lines)
+        {
+            attributes.clearText();
+            parser.parse(line, attributes);
+            runs += attributes.getRunCount();
+        }
+        return runs;
+    }
+
+    /**
+     * Parses escape sequences, then produces the CSS style of each run,
+     * as the output document requires.
+     *
+     * @return total length of styles, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int parseAndStyle()
+    {
+        int length = 0;
+        for (String line : lines)
+        {
+            attributes.clearText();
+            parser.parse(line, attributes);
+            int runCount = attributes.getRunCount();
+            for (int run = 0; run < runCount; run++)
+            {
+                boolean link = (attributes.getRunLink(run) != null);
+                length += attributes.toStyle(run, link).length();
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,328 @@
+package net.pan.textend;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.ThreadFactory;
+
+import java.util.concurrent.locks.LockSupport;
+
+import java.util.function.LongConsumer;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Local stand-in for a talker, which sends a {@link ReplaySession} to
+ * each client that connects, with the session's original timing scaled
+ * by a speed multiplier.  Anything the client sends, such as responses
+ * to option negotiation, is read and discarded.
+ * <p>
+ * Run on its own, it serves until killed, so the real client can be
+ * pointed at it.  With {@code --record host:port}, it instead relays a
+ * single client to a real talker, and writes everything the talker sends
+ * to a timed capture file.
+ */
+class FakeTalker
+implements Closeable
+{
+    private static final Logger logger =
+        Logger.getLogger(FakeTalker.class.getName());
+
+    private static final int DEFAULT_PORT = 2323;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String USAGE =
+        "Usage: FakeTalker [--port n] [--speed x] [--rate lines/s]"
+            + " [--lines n] [--seed n] [capture]\n"
+        + "       FakeTalker --record host:port [--port n] capture";
+
+    private final ReplaySession session;
+
+    private final double speed;
+
+    private final LongConsumer newlineListener;
+
+    private final ServerSocket serverSocket;
+
+    private final ThreadFactory threadFactory;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a fake talker listening on the loopback interface.
+     *
+     * @param session data to send to each client
+     * @param speed multiplier applied to session's timing;  zero or less
+     *              sends data as fast as the client reads it
+     * @param port port on which to listen, or zero for any free port
+     * @param newlineListener receives {@code System.nanoTime()} just
+     *                        before each newline is sent, or {@code null}
+     *
+     * @throws IOException if port cannot be bound
+     */
+    FakeTalker(ReplaySession session,
+               double speed,
+               int port,
+               LongConsumer newlineListener)
+    throws IOException
+    {
+        this.session = Objects.requireNonNull(session,
+            "Session cannot be null");
+        this.speed = speed;
+        this.newlineListener = newlineListener;
+
+        this.serverSocket =
+            new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.threadFactory =
+            ThreadMode.current().newThreadFactory("Fake talker");
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Begins accepting clients in a background thread.
+     */
+    void start()
+    {
+        threadFactory.newThread(this::acceptClients).start();
+    }
+
+    private void acceptClients()
+    {
+        while (!closed)
+        {
+            Socket socket;
+            try
+            {
+                socket = serverSocket.accept();
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                {
+                    logger.log(Level.WARNING, "Cannot accept client", e);
+                }
+                return;
+            }
+
+            threadFactory.newThread(() -> serve(socket)).start();
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        try (Socket s = socket)
+        {
+            s.setTcpNoDelay(true);
+            send(s.getOutputStream());
+
+            // Closing with unread input would reset the connection,
+            // and the client could lose data it has not yet read.
+            s.shutdownOutput();
+            discard(s.getInputStream());
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.INFO, "Replay to " + socket + " ended", e);
+        }
+    }
+
+    private void send(OutputStream socketOut)
+    throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(socketOut, BUFFER_SIZE);
+
+        long start = System.nanoTime();
+        for (ReplaySession.Chunk chunk : session.getChunks())
+        {
+            if (speed > 0)
+            {
+                long due = start + (long) (chunk.time / speed);
+                if (due - System.nanoTime() > 0)
+                {
+                    out.flush();
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                    {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            }
+
+            if (newlineListener != null)
+            {
+                long now = System.nanoTime();
+                for (int i = ReplaySession.countNewlines(chunk.data);
+                     i > 0; i--)
+                {
+                    newlineListener.accept(now);
+                }
+            }
+            out.write(chunk.data);
+        }
+        out.flush();
+    }
+
+    private static void discard(InputStream in)
+    throws IOException
+    {
+        byte[] buffer = new byte[512];
+        while (in.read(buffer) >= 0)
+        {
+            // Ignore client's input.
+        }
+    }
+
+    /**
+     * Stops accepting clients.  Sessions already in progress continue.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+    }
+
+    /**
+     * Relays one client to a talker, recording the talker's output.
+     *
+     * @param talker host and port of talker, separated by a colon
+     * @param port local port on which to wait for client
+     * @param file timed capture file to write
+     *
+     * @throws IOException if a connection or the file fails
+     */
+    private static void record(String talker,
+                               int port,
+                               Path file)
+    throws IOException
+    {
+        int colon = talker.lastIndexOf(':');
+        if (colon < 0)
+        {
+            throw new IllegalArgumentException(
+                "Talker must be given as host:port: " + talker);
+        }
+        String host = talker.substring(0, colon);
+        int talkerPort = Integer.parseInt(talker.substring(colon + 1));
+
+        ThreadFactory threadFactory =
+            ThreadMode.current().newThreadFactory("Fake talker relay");
+
+        try (ServerSocket server =
+                new ServerSocket(port, 1, InetAddress.getLoopbackAddress()))
+        {
+            System.out.printf("Connect client to localhost:%d%n",
+                server.getLocalPort());
+
+            try (Socket client = server.accept();
+                 Socket upstream = new Socket(host, talkerPort);
+                 DataOutputStream capture = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file))))
+            {
+                client.setTcpNoDelay(true);
+                threadFactory.newThread(() -> {
+                    try
+                    {
+                        client.getInputStream().transferTo(
+                            upstream.getOutputStream());
+                        upstream.shutdownOutput();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.log(Level.FINE, "Client relay ended", e);
+                    }
+                }).start();
+
+                ReplaySession.writeHeader(capture);
+
+                InputStream in = upstream.getInputStream();
+                OutputStream out = client.getOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long start = System.nanoTime();
+                long total = 0;
+                int count;
+                while ((count = in.read(buffer)) >= 0)
+                {
+                    ReplaySession.writeChunk(capture,
+                        System.nanoTime() - start, buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    total += count;
+                }
+
+                System.out.printf("Recorded %,d bytes to %s%n", total, file);
+            }
+        }
+    }
+
+    /**
+     * Serves a session, or records one.
+     *
+     * @param args command-line arguments;  see {@link #USAGE}
+     *
+     * @throws IOException if port cannot be bound, or capture file
+     *                     cannot be read or written
+     */
+    public static void main(String[] args)
+    throws IOException
+    {
+        List<String> argList = ThreadMode.parseThreadModeOption(
+            new ArrayList<>(Arrays.asList(args)));
+
+        ReplayOptions options = new ReplayOptions();
+        options.port = DEFAULT_PORT;
+        options.rate = 20;
+        try
+        {
+            options.parse(argList);
+            if (options.record != null && options.capture == null)
+            {
+                throw new IllegalArgumentException(
+                    "Capture file needed for recording.");
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        if (options.record != null)
+        {
+            record(options.record, options.port, options.capture);
+            return;
+        }
+
+        ReplaySession session = options.createSession();
+        FakeTalker talker =
+            new FakeTalker(session, options.speed, options.port, null);
+        System.out.printf("Replaying %,d bytes in %,d chunks"
+            + " on localhost:%d%n",
+            session.getByteCount(), session.getChunks().size(),
+            talker.getPort());
+        talker.acceptClients();
+    }
+}
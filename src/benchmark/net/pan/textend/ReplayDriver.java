@@ -0,0 +1,468 @@
+package net.pan.textend;
+
+import java.io.IOException;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import javafx.collections.FXCollections;
+
+import javafx.scene.paint.Color;
+
+/**
+ * Headless load test of the receive pipeline.  Starts a
+ * {@link FakeTalker} on the loopback interface, connects to it with a
+ * {@link TelnetConnection}, and passes everything received through the
+ * same steps {@link Chat} applies to output, other than building the
+ * document:  codepoint escapes, ANSI parsing, receive triggers, styles
+ * and the search index.
+ * <p>
+ * Reports line throughput, latency from the moment the fake talker
+ * sends each newline until the pipeline has processed it, and the
+ * allocation rate of the client's threads.  Everything runs offline.
+ */
+class ReplayDriver
+{
+    private static final String USAGE =
+        "Usage: ReplayDriver [--threads platform|virtual] [--speed x]"
+            + " [--rate lines/s] [--lines n] [--seed n] [--triggers n]"
+            + " [--warmup n] [capture]";
+
+    private static final String[] WORDS = {
+        "coffee", "Alice", "brb", "hello", "talker", "episode", "weekend",
+        "music", "thanks", "night", "Bob", "Grace", "Trent", "server",
+    };
+
+    private final ReplaySession session;
+
+    private final double speed;
+
+    private final TriggerMatcher receiveTriggers;
+
+    /**
+     * Triggers which color matched text.  {@link Action} cannot be created
+     * without the JavaFX toolkit, so the action is applied here directly.
+     */
+    private final Set<Trigger> coloringTriggers =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final UnicodeEscapeDecoder unicodeDecoder =
+        new UnicodeEscapeDecoder("{", "}");
+
+    private final AnsiParser ansiParser = new AnsiParser();
+
+    private final TextAttributes textAttributes = new TextAttributes();
+
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    private final StringBuilder searchLine = new StringBuilder();
+
+    private final Queue<String> pendingOutput = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean outputBatchScheduled = new AtomicBoolean();
+
+    private final ExecutorService pipeline;
+
+    /** Time each newline was sent, in order, written by fake talker. */
+    private final AtomicLongArray sendTimes;
+
+    private final AtomicInteger sentCount = new AtomicInteger();
+
+    /** Nanoseconds from sending to processing of each newline. */
+    private final long[] latencies;
+
+    private int receivedCount;
+
+    /** Keeps pipeline's results reachable, so no work is skipped. */
+    private long checksum;
+
+    private ReplayDriver(ReplaySession session,
+                         double speed,
+                         int triggerCount)
+    {
+        this.session = session;
+        this.speed = speed;
+        List<Trigger> triggers = createTriggers(triggerCount);
+        for (int i = 0; i < triggers.size(); i += 3)
+        {
+            coloringTriggers.add(triggers.get(i));
+        }
+        this.receiveTriggers = new TriggerMatcher(
+            FXCollections.observableArrayList(triggers));
+        this.pipeline = Executors.newSingleThreadExecutor(
+            ThreadMode.current().newThreadFactory("Replay pipeline"));
+
+        int newlines = session.getNewlineCount();
+        this.sendTimes = new AtomicLongArray(newlines);
+        this.latencies = new long[newlines];
+    }
+
+    /**
+     * Creates triggers resembling a user's real set:  mostly words, some
+     * globs and regular expressions.
+     */
+    private static List<Trigger> createTriggers(int count)
+    {
+        List<Trigger> triggers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String word = WORDS[i % WORDS.length]
+                + (i < WORDS.length ? "" : Integer.toString(i));
+
+            Trigger trigger;
+            switch (i % 5)
+            {
+                case 0:
+                    trigger = new Trigger("glob" + i,
+                        PatternType.GLOB_CASELESS, "*" + word + "*says*");
+                    break;
+                case 1:
+                    trigger = new Trigger("regex" + i,
+                        PatternType.REGEX, "^(\\w+) shouts: .*\\b"
+                            + Pattern.quote(word) + "\\b");
+                    break;
+                default:
+                    trigger = new Trigger("text" + i,
+                        PatternType.TEXT_CASELESS, word);
+                    break;
+            }
+
+            triggers.add(trigger);
+        }
+        return triggers;
+    }
+
+    /**
+     * Replays the session once.
+     *
+     * @return measurements
+     *
+     * @throws IOException if connection fails
+     */
+    private Result run()
+    throws IOException
+    {
+        AllocationCounter allocation = new AllocationCounter();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+
+        long start = System.nanoTime();
+        try (FakeTalker talker = new FakeTalker(session, speed, 0,
+                time -> sendTimes.set(sentCount.getAndIncrement(), time)))
+        {
+            talker.start();
+
+            TelnetConnection connection = TelnetConnection.create(
+                "localhost", talker.getPort(), StandardCharsets.US_ASCII,
+                text -> appendOutputLater(text.toString()));
+            try
+            {
+                connection.start().join();
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+
+        // Pipeline thread must still be alive when its allocation is read.
+        CompletableFuture.runAsync(() -> { }, pipeline).join();
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocation.allocated();
+
+        pipeline.shutdown();
+        searchIndex.dispose();
+
+        Result result = new Result();
+        result.elapsed = elapsed;
+        result.lines = receivedCount;
+        result.bytes = session.getByteCount();
+        result.allocated = allocated;
+        result.gcCount = gcCount() - gcCount;
+        result.gcTime = gcTime() - gcTime;
+        result.latencies = Arrays.copyOf(latencies, receivedCount);
+        Arrays.sort(result.latencies);
+        return result;
+    }
+
+    /**
+     * Hands received text to the pipeline thread in batches, as
+     * {@link Chat} hands it to the JavaFX application thread.
+     */
+    private void appendOutputLater(String chars)
+    {
+        pendingOutput.add(chars);
+        if (outputBatchScheduled.compareAndSet(false, true))
+        {
+            pipeline.execute(this::appendPendingOutput);
+        }
+    }
+
+    private void appendPendingOutput()
+    {
+        outputBatchScheduled.set(false);
+
+        String chars;
+        while ((chars = pendingOutput.poll()) != null)
+        {
+            appendOutput(chars);
+
+            long now = System.nanoTime();
+            for (int i = chars.indexOf('\n'); i >= 0;
+                 i = chars.indexOf('\n', i + 1))
+            {
+                latencies[receivedCount] = now - sendTimes.get(receivedCount);
+                receivedCount++;
+            }
+        }
+    }
+
+    /**
+     * Performs the work of {@code Chat.appendOutput}, without a document.
+     */
+    private void appendOutput(String chars)
+    {
+        String[] lines = chars.split("\r?\n", -1);
+        int lineCount = lines.length;
+        for (int i = 0; i < lineCount; i++)
+        {
+            if (i > 0 && lineCount > 1)
+            {
+                searchIndex.addLine(searchLine.toString());
+                searchLine.setLength(0);
+            }
+
+            String line = unicodeDecoder.decode(lines[i], i < lineCount - 1);
+
+            textAttributes.clearText();
+            ansiParser.parse(line, textAttributes);
+            line = textAttributes.getText();
+
+            for (TriggerMatcher.Result match : receiveTriggers.match(line))
+            {
+                if (!coloringTriggers.contains(match.trigger))
+                {
+                    continue;
+                }
+                for (MatchResult matcher : match.matches)
+                {
+                    textAttributes.setColors(Color.ORANGE, null,
+                        matcher.start(), matcher.end());
+                }
+            }
+
+            searchLine.append(line.replace('\r', ' '));
+
+            int runCount = textAttributes.getRunCount();
+            for (int run = 0; run < runCount; run++)
+            {
+                boolean link = (textAttributes.getRunLink(run) != null);
+                checksum += textAttributes.toStyle(run, link).length();
+            }
+        }
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean bean :
+            ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime()
+    {
+        long time = 0;
+        for (GarbageCollectorMXBean bean :
+            ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Measures bytes allocated by client threads since creation.  Fake
+     * talker threads are excluded.  Threads which end before
+     * {@link #allocated()} is called, and virtual threads, are not counted.
+     */
+    private static class AllocationCounter
+    {
+        private final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+
+        private final Map<Long, Long> initial = new HashMap<>();
+
+        AllocationCounter()
+        {
+            long[] ids = bean.getAllThreadIds();
+            long[] bytes = bean.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++)
+            {
+                initial.put(ids[i], bytes[i]);
+            }
+        }
+
+        /**
+         * @return bytes allocated, or -1 if not supported by this JVM
+         */
+        long allocated()
+        {
+            if (!bean.isThreadAllocatedMemorySupported() ||
+                !bean.isThreadAllocatedMemoryEnabled())
+            {
+                return -1;
+            }
+
+            long[] ids = bean.getAllThreadIds();
+            long[] bytes = bean.getThreadAllocatedBytes(ids);
+            ThreadInfo[] infos = bean.getThreadInfo(ids);
+
+            long total = 0;
+            for (int i = 0; i < ids.length; i++)
+            {
+                if (bytes[i] < 0 || infos[i] == null ||
+                    infos[i].getThreadName().startsWith("Fake talker"))
+                {
+                    continue;
+                }
+                total += bytes[i] - initial.getOrDefault(ids[i], 0L);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Measurements from one replay.
+     */
+    private static class Result
+    {
+        long elapsed;
+
+        int lines;
+
+        long bytes;
+
+        long allocated;
+
+        long gcCount;
+
+        long gcTime;
+
+        /** Sorted latencies, in nanoseconds. */
+        long[] latencies;
+
+        private double percentile(double p)
+        {
+            if (latencies.length == 0)
+            {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            index = Math.max(0, Math.min(index, latencies.length - 1));
+            return latencies[index] / 1e6;
+        }
+
+        void print(String title)
+        {
+            double seconds = elapsed / 1e9;
+            System.out.printf("%s:%n", title);
+            System.out.printf("  %,d lines, %,d bytes in %.3f s%n",
+                lines, bytes, seconds);
+            System.out.printf("  %,.0f lines/s, %.2f MB/s%n",
+                lines / seconds, bytes / seconds / 1e6);
+            System.out.printf("  latency ms: p50 %.3f  p90 %.3f  p99 %.3f"
+                + "  p99.9 %.3f  max %.3f%n",
+                percentile(50), percentile(90), percentile(99),
+                percentile(99.9), percentile(100));
+            if (allocated >= 0)
+            {
+                System.out.printf("  allocation: %.1f MB/s,"
+                    + " %,d bytes/line%n",
+                    allocated / seconds / 1e6,
+                    lines > 0 ? allocated / lines : 0);
+            }
+            System.out.printf("  GC: %,d collections, %,d ms%n",
+                gcCount, gcTime);
+        }
+    }
+
+    /**
+     * Runs warm-up replays, then a measured replay, and prints results.
+     *
+     * @param args command-line arguments;  see {@link #USAGE}
+     *
+     * @throws IOException if capture cannot be read or connection fails
+     */
+    public static void main(String[] args)
+    throws IOException
+    {
+        List<String> argList = ThreadMode.parseThreadModeOption(
+            new ArrayList<>(Arrays.asList(args)));
+
+        ReplayOptions options = new ReplayOptions();
+        options.speed = 0;
+        try
+        {
+            options.parse(argList);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        ReplaySession session = options.createSession();
+        System.out.printf("Session: %,d bytes, %,d chunks, %,d lines;"
+            + " %d triggers; %s threads%n",
+            session.getByteCount(), session.getChunks().size(),
+            session.getNewlineCount(), options.triggers,
+            ThreadMode.current());
+
+        for (int i = 1; i <= options.warmup; i++)
+        {
+            new ReplayDriver(session, options.speed, options.triggers).run()
+                .print("Warm-up " + i);
+        }
+
+        Result result =
+            new ReplayDriver(session, options.speed, options.triggers).run();
+        result.print("Measured");
+        if (result.lines != session.getNewlineCount())
+        {
+            System.err.printf("Expected %,d lines, but received %,d.%n",
+                session.getNewlineCount(), result.lines);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.pan.textend;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Command-line options shared by {@link FakeTalker} and
+ * {@link ReplayDriver}.  Each program sets its own defaults before
+ * calling {@link #parse(List)}.
+ */
+class ReplayOptions
+{
+    /** Local port on which fake talker listens;  zero for any port. */
+    int port;
+
+    /**
+     * Multiplier applied to the timing of a session;  zero or less sends
+     * everything as fast as possible.
+     */
+    double speed = 1;
+
+    /** Lines per second for a generated corpus or a raw capture. */
+    double rate;
+
+    /** Number of lines in generated corpus. */
+    int lines = 100_000;
+
+    /** Seed of generated corpus. */
+    long seed = 1;
+
+    /** Number of receive triggers applied by headless pipeline. */
+    int triggers = 20;
+
+    /** Number of unmeasured replays run by headless pipeline first. */
+    int warmup = 1;
+
+    /** Talker to relay and record, as host:port, or {@code null}. */
+    String record;
+
+    /** Capture file, or {@code null} to use a generated corpus. */
+    Path capture;
+
+    /**
+     * Sets options from program arguments.
+     *
+     * @param args program arguments, with {@code --threads} already removed
+     *
+     * @throws IllegalArgumentException if an argument is not recognized
+     *                                  or a value is not valid
+     */
+    void parse(List<String> args)
+    {
+        Iterator<String> i = args.iterator();
+        while (i.hasNext())
+        {
+            String arg = i.next();
+            if (!arg.startsWith("-"))
+            {
+                if (capture != null)
+                {
+                    throw new IllegalArgumentException(
+                        "Only one capture file allowed: " + arg);
+                }
+                capture = Paths.get(arg);
+                continue;
+            }
+
+            if (!i.hasNext())
+            {
+                throw new IllegalArgumentException(
+                    "Missing value for " + arg);
+            }
+            String value = i.next();
+
+            try
+            {
+                switch (arg)
+                {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--speed":
+                        speed = Double.parseDouble(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--lines":
+                        lines = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--triggers":
+                        triggers = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "--record":
+                        record = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                            "Unknown option: " + arg);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid value for " + arg + ": " + value, e);
+            }
+        }
+    }
+
+    /**
+     * Creates the session described by these options.
+     *
+     * @return session from capture file, or from a generated corpus
+     *
+     * @throws IOException if capture file cannot be read
+     */
+    ReplaySession createSession()
+    throws IOException
+    {
+        if (capture != null)
+        {
+            return ReplaySession.read(capture, rate);
+        }
+        return ReplaySession.fromCorpus(new TalkerCorpus(lines, seed), rate);
+    }
+}
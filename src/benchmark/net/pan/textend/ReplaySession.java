@@ -0,0 +1,234 @@
+package net.pan.textend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telnet data sent by a talker during one session, divided into chunks,
+ * each with the time at which it is to be sent.  A session can come
+ * from a {@link TalkerCorpus}, from a raw capture of a talker's output,
+ * or from a timed capture written by {@link FakeTalker}'s record mode.
+ * <p>
+ * A timed capture starts with {@link #MAGIC}, followed by one record
+ * per chunk:  microseconds since start of session (a long), length of
+ * data (an int), and the data itself.  Any other file is taken to be raw
+ * telnet data, and is divided into lines sent at a fixed rate.
+ */
+class ReplaySession
+{
+    /** Start of a timed capture file. */
+    static final byte[] MAGIC =
+        "Textend replay 1\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One write by the talker.
+     */
+    static final class Chunk
+    {
+        /** Nanoseconds after start of session at which data is sent. */
+        final long time;
+
+        final byte[] data;
+
+        Chunk(long time,
+              byte[] data)
+        {
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private final List<Chunk> chunks;
+
+    private final long byteCount;
+
+    private final int newlineCount;
+
+    private ReplaySession(List<Chunk> chunks)
+    {
+        this.chunks = Collections.unmodifiableList(chunks);
+
+        long bytes = 0;
+        int newlines = 0;
+        for (Chunk chunk : chunks)
+        {
+            bytes += chunk.data.length;
+            newlines += countNewlines(chunk.data);
+        }
+        this.byteCount = bytes;
+        this.newlineCount = newlines;
+    }
+
+    /**
+     * Creates a session which sends a generated corpus.
+     *
+     * @param corpus corpus to send
+     * @param linesPerSecond rate at which lines are sent, or zero to send
+     *                       all lines at once
+     *
+     * @return new session
+     */
+    static ReplaySession fromCorpus(TalkerCorpus corpus,
+                                    double linesPerSecond)
+    {
+        return fromRaw(corpus.getTelnetStream(), linesPerSecond);
+    }
+
+    /**
+     * Reads a session from a timed or raw capture file.
+     *
+     * @param file capture to read
+     * @param linesPerSecond rate at which lines of a raw capture are sent,
+     *                       or zero to send all lines at once;  ignored
+     *                       for timed captures
+     *
+     * @return new session
+     *
+     * @throws IOException if file cannot be read, or is a truncated
+     *                     timed capture
+     */
+    static ReplaySession read(Path file,
+                              double linesPerSecond)
+    throws IOException
+    {
+        Objects.requireNonNull(file, "File cannot be null");
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file))))
+        {
+            in.mark(MAGIC.length);
+            byte[] start = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(start, MAGIC))
+            {
+                in.reset();
+                return fromRaw(in.readAllBytes(), linesPerSecond);
+            }
+
+            List<Chunk> chunks = new ArrayList<>();
+            while (true)
+            {
+                long micros;
+                try
+                {
+                    micros = in.readLong();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                chunks.add(
+                    new Chunk(TimeUnit.MICROSECONDS.toNanos(micros), data));
+            }
+
+            return new ReplaySession(chunks);
+        }
+    }
+
+    /**
+     * Divides raw telnet data into lines, each in its own chunk.
+     */
+    private static ReplaySession fromRaw(byte[] data,
+                                         double linesPerSecond)
+    {
+        List<Chunk> chunks = new ArrayList<>();
+        double interval = (linesPerSecond > 0 ?
+            TimeUnit.SECONDS.toNanos(1) / linesPerSecond : 0);
+
+        int start = 0;
+        for (int i = 0; i < data.length; i++)
+        {
+            if (data[i] == '\n' || i == data.length - 1)
+            {
+                long time = (long) (chunks.size() * interval);
+                chunks.add(
+                    new Chunk(time, Arrays.copyOfRange(data, start, i + 1)));
+                start = i + 1;
+            }
+        }
+
+        return new ReplaySession(chunks);
+    }
+
+    /**
+     * Writes the start of a timed capture.
+     *
+     * @param out stream to which capture is written
+     *
+     * @throws IOException if writing fails
+     */
+    static void writeHeader(DataOutputStream out)
+    throws IOException
+    {
+        out.write(MAGIC);
+    }
+
+    /**
+     * Writes one chunk of a timed capture.
+     *
+     * @param out stream to which capture is written
+     * @param time nanoseconds since start of session
+     * @param data buffer containing data
+     * @param offset position in buffer of first byte
+     * @param length number of bytes
+     *
+     * @throws IOException if writing fails
+     */
+    static void writeChunk(DataOutputStream out,
+                           long time,
+                           byte[] data,
+                           int offset,
+                           int length)
+    throws IOException
+    {
+        out.writeLong(TimeUnit.NANOSECONDS.toMicros(time));
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    static int countNewlines(byte[] data)
+    {
+        int count = 0;
+        for (byte b : data)
+        {
+            if (b == '\n')
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    List<Chunk> getChunks()
+    {
+        return chunks;
+    }
+
+    long getByteCount()
+    {
+        return byteCount;
+    }
+
+    int getNewlineCount()
+    {
+        return newlineCount;
+    }
+}
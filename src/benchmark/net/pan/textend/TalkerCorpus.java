@@ -0,0 +1,230 @@
+package net.pan.textend;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates repeatable output resembling a busy talker:  says, emotes and
+ * shouts from many users, ANSI colors (including 256-color and 24-bit
+ * sequences), codepoint escapes, URLs, who-list rows, and prompts.
+ * The same seed always produces the same corpus, so benchmark results
+ * can be compared across changes.
+ */
+class TalkerCorpus
+{
+    private static final String[] NAMES = {
+        "Alice", "Bob", "Carol", "Dave", "Erin", "Frank", "Grace", "Heidi",
+        "Ivan", "Judy", "Mallory", "Niaj", "Olivia", "Peggy", "Rupert",
+        "Sybil", "Trent", "Victor", "Walter", "Zed",
+    };
+
+    private static final String[] WORDS = {
+        "hello", "everyone", "the", "a", "is", "was", "going", "to", "lol",
+        "anyone", "seen", "that", "new", "episode", "coffee", "tea", "time",
+        "tonight", "weekend", "work", "home", "cat", "dog", "really", "nice",
+        "what", "why", "how", "yes", "no", "maybe", "brb", "back", "again",
+        "thanks", "welcome", "talker", "server", "down", "up", "music",
+        "game", "playing", "reading", "about", "later", "night", "morning",
+    };
+
+    private static final String[] EMOTES = {
+        "grins.", "waves.", "laughs.", "nods.", "sighs.", "yawns.",
+        "hugs everyone.", "pokes Bob.", "dances around the room.",
+    };
+
+    private static final String[] ESCAPES = {
+        "{U+e9}", "{U+263a}", "{U+2665}", "{U+221e}", "{U+1f600}",
+        "{U+00fc}", "{U+2014}",
+    };
+
+    private static final String[] ROOMS = {
+        "Lounge", "Library", "Garden", "Pub", "Attic", "Beach",
+    };
+
+    private static final int IAC = 255;
+    private static final int GA = 249;
+    private static final int EOR = 239;
+    private static final int NOP = 241;
+    private static final int WILL = 251;
+    private static final int DO = 253;
+    private static final int SB = 250;
+    private static final int SE = 240;
+    private static final int ECHO = 1;
+    private static final int SGA = 3;
+    private static final int TTYPE = 24;
+
+    private final List<String> lines;
+
+    private final byte[] telnetStream;
+
+    /**
+     * Generates a corpus.
+     *
+     * @param lineCount number of lines to generate
+     * @param seed random seed
+     */
+    TalkerCorpus(int lineCount,
+                 long seed)
+    {
+        Random random = new Random(seed);
+
+        List<String> generated = new ArrayList<>(lineCount);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        writeCommand(stream, WILL, ECHO);
+        writeCommand(stream, WILL, SGA);
+        writeCommand(stream, DO, TTYPE);
+        stream.write(IAC);
+        stream.write(SB);
+        stream.write(TTYPE);
+        stream.write(1);
+        stream.write(IAC);
+        stream.write(SE);
+
+        for (int i = 0; i < lineCount; i++)
+        {
+            int kind = random.nextInt(100);
+            if (kind < 5)
+            {
+                String prompt = "<" + NAMES[random.nextInt(NAMES.length)]
+                    + " " + random.nextInt(1440) + "m> ";
+                generated.add(prompt);
+                writeText(stream, prompt);
+                stream.write(IAC);
+                stream.write(random.nextBoolean() ? GA : EOR);
+                continue;
+            }
+
+            String line = generateLine(random, kind);
+            generated.add(line);
+            writeText(stream, line);
+            writeText(stream, "\r\n");
+
+            if (random.nextInt(200) == 0)
+            {
+                stream.write(IAC);
+                stream.write(NOP);
+            }
+        }
+
+        this.lines = Collections.unmodifiableList(generated);
+        this.telnetStream = stream.toByteArray();
+    }
+
+    private static String generateLine(Random random,
+                                       int kind)
+    {
+        String name = NAMES[random.nextInt(NAMES.length)];
+        StringBuilder line = new StringBuilder();
+
+        if (kind < 40)
+        {
+            line.append(name).append(" says: ");
+            appendWords(random, line, 3 + random.nextInt(12));
+        }
+        else if (kind < 55)
+        {
+            line.append(name).append(' ')
+                .append(EMOTES[random.nextInt(EMOTES.length)]);
+        }
+        else if (kind < 70)
+        {
+            line.append("\033[1;3").append(1 + random.nextInt(7))
+                .append('m').append(name).append("\033[0m shouts: ")
+                .append("\033[3").append(1 + random.nextInt(7)).append('m');
+            appendWords(random, line, 2 + random.nextInt(8));
+            line.append("\033[0m");
+        }
+        else if (kind < 77)
+        {
+            line.append("\033[38;5;").append(random.nextInt(256))
+                .append('m').append(name).append("\033[0m tells you: ")
+                .append("\033[38;2;").append(random.nextInt(256))
+                .append(';').append(random.nextInt(256))
+                .append(';').append(random.nextInt(256)).append('m');
+            appendWords(random, line, 2 + random.nextInt(8));
+            line.append("\033[0m");
+        }
+        else if (kind < 85)
+        {
+            line.append(name).append(" says: ");
+            appendWords(random, line, 1 + random.nextInt(4));
+            line.append(' ').append(ESCAPES[random.nextInt(ESCAPES.length)])
+                .append(' ');
+            appendWords(random, line, 1 + random.nextInt(4));
+        }
+        else if (kind < 90)
+        {
+            line.append(name).append(" says: look at https://example.com/")
+                .append(WORDS[random.nextInt(WORDS.length)])
+                .append("?id=").append(random.nextInt(100000));
+        }
+        else
+        {
+            line.append(String.format("  %-12s Idle %3dm   Room: %s",
+                name, random.nextInt(120),
+                ROOMS[random.nextInt(ROOMS.length)]));
+        }
+
+        return line.toString();
+    }
+
+    private static void appendWords(Random random,
+                                    StringBuilder line,
+                                    int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0)
+            {
+                line.append(' ');
+            }
+            line.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    private static void writeText(ByteArrayOutputStream stream,
+                                  String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        stream.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeCommand(ByteArrayOutputStream stream,
+                                     int command,
+                                     int option)
+    {
+        stream.write(IAC);
+        stream.write(command);
+        stream.write(option);
+    }
+
+    /**
+     * Returns the corpus as lines of text, as a talker would send them,
+     * without line terminators.  Prompts are included as separate lines.
+     *
+     * @return unmodifiable list of lines
+     */
+    List<String> getLines()
+    {
+        return lines;
+    }
+
+    /**
+     * Returns the corpus as raw telnet data:  US-ASCII lines ending with
+     * CR LF, prompts followed by IAC GA or IAC EOR, and occasional option
+     * negotiation.
+     *
+     * @return telnet byte stream;  caller must not modify it
+     */
+    byte[] getTelnetStream()
+    {
+        return telnetStream;
+    }
+}
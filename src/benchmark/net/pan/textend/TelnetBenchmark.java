@@ -0,0 +1,237 @@
+package net.pan.textend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TelnetConnection}'s receive path:  IAC handling,
+ * line splitting, buffer compaction and decoding, from raw socket data
+ * to lines delivered to the read listener.
+ * <p>
+ * {@link #receive receive} replays a {@link TalkerCorpus} through a blocking
+ * socket in reads of a given size, so small reads exercise compaction of
+ * partial lines.  {@link #receiveMultiplexed receiveMultiplexed} receives
+ * the same corpus from a {@link FakeTalker} over loopback, through
+ * {@link ConnectionMultiplexer}'s non-blocking channel path, which is how
+ * connections are read in the default {@link ThreadMode#PLATFORM} mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TelnetBenchmark
+{
+    @Param({ "20000" })
+    public int lineCount;
+
+    private byte[] stream;
+
+    @Setup
+    public void setUp()
+    {
+        stream = new TalkerCorpus(lineCount, 1).getTelnetStream();
+    }
+
+    /**
+     * Read size for {@link #receive receive};  kept apart so the
+     * multiplexed benchmark, whose reads the socket decides, is not
+     * repeated for each size.
+     */
+    @State(Scope.Benchmark)
+    public static class ReadSize
+    {
+        /** Largest number of bytes returned by one socket read. */
+        @Param({ "64", "1460", "8192" })
+        public int readSize;
+    }
+
+    /**
+     * Loopback talker for {@link #receiveMultiplexed receiveMultiplexed},
+     * which sends the whole corpus to each client as fast as it is read.
+     */
+    @State(Scope.Benchmark)
+    public static class Talker
+    {
+        FakeTalker talker;
+
+        @Setup
+        public void setUp(TelnetBenchmark benchmark)
+        throws IOException
+        {
+            talker = new FakeTalker(
+                ReplaySession.fromCorpus(new TalkerCorpus(
+                    benchmark.lineCount, 1), 0),
+                0, 0, null);
+            talker.start();
+        }
+
+        @TearDown
+        public void tearDown()
+        throws IOException
+        {
+            talker.close();
+        }
+    }
+
+    /**
+     * Receives the whole corpus from a blocking socket.
+     *
+     * @return number of characters delivered, so work is not eliminated
+     */
+    @Benchmark
+    public long receive(ReadSize size)
+    throws IOException,
+           InterruptedException,
+           ExecutionException
+    {
+        // Written by reader thread;  visible once connection finishes.
+        long[] length = new long[1];
+        TelnetConnection connection = TelnetConnection.create(
+            new ReplaySocket(stream, size.readSize), StandardCharsets.US_ASCII,
+            line -> length[0] += line.length());
+        connection.start().get();
+        return length[0];
+    }
+
+    /**
+     * Receives the whole corpus from a loopback talker, through the
+     * connection multiplexer.  Includes connecting, so results are not
+     * directly comparable with {@link #receive receive}.
+     *
+     * @return number of characters delivered, so work is not eliminated
+     */
+    @Benchmark
+    public long receiveMultiplexed(Talker talker)
+    throws IOException,
+           InterruptedException,
+           ExecutionException
+    {
+        // Written by multiplexer thread;  visible once connection finishes.
+        long[] length = new long[1];
+        TelnetConnection connection = TelnetConnection.create(
+            "localhost", talker.talker.getPort(), StandardCharsets.US_ASCII,
+            line -> length[0] += line.length());
+        try
+        {
+            connection.start().get();
+        }
+        finally
+        {
+            connection.close();
+        }
+        return length[0];
+    }
+
+    /**
+     * Unconnected socket whose input is a fixed byte array, and whose
+     * output is discarded.
+     */
+    private static class ReplaySocket
+    extends Socket
+    {
+        private final byte[] data;
+
+        private final int readSize;
+
+        ReplaySocket(byte[] data,
+                     int readSize)
+        {
+            this.data = data;
+            this.readSize = readSize;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return new InputStream()
+            {
+                private int position;
+
+                @Override
+                public int read()
+                {
+                    return (position < data.length ?
+                        data[position++] & 0xff : -1);
+                }
+
+                @Override
+                public int read(byte[] bytes,
+                                int offset,
+                                int len)
+                {
+                    if (position >= data.length)
+                    {
+                        return -1;
+                    }
+                    int count = Math.min(Math.min(len, readSize),
+                        data.length - position);
+                    System.arraycopy(data, position, bytes, offset, count);
+                    position += count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getOption(SocketOption<T> option)
+        {
+            if (option == StandardSocketOptions.SO_RCVBUF)
+            {
+                return (T) Integer.valueOf(65536);
+            }
+            throw new UnsupportedOperationException(option.name());
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress()
+        {
+            return InetSocketAddress.createUnresolved("replay", 23);
+        }
+
+        @Override
+        public void setSoTimeout(int timeout)
+        {
+            // Reads never block, so there is nothing to time out.
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to release.
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package net.pan.textend;
+
+import java.text.MessageFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.regex.Pattern;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures trigger pattern compilation, and matching of triggers against
+ * received lines, both one trigger at a time and with
+ * {@link TriggerMatcher}.  The triggers resemble a user's real set:
+ * mostly names and words, with some globs and a few regular expressions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark
+{
+    private static final int LINE_COUNT = 2000;
+
+    private static final MessageFormat UNCLOSED_CLASS_FORMAT =
+        new MessageFormat("Unclosed character class at {0}");
+
+    private static final String[] WORDS = {
+        "coffee", "Alice", "brb", "hello", "talker", "episode", "weekend",
+        "music", "thanks", "night", "Bob", "Grace", "Trent", "server",
+    };
+
+    @Param({ "10", "100" })
+    public int triggerCount;
+
+    private String[] lines;
+
+    private List<Trigger> triggers;
+
+    private TriggerMatcher matcher;
+
+    @Setup
+    public void setUp()
+    {
+        TalkerCorpus corpus = new TalkerCorpus(LINE_COUNT, 4);
+
+        // Triggers see displayed text, without escape sequences.
+        AnsiParser parser = new AnsiParser();
+        TextAttributes attributes = new TextAttributes();
+        lines = new String[LINE_COUNT];
+        for (int i = 0; i < LINE_COUNT; i++)
+        {
+            attributes.clearText();
+            parser.parse(corpus.getLines().get(i), attributes);
+            lines[i] = attributes.getText();
+        }
+
+        triggers = new ArrayList<>(triggerCount);
+        for (int i = 0; i < triggerCount; i++)
+        {
+            String word = WORDS[i % WORDS.length]
+                + (i < WORDS.length ? "" : Integer.toString(i));
+            switch (i % 10)
+            {
+                case 0:
+                    triggers.add(new Trigger("glob" + i,
+                        PatternType.GLOB_CASELESS, "*" + word + "*says*"));
+                    break;
+                case 1:
+                    triggers.add(new Trigger("regex" + i,
+                        PatternType.REGEX, "^(\\w+) shouts: .*\\b"
+                            + Pattern.quote(word) + "\\b"));
+                    break;
+                case 2:
+                    triggers.add(new Trigger("glob" + i,
+                        PatternType.GLOB, word + " [a-z]*s*"));
+                    break;
+                case 3:
+                case 4:
+                    triggers.add(new Trigger("text" + i,
+                        PatternType.TEXT, word));
+                    break;
+                default:
+                    triggers.add(new Trigger("text" + i,
+                        PatternType.TEXT_CASELESS, word));
+                    break;
+            }
+        }
+
+        ObservableList<Trigger> list =
+            FXCollections.observableArrayList(triggers);
+        matcher = new TriggerMatcher(list);
+    }
+
+    /**
+     * Compiles every trigger's pattern, as happens when triggers are
+     * loaded or edited.  Results are per trigger.
+     *
+     * @return total length of compiled patterns, so work is not eliminated
+     */
+    @Benchmark
+    public int compilePatterns()
+    {
+        int length = 0;
+        for (Trigger trigger : triggers)
+        {
+            length += Trigger.patternToRegex(trigger.getPattern(),
+                trigger.getPatternType(),
+                UNCLOSED_CLASS_FORMAT).pattern().length();
+        }
+        return length;
+    }
+
+    /**
+     * Matches every trigger against every line, one trigger at a time.
+     * Results are per line.
+     *
+     * @return number of matches, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int matchEachTrigger()
+    {
+        int count = 0;
+        for (String line : lines)
+        {
+            for (Trigger trigger : triggers)
+            {
+                if (trigger.matches(line))
+                {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Matches all triggers against every line with one
+     * {@link TriggerMatcher}, as {@link Chat} does.  Results are per line.
+     *
+     * @return number of matching triggers, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int matchAllTriggers()
+    {
+        int count = 0;
+        for (String line : lines)
+        {
+            count += matcher.match(line).size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,117 @@
+package net.pan.textend;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding of codepoint escapes, such as {@code {U+221e}}, in
+ * received lines, and encoding of sent lines into US-ASCII with escapes.
+ * Most lines in the corpus have no escapes, as on a real talker.
+ * Results are per line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UnicodeEscapeBenchmark
+{
+    private static final int LINE_COUNT = 10000;
+
+    private String[] lines;
+
+    private UnicodeEscapeDecoder decoder;
+
+    /** Lines with escapes decoded, as a user might type them. */
+    private String[] typedLines;
+
+    private UnicodeEscapeEncoder encoder;
+
+    @Setup
+    public void setUp()
+    {
+        List<String> corpus = new TalkerCorpus(LINE_COUNT, 3).getLines();
+        lines = corpus.toArray(new String[0]);
+        decoder = new UnicodeEscapeDecoder("{", "}");
+
+        typedLines = new String[lines.length];
+        for (int i = 0; i < lines.length; i++)
+        {
+            typedLines[i] = decoder.decode(lines[i]);
+        }
+        encoder = new UnicodeEscapeEncoder(StandardCharsets.US_ASCII,
+            "{", "}");
+    }
+
+    /**
+     * Decodes every line, as complete text.
+     *
+     * @return total length of decoded lines, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int decode()
+    {
+        int length = 0;
+        for (String line : lines)
+        {
+            length += decoder.decode(line).length();
+        }
+        return length;
+    }
+
+    /**
+     * Decodes every line in two reads, split in the middle, as happens
+     * when part of a line is conveyed as a prompt.
+     *
+     * @return total length of decoded lines, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int decodeSplit()
+    {
+        int length = 0;
+        for (String line : lines)
+        {
+            int middle = line.length() / 2;
+            length += decoder.decode(line.substring(0, middle), false)
+                .length();
+            length += decoder.decode(line.substring(middle), true).length();
+        }
+        return length;
+    }
+
+    /**
+     * Encodes every line, with non-ASCII characters as escapes, as is
+     * done for each line sent.
+     *
+     * @return total length of encoded lines, so work is not eliminated
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public int encode()
+    {
+        int length = 0;
+        for (String line : typedLines)
+        {
+            length += encoder.encodeLine(line).remaining();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,233 @@
+package net.pan.textend;
+
+import java.util.logging.Logger;
+
+/**
+ * Streaming parser for ANSI escape sequences in received text.  Each
+ * character is examined once.  Printable text is appended to a
+ * {@link TextAttributes}, SGR ("select graphic rendition") sequences
+ * update its current attributes, and bell characters are reported to the
+ * caller.  Other control sequences are removed, as are control strings
+ * (OSC, DCS, APC and PM, such as a window title), including a bell which
+ * terminates one.
+ * <p>
+ * Parsing state is kept between calls, so an escape sequence which is
+ * split across two reads is still recognized.
+ *
+ * @see <a href="https://www.ecma-international.org/publications-and-standards/standards/ecma-48/">ECMA-48</a>
+ */
+class AnsiParser
+{
+    private static final Logger logger =
+        Logger.getLogger(AnsiParser.class.getName());
+
+    private static final char ESC = '\033';
+
+    private static final char BEL = '\007';
+
+    private static final char CAN = '\030';
+
+    private static final char SUB = '\032';
+
+    /** Largest number of parameters kept from one control sequence. */
+    private static final int MAX_PARAMETERS = 32;
+
+    /** Largest value kept for a single parameter. */
+    private static final int MAX_PARAMETER_VALUE = 65535;
+
+    private enum State
+    {
+        TEXT,
+        /** ESC has been read. */
+        ESCAPE,
+        /** ESC [ has been read. */
+        CONTROL_SEQUENCE,
+        /** ESC followed by ], P, _ or ^ has been read. */
+        CONTROL_STRING,
+        /** ESC has been read within a control string. */
+        CONTROL_STRING_ESCAPE
+    }
+
+    private State state = State.TEXT;
+
+    private final int[] parameters = new int[MAX_PARAMETERS];
+
+    private int parameterCount;
+
+    /** Whether current control sequence has a private parameter string. */
+    private boolean privateSequence;
+
+    /**
+     * Parses part of a line of received text.
+     *
+     * @param text received text
+     * @param attributes receives printable text and attribute changes
+     *
+     * @return true if text contains at least one bell character
+     */
+    boolean parse(CharSequence text,
+                  TextAttributes attributes)
+    {
+        boolean bell = false;
+
+        int len = text.length();
+        int runStart = 0;
+        for (int i = 0; i < len; i++)
+        {
+            char c = text.charAt(i);
+            switch (state)
+            {
+                case TEXT:
+                    if (c == ESC || c == BEL)
+                    {
+                        attributes.append(text, runStart, i);
+                        runStart = i + 1;
+                        if (c == ESC)
+                        {
+                            state = State.ESCAPE;
+                        }
+                        else
+                        {
+                            bell = true;
+                        }
+                    }
+                    break;
+
+                case ESCAPE:
+                    if (c == '[')
+                    {
+                        parameterCount = 0;
+                        privateSequence = false;
+                        state = State.CONTROL_SEQUENCE;
+                    }
+                    else if (c == ']' || c == 'P' || c == '_' || c == '^')
+                    {
+                        state = State.CONTROL_STRING;
+                    }
+                    else if (c < 0x20 || c > 0x2f)
+                    {
+                        // Other escape sequences have no meaning here.
+                        // Intermediate characters (such as the "(" in
+                        // ESC ( B) are skipped until the final character.
+                        state = State.TEXT;
+                    }
+                    runStart = i + 1;
+                    break;
+
+                case CONTROL_SEQUENCE:
+                    if (parseControlSequence(c, attributes))
+                    {
+                        state = State.TEXT;
+                    }
+                    runStart = i + 1;
+                    break;
+
+                case CONTROL_STRING:
+                    // Terminated by ST (ESC \) or, as xterm allows, BEL.
+                    // CAN and SUB cancel it.  So does a newline, which no
+                    // meaningful string contains, so an unterminated one
+                    // cannot hide all further output;  the newline is kept.
+                    if (c == ESC)
+                    {
+                        state = State.CONTROL_STRING_ESCAPE;
+                    }
+                    else if (c == BEL || c == CAN || c == SUB)
+                    {
+                        state = State.TEXT;
+                    }
+                    else if (c == '\n')
+                    {
+                        state = State.TEXT;
+                        runStart = i;
+                        break;
+                    }
+                    runStart = i + 1;
+                    break;
+
+                case CONTROL_STRING_ESCAPE:
+                    if (c == '\\')
+                    {
+                        state = State.TEXT;
+                        runStart = i + 1;
+                    }
+                    else
+                    {
+                        // String ended without ST;  ESC begins a new
+                        // sequence, of which this is the next character.
+                        state = State.ESCAPE;
+                        i--;
+                    }
+                    break;
+
+                default:
+                    throw new RuntimeException("Unknown state: " + state);
+            }
+        }
+
+        if (state == State.TEXT)
+        {
+            attributes.append(text, runStart, len);
+        }
+
+        return bell;
+    }
+
+    /**
+     * Processes one character of a control sequence.
+     *
+     * @return true if character ends the sequence
+     */
+    private boolean parseControlSequence(char c,
+                                         TextAttributes attributes)
+    {
+        if (c >= '0' && c <= '9')
+        {
+            if (parameterCount == 0)
+            {
+                parameterCount = 1;
+                parameters[0] = 0;
+            }
+            int index = parameterCount - 1;
+            if (index < MAX_PARAMETERS)
+            {
+                parameters[index] = Math.min(MAX_PARAMETER_VALUE,
+                    parameters[index] * 10 + (c - '0'));
+            }
+            return false;
+        }
+
+        if (c == ';' || c == ':')
+        {
+            if (parameterCount == 0)
+            {
+                parameterCount = 1;
+                parameters[0] = 0;
+            }
+            if (parameterCount < MAX_PARAMETERS)
+            {
+                parameters[parameterCount] = 0;
+            }
+            parameterCount++;
+            return false;
+        }
+
+        if (c >= 0x40 && c <= 0x7e)
+        {
+            int count = Math.min(parameterCount, MAX_PARAMETERS);
+            if (c == 'm' && !privateSequence)
+            {
+                attributes.applySGR(parameters, count);
+            }
+            else
+            {
+                logger.finest(() -> "Ignoring control sequence ending"
+                    + " with '" + c + "'");
+            }
+            return true;
+        }
+
+        // Private parameter markers and intermediate bytes.
+        privateSequence = true;
+        return false;
+    }
+}
@@ -3,8 +3,6 @@ package net.pan.textend;
 // TODO: input history
 // TODO: webView.onScroll
 
-import java.text.AttributedCharacterIterator;
-import java.text.CharacterIterator;
 import java.text.MessageFormat;
 
 import java.io.IOException;
@@ -15,28 +13,33 @@ import java.nio.charset.StandardCharsets;
 
 import java.nio.file.Paths;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
 
 import java.util.Formatter;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.ResourceBundle;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 
 import java.awt.EventQueue;
 import java.awt.Toolkit;
@@ -47,6 +50,7 @@ import javafx.geometry.Orientation;
 import javafx.geometry.Point2D;
 import javafx.geometry.Side;
 
+import javafx.beans.Observable;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.ObjectExpression;
 import javafx.beans.property.ReadOnlyBooleanProperty;
@@ -82,6 +86,7 @@ import javafx.stage.Window;
 import netscape.javascript.JSObject;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.events.EventTarget;
@@ -107,18 +112,102 @@ public class Chat
     private static final long RESPONSE_DELAY = Math.max(0,
         Integer.getInteger(Chat.class.getName() + ".responseDelay", 250));
 
+    /**
+     * Longest time, in milliseconds, the FX thread spends adding one batch
+     * of received text to the output before letting the rest of the UI run.
+     * This bounds how long a flood of output can delay text from appearing,
+     * and how long it can keep the window from responding.
+     */
+    private static final long MAX_OUTPUT_BATCH_LATENCY = Math.max(1,
+        Integer.getInteger(Chat.class.getName() + ".outputBatchLatency", 50));
+
+    /**
+     * Placed in pending output, in order with received text, when the
+     * talker's charset changes so that codepoint escapes are no longer
+     * used.  Compared by identity.
+     */
+    private static final String ESCAPES_OFF = new String("escapes off");
+
+    /**
+     * Placed in pending output when the talker's charset reverts to the
+     * configured one, so codepoint escapes are used again.  Compared by
+     * identity.
+     */
+    private static final String ESCAPES_ON = new String("escapes on");
+
+    /**
+     * Element ID in HTML document of {@code <style>} element which holds
+     * a rule for each distinct style of output text.
+     */
+    private static final String STYLES_ELEMENT_ID = "styles";
+
+    /**
+     * Runs blocking connection setup and teardown for all Chats.
+     */
+    private static final ExecutorService connector =
+        Executors.newCachedThreadPool(
+            ThreadMode.current().newThreadFactory("Textend connector"));
+
+    /**
+     * Runs beeps and focus changes for all Chats.  Nothing run by this
+     * thread touches the network, so one stalled talker cannot delay
+     * other Chats.
+     */
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(
+            ThreadMode.current().newThreadFactory("Textend timer"));
+
     private static class TriggerResult
     {
         boolean hidden;
-        Element timestamp;
+        String timestamp;
+        Action timestampAction;
+    }
+
+    private static class PendingLine
+    implements Comparable<PendingLine>
+    {
+        final String text;
+
+        /** {@code System.nanoTime()} at which line is to be sent. */
+        final long due;
+
+        final long sequence;
+
+        PendingLine(String text,
+                    long due,
+                    long sequence)
+        {
+            this.text = text;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PendingLine other)
+        {
+            int comparison = Long.compare(due - other.due, 0);
+            return (comparison != 0 ? comparison :
+                Long.compare(sequence, other.sequence));
+        }
     }
 
     private final Tab tab;
 
+    /** Displays output, unless {@link #lineOutput} is used instead. */
     private final WebView outputView;
 
     private final WebEngine outputField;
 
+    /**
+     * Displays output if connection's renderer is
+     * {@link OutputRenderer#LIST_VIEW};  otherwise {@code null}.
+     */
+    private final LineOutput lineOutput;
+
+    /** Either {@link #outputView} or view of {@link #lineOutput}. */
+    private final Node outputNode;
+
     private final ContextMenu outputMenu;
 
     private final MenuItem copyItem;
@@ -129,22 +218,78 @@ public class Chat
 
     private final TextAttributes textAttributes = new TextAttributes();
 
+    private final TriggerMatcher receiveTriggers;
+
+    private final TriggerMatcher sendTriggers;
+
+    private final TriggerMatcher dataTriggers;
+
+    /** Received text waiting to be added to output by the FX thread. */
+    private final Queue<String> pendingOutput = new ConcurrentLinkedQueue<>();
+
+    /** Whether FX thread has been asked to add pending output. */
+    private final AtomicBoolean outputBatchScheduled = new AtomicBoolean();
+
+    /** GMCP and MSDP messages waiting to be handled by the FX thread. */
+    private final Queue<OutOfBandMessage> pendingData =
+        new ConcurrentLinkedQueue<>();
+
+    /** Whether FX thread has been asked to handle pending messages. */
+    private final AtomicBoolean dataBatchScheduled = new AtomicBoolean();
+
+    /**
+     * Lines waiting to be sent, in the order they are due.
+     * Guarded by itself.
+     */
+    private final Queue<PendingLine> sendQueue = new PriorityQueue<>();
+
+    /**
+     * Sends this Chat's lines, immediate and delayed.  A single thread
+     * guarantees lines are sent in the order they were scheduled.  Each
+     * Chat has its own, because writing to a blocking socket does not
+     * return until the talker has accepted all the data, and a stalled
+     * talker must not hold up sending in other Chats.
+     */
+    private final ScheduledExecutorService sender =
+        Executors.newSingleThreadScheduledExecutor(
+            ThreadMode.current().newThreadFactory("Textend sender"));
+
+    /** Orders lines due at the same time.  Guarded by sendQueue. */
+    private long sendSequence;
+
+    private final Scrollback scrollback;
+
+    /** Receives all decoded text, if session is logged. */
+    private SessionLog sessionLog;
+
+    /** Indexes displayed lines, and earlier sessions' logs, for search. */
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    /** Displayed text of current line, not yet given to searchIndex. */
+    private final StringBuilder searchLine = new StringBuilder();
+
+    /** Created when first shown. */
+    private SearchDialog searchDialog;
+
     private volatile TelnetConnection connection;
 
     private ConnectionInfo connectionInfo;
 
     private final CharsetEncoder charsetEncoder;
 
-    private final ExecutorService readExecutor = 
-        Executors.newSingleThreadExecutor();
-
-    private final ScheduledExecutorService sendQueue =
-        Executors.newSingleThreadScheduledExecutor();
-
-    private final ScheduledExecutorService beepTimer =
-        Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Replaced, by the thread which reads from the connection, if talker's
+     * charset changes.  Used only on the sender thread, so an encoder's
+     * reusable buffer is never shared;  the volatile field only publishes
+     * each new encoder, and no locking is needed.
+     */
+    private volatile UnicodeEscapeEncoder unicodeEncoder;
 
-    // As far as I know, it's not possible to support this (yet).
+    /**
+     * Whether output was scrolled to its end when last scrolled.  While it
+     * is not, new output does not scroll it, and old lines are not pruned,
+     * so restored scrollback stays where the user is reading it.
+     */
     private boolean scrolledToEnd = true;
 
     private final MessageFormat closedTitleFormat;
@@ -154,8 +299,12 @@ public class Chat
 
     private final ErrorHandler errorHandler;
 
-    private Matcher csiMatcher =
-        Pattern.compile("\033\\[[^a-zA-Z]*[a-zA-Z]").matcher("");
+    /** Parses escape sequences;  keeps its state between chunks. */
+    private final AnsiParser ansiParser = new AnsiParser();
+
+    /** Turns styles of output elements into classes in the document. */
+    private final StyleRegistry styleRegistry =
+        new StyleRegistry(STYLES_ELEMENT_ID);
 
     /**
      * Element ID in HTML document of {@code <span>} at the end of the
@@ -170,6 +319,16 @@ public class Chat
 
     private String unicodeEnd = "}";
 
+    /** Holds partial escapes between reads, so is used for output only. */
+    private final UnicodeEscapeDecoder unicodeDecoder =
+        new UnicodeEscapeDecoder(unicodeStart, unicodeEnd);
+
+    /**
+     * Whether codepoint escapes in received text are replaced.  False
+     * while the talker sends UTF-8 natively.  Used only on FX thread.
+     */
+    private boolean unescapeReceived = true;
+
     private String timestampFormat;
 
     // Other data
@@ -232,6 +391,17 @@ public class Chat
             }
         }
         charsetEncoder = charset.newEncoder();
+        unicodeEncoder =
+            new UnicodeEscapeEncoder(charset, unicodeStart, unicodeEnd);
+
+        receiveTriggers =
+            new TriggerMatcher(connectionInfo.getReceiveTriggers());
+        sendTriggers =
+            new TriggerMatcher(connectionInfo.getSendTriggers());
+        dataTriggers =
+            new TriggerMatcher(connectionInfo.getDataTriggers());
+
+        scrollback = new Scrollback(connectionInfo);
 
         ResourceBundle res = ResourceBundle.getBundle(
             Chat.class.getPackage().getName() + ".Localization");
@@ -266,23 +436,44 @@ public class Chat
             }
         }
 
-        outputView = new WebView();
-        outputView.setContextMenuEnabled(false);
-        outputView.setOnKeyTyped(this::redirectToInputField);
-        outputView.setOnContextMenuRequested(this::showOutputContextMenu);
-
-        outputField = outputView.getEngine();
-        outputField.documentProperty().addListener((obs, old, doc) ->
-            ((EventTarget) doc).addEventListener(
-                "selectionchange",
-                e -> Platform.runLater(() -> updateCopyable()),
-                false));
-        outputField.loadContent(
-            "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\""
-                               + " \"http://www.w3.org/TR/html4/strict.dtd\">"
-            + "<html><body" + colorStyle + ">"
-            + "<pre id='body' style='white-space: pre-wrap;'></pre>"
-            + "</body></html>");
+        if (connectionInfo.getOutputRenderer() == OutputRenderer.LIST_VIEW)
+        {
+            outputView = null;
+            outputField = null;
+
+            lineOutput = new LineOutput(connectionInfo, uriDisplayer);
+            lineOutput.getView().getSelectionModel().getSelectedItems()
+                .addListener((Observable obs) -> updateCopyable());
+            outputNode = lineOutput.getView();
+        }
+        else
+        {
+            lineOutput = null;
+
+            outputView = new WebView();
+            outputView.setContextMenuEnabled(false);
+            outputNode = outputView;
+
+            outputField = outputView.getEngine();
+            outputField.documentProperty().addListener((obs, old, doc) -> {
+                ((EventTarget) doc).addEventListener(
+                    "selectionchange",
+                    e -> Platform.runLater(() -> updateCopyable()),
+                    false);
+                ((EventTarget) doc).addEventListener(
+                    "scroll", e -> outputScrolled(), false);
+            });
+            outputField.loadContent(
+                "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\""
+                                   + " \"http://www.w3.org/TR/html4/strict.dtd\">"
+                + "<html><head><style id='" + STYLES_ELEMENT_ID + "'"
+                + " type='text/css'></style></head>"
+                + "<body" + colorStyle + ">"
+                + "<pre id='body' style='white-space: pre-wrap;'></pre>"
+                + "</body></html>");
+        }
+        outputNode.setOnKeyTyped(this::redirectToInputField);
+        outputNode.setOnContextMenuRequested(this::showOutputContextMenu);
 
         copyItem.setOnAction(e -> copy());
         copyLinkItem.setOnAction(e -> setClipboardText(rightClickedURI));
@@ -300,7 +491,7 @@ public class Chat
         outputSizer.setPrefColumnCount(20);
         outputSizer.setVisible(false);
 
-        StackPane outputArea = new StackPane(outputView, outputSizer);
+        StackPane outputArea = new StackPane(outputNode, outputSizer);
 
         SplitPane.setResizableWithParent(outputArea, true);
         SplitPane.setResizableWithParent(inputField, false);
@@ -319,13 +510,26 @@ public class Chat
         Platform.runLater(() -> inputField.requestFocus());
 
         tab.setOnCloseRequest(e -> confirmClose(e));
-        tab.setOnClosed(e -> close());
+        tab.setOnClosed(e -> {
+            close();
+            sender.shutdownNow();
+            scrollback.close();
+            if (sessionLog != null)
+            {
+                sessionLog.close();
+            }
+            if (searchDialog != null)
+            {
+                searchDialog.close();
+            }
+            searchIndex.dispose();
+        });
 
         inputField.focusedProperty().addListener(
             (obs, old, focused) -> updateCopyable());
         inputField.selectedTextProperty().addListener(
             (obs, old, text) -> updateCopyable());
-        outputView.focusedProperty().addListener(
+        outputNode.focusedProperty().addListener(
             (obs, old, focused) -> updateCopyable());
 
         ObjectExpression<Node> focusOwner =
@@ -367,8 +571,7 @@ public class Chat
         {
             logger.fine("Tab selected; moving keyboard focus to input field.");
 
-            ScheduledExecutorService focusTimer =
-                Executors.newSingleThreadScheduledExecutor();
+            ScheduledFuture<?>[] focusTask = { null };
             Runnable focuser = new Runnable()
             {
                 @Override
@@ -376,12 +579,12 @@ public class Chat
                 {
                     if (inputField.isFocused())
                     {
-                        focusTimer.shutdown();
+                        focusTask[0].cancel(false);
                     }
                     inputField.requestFocus();
                 }
             };
-            focusTimer.scheduleWithFixedDelay(
+            focusTask[0] = timer.scheduleWithFixedDelay(
                 () -> Platform.runLater(focuser),
                 0, 500, TimeUnit.MILLISECONDS);
         };
@@ -421,6 +624,12 @@ public class Chat
 
     void copy()
     {
+        if (lineOutput != null)
+        {
+            setClipboardText(lineOutput.getSelectedText());
+            return;
+        }
+
         setClipboardText(outputField.executeScript("window.getSelection();"));
     }
 
@@ -430,7 +639,7 @@ public class Chat
         {
             copyable.set(inputField.selectedTextProperty().isNotEmpty().get());
         }
-        else if (outputView.isFocused())
+        else if (outputNode.isFocused())
         {
             copyable.set(canCopyOutput());
         }
@@ -452,6 +661,11 @@ public class Chat
 
     private boolean canCopyOutput()
     {
+        if (lineOutput != null)
+        {
+            return lineOutput.hasSelection();
+        }
+
         Object selection =
             outputField.executeScript("window.getSelection();");
         return (selection != null && !selection.toString().isEmpty());
@@ -465,7 +679,26 @@ public class Chat
 
         copyLinkItem.setVisible(false);
 
-        Window window = outputView.getScene().getWindow();
+        Window window = outputNode.getScene().getWindow();
+
+        if (lineOutput != null)
+        {
+            rightClickedURI = lineOutput.getLink(
+                event.getPickResult().getIntersectedNode());
+            copyLinkItem.setVisible(rightClickedURI != null);
+
+            if (event.isKeyboardTrigger())
+            {
+                Point2D screen = outputNode.localToScreen(0, 0);
+                outputMenu.show(window, screen.getX(), screen.getY());
+            }
+            else
+            {
+                outputMenu.show(window,
+                    event.getScreenX(), event.getScreenY());
+            }
+            return;
+        }
 
         if (event.isKeyboardTrigger())
         {
@@ -524,8 +757,30 @@ public class Chat
         boolean ssl = connectionInfo.isSSL();
         SSLProtocol protocol = connectionInfo.getSSLProtocol();
         boolean requireValidCert = connectionInfo.getRequireValidCertificate();
+        boolean compression = connectionInfo.isCompression();
+        int promptTimeout = Math.max(PromptTimeoutEstimator.MIN_TIMEOUT,
+            connectionInfo.getPromptTimeout());
+        boolean adaptivePromptTimeout =
+            connectionInfo.isAdaptivePromptTimeout();
 
-        String threadName = connectionInfo.toString();
+        if (connectionInfo.isLogSession() && sessionLog == null)
+        {
+            // Files from this session are not listed, since it has
+            // not written any yet.
+            try
+            {
+                searchIndex.addLogFiles(
+                    SessionLog.findLogFiles(connectionInfo));
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.WARNING,
+                    "Cannot find earlier session logs to search", e);
+            }
+
+            sessionLog = new SessionLog(connectionInfo);
+        }
+        SessionLog log = sessionLog;
 
         Runnable connectionInitializer = new Runnable()
         {
@@ -537,13 +792,37 @@ public class Chat
                     connection = TelnetConnection.create(host, port,
                         charsetEncoder.charset(),
                         ssl, protocol, requireValidCert,
-                        line -> appendOutputLater(line));
+                        received -> {
+                            // Copied, since received text is only valid
+                            // during this call and is used by FX thread.
+                            String line = received.toString();
+                            if (log != null)
+                            {
+                                log.write(line);
+                            }
+                            appendOutputLater(line);
+                        });
+                    connection.setCompressionAllowed(compression);
+                    connection.setPromptTimeout(promptTimeout,
+                        adaptivePromptTimeout);
+                    connection.setOutOfBandListener(
+                        Chat.this::receiveDataLater);
+                    connection.setCharsetListener(Chat.this::charsetChanged);
                     Platform.runLater(() -> connected.set(true));
 
-                    readExecutor.submit(connection).get();
-
-                    // If we get here, connection closed gracefully.
-                    Platform.runLater(() -> showAsClosed());
+                    connection.start().whenComplete((v, e) -> {
+                        if (e == null)
+                        {
+                            // Connection closed gracefully.
+                            Platform.runLater(() -> showAsClosed());
+                        }
+                        else
+                        {
+                            logger.log(Level.WARNING,
+                                "Unexpected error while reading", e);
+                            Platform.runLater(() -> showAsClosed(e));
+                        }
+                    });
                 }
                 catch (IOException | IllegalArgumentException e)
                 {
@@ -551,20 +830,9 @@ public class Chat
                         "Couldn't connect to " + connectionInfo, e);
                     Platform.runLater(() -> showAsClosed(e));
                 }
-                catch (ExecutionException e)
-                {
-                    logger.log(Level.WARNING,
-                        "Unexpected error while reading", e);
-                    Platform.runLater(() -> showAsClosed(e));
-                }
-                catch (InterruptedException e)
-                {
-                    logger.log(Level.INFO, "Interrupted; exiting", e);
-                    Platform.runLater(() -> close());
-                }
             }
         };
-        new Thread(connectionInitializer, threadName).start();
+        connector.execute(connectionInitializer);
     }
 
     private void processEnter(KeyEvent event)
@@ -590,7 +858,7 @@ public class Chat
 
             Platform.runLater(() -> inputField.setText(""));
 
-            processTriggers(text, connectionInfo.getSendTriggers());
+            processResponseTriggers(text, sendTriggers);
         }
     }
 
@@ -624,61 +892,64 @@ public class Chat
         return false;
     }
 
-    private boolean isPrintable(int codepoint)
+    private void sendLine(String rawText,
+                          long delayInMillis)
     {
-        //if (isControl(codepoint))
-        //{
-        //    return false;
-        //}
+        String text = (rawText != null ? rawText : "");
+        long due = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(delayInMillis);
 
-        if (Character.isSupplementaryCodePoint(codepoint))
-        {
-            String s = String.valueOf(Character.toChars(codepoint));
-            return charsetEncoder.canEncode(s);
-        }
-        else
+        synchronized (sendQueue)
         {
-            return charsetEncoder.canEncode((char) codepoint);
+            sendQueue.add(new PendingLine(text, due, sendSequence++));
         }
+
+        sender.schedule(this::sendDueLines,
+            delayInMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void sendLine(String rawText,
-                          long delayInMillis)
+    /**
+     * Sends every queued line whose time has come, in a single write.
+     * Lines which become due together, such as those sent by one trigger,
+     * are thus batched, and the timer tasks of lines already sent
+     * find nothing to do.  Runs only on this Chat's sender thread, which
+     * keeps batches in order and makes reuse of the encoder's buffer safe.
+     */
+    private void sendDueLines()
     {
-        final String text;
-        if (rawText != null)
+        List<String> lines = new ArrayList<>();
+        synchronized (sendQueue)
         {
-            Formatter encodedText =
-                new Formatter(new StringBuilder(rawText.length()));
-            rawText.codePoints().forEachOrdered(c -> encodedText.format(
-                isPrintable(c) ? "%2$c" : "%sU+%04x%s",
-                unicodeStart, c, unicodeEnd));
-            text = encodedText.toString();
+            long now = System.nanoTime();
+            PendingLine line;
+            while ((line = sendQueue.peek()) != null && line.due - now <= 0)
+            {
+                lines.add(sendQueue.remove().text);
+            }
         }
-        else
+
+        if (lines.isEmpty())
         {
-            text = "";
+            return;
         }
 
-        Runnable sender = new Runnable()
+        if (connection.isClosed())
         {
-            @Override
-            public void run()
-            {
-                try
-                {
-                    logger.log(Level.FINER, "Sending \"{0}\" CR LF", text);
-                    connection.write(text + "\r\n");
-                }
-                catch (IOException e)
-                {
-                    logger.log(Level.WARNING, "Couldn't send text", e);
-                    Platform.runLater(() -> showAsClosed(e));
-                }
-            }
-        };
+            logger.log(Level.FINE,
+                "Connection closed;  not sending {0}", lines);
+            return;
+        }
 
-        sendQueue.schedule(sender, delayInMillis, TimeUnit.MILLISECONDS);
+        try
+        {
+            logger.log(Level.FINER, "Sending {0}, each with CR LF", lines);
+            connection.write(unicodeEncoder.encodeLines(lines));
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Couldn't send text", e);
+            Platform.runLater(() -> showAsClosed(e));
+        }
     }
 
     void previousInHistory()
@@ -708,9 +979,66 @@ public class Chat
         return tab;
     }
 
-    private void updateScrolledToEnd(Number value)
+    /**
+     * Stops using codepoint escapes once the talker has agreed to a charset
+     * which can represent all text, and resumes them if it reverts to the
+     * configured charset.  Called on the connection's reading thread.
+     */
+    private void charsetChanged(Charset charset)
+    {
+        boolean configured = charset.equals(charsetEncoder.charset());
+        logger.fine(() -> (configured ? "Resuming" : "Stopping") +
+            " codepoint escapes;  charset is now " + charset);
+
+        unicodeEncoder =
+            new UnicodeEscapeEncoder(charset, unicodeStart, unicodeEnd);
+
+        // Text already received was decoded with the previous charset,
+        // so it still gets the previous treatment.
+        appendOutputLater(configured ? ESCAPES_ON : ESCAPES_OFF);
+    }
+
+    private void receiveDataLater(OutOfBandMessage message)
+    {
+        pendingData.add(message);
+        if (dataBatchScheduled.compareAndSet(false, true))
+        {
+            Platform.runLater(() -> handlePendingData());
+        }
+    }
+
+    /**
+     * Passes received GMCP and MSDP messages to data triggers, in one batch.
+     */
+    private void handlePendingData()
+    {
+        // Cleared first, so data arriving from now on schedules a new batch.
+        dataBatchScheduled.set(false);
+
+        OutOfBandMessage message;
+        while ((message = pendingData.poll()) != null)
+        {
+            processResponseTriggers(message.getText(), dataTriggers);
+        }
+    }
+
+    /**
+     * Notes whether output document is scrolled to its end, and restores
+     * archived output if it is scrolled to its start.
+     */
+    private void outputScrolled()
+    {
+        updateScrolledToEnd();
+        restoreScrollback();
+    }
+
+    private void updateScrolledToEnd()
     {
-        //scrolledToEnd = (value.doubleValue() == outputPane.getVmax());
+        // Allows for fractional scroll positions.
+        Object atEnd = outputField.executeScript(
+            "window.scrollY + window.innerHeight"
+            + " >= document.body.scrollHeight - 1");
+        scrolledToEnd = Boolean.TRUE.equals(atEnd);
     }
 
     private void confirmClose(Event event)
@@ -728,12 +1056,40 @@ public class Chat
         }
     }
 
+    /**
+     * Stops logging this session, if it is logged.  Returns immediately;
+     * {@link #awaitSessionLog awaitSessionLog} waits for the log to be
+     * written.  Used at exit, when tabs are not closed.
+     */
+    void closeSessionLog()
+    {
+        if (sessionLog != null)
+        {
+            sessionLog.close();
+        }
+    }
+
+    /**
+     * Waits for a session log closed by {@link #closeSessionLog()}
+     * to be written and compressed.
+     *
+     * @param deadline {@link System#nanoTime()} value after which to stop
+     *                 waiting
+     *
+     * @return {@code true} if session is not logged, or its log was
+     *         finished in time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitSessionLog(long deadline)
+    throws InterruptedException
+    {
+        return sessionLog == null || sessionLog.awaitClose(deadline);
+    }
+
     void close()
     {
         showAsClosed();
-        readExecutor.shutdown();
-        sendQueue.shutdown();
-        beepTimer.shutdown();
 
         if (connection != null)
         {
@@ -753,7 +1109,7 @@ public class Chat
                     }
                 }
             };
-            new Thread(closer).start();
+            connector.execute(closer);
         }
     }
 
@@ -793,92 +1149,288 @@ public class Chat
     {
         for (int i = 0; i < count; i++)
         {
-            beepTimer.schedule(this::beep, i, TimeUnit.SECONDS);
+            timer.schedule(this::beep, i, TimeUnit.SECONDS);
         }
     }
 
     private void appendOutputLater(String chars)
     {
-        Platform.runLater(() -> appendOutput(chars));
+        pendingOutput.add(chars);
+        if (outputBatchScheduled.compareAndSet(false, true))
+        {
+            Platform.runLater(() -> appendPendingOutput());
+        }
+    }
+
+    /**
+     * Adds received text to the output in one batch, with a single
+     * document insertion and a single scroll.  If the batch takes longer
+     * than {@link #MAX_OUTPUT_BATCH_LATENCY}, the rest of the text is left
+     * for another batch.
+     */
+    private void appendPendingOutput()
+    {
+        // Cleared first, so text arriving from now on schedules a new batch.
+        outputBatchScheduled.set(false);
+
+        long deadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(MAX_OUTPUT_BATCH_LATENCY);
+
+        Document doc = null;
+        DocumentFragment batch = null;
+        if (lineOutput == null)
+        {
+            doc = outputField.getDocument();
+            batch = doc.createDocumentFragment();
+        }
+
+        int count = 0;
+        String chars;
+        while ((chars = pendingOutput.poll()) != null)
+        {
+            if (chars == ESCAPES_OFF || chars == ESCAPES_ON)
+            {
+                unescapeReceived = (chars == ESCAPES_ON);
+                continue;
+            }
+
+            appendOutput(chars, doc, batch);
+            count++;
+
+            if (System.nanoTime() - deadline >= 0)
+            {
+                break;
+            }
+        }
+
+        if (count == 0)
+        {
+            // Already added by a previous batch.
+            return;
+        }
+
+        int batchSize = count;
+        logger.finer(() -> "Appending batch of " + batchSize + " chunks");
+
+        if (lineOutput != null)
+        {
+            lineOutput.flush();
+        }
+        else
+        {
+            Element body = doc.getElementById("body");
+            scrollback.adding(batch);
+            body.appendChild(batch);
+
+            // While user is reading earlier output, possibly restored
+            // from the archive, it is neither removed nor scrolled away.
+            if (scrolledToEnd)
+            {
+                scrollback.prune(body);
+
+                // Scroll to bottom.
+                outputField.executeScript(
+                    "window.scrollTo(0, document.body.scrollHeight);");
+            }
+        }
+
+        if (!pendingOutput.isEmpty() &&
+            outputBatchScheduled.compareAndSet(false, true))
+        {
+            Platform.runLater(() -> appendPendingOutput());
+        }
     }
 
-    private void appendOutput(String chars)
+    /**
+     * Restores archived output if the user has scrolled to the top,
+     * keeping the currently visible text in place.
+     */
+    private void restoreScrollback()
     {
-        logger.finest(() -> "Appending output \"" + escape(chars) + "\"" +
-            (chars.contains("\n") ? " (has newline)" : " (no newline)"));
+        if (!scrollback.canRestore())
+        {
+            return;
+        }
+
+        Number scrollY = (Number) outputField.executeScript("window.scrollY");
+        if (scrollY.intValue() > 0)
+        {
+            return;
+        }
 
-        boolean scrolledToEnd = true;
-/*
-            (Boolean) outputField.executeScript(
-                "var b = document.body;" +
-                " b.scrollHeight - b.scrollTop == b.clientHeight;");
-*/
-/*
-            outputField.executeScript("window.scrollY + 
-                document.body.scrollHeight);");
-*/
-        logger.finest(() -> "scrolledToEnd=" + scrolledToEnd);
+        Number height = (Number) outputField.executeScript(
+            "document.body.scrollHeight");
+
+        Element body = outputField.getDocument().getElementById("body");
+        int count = scrollback.restore(body, this::initializeRestoredLink);
+        logger.fine(() -> "Restored " + count + " archived lines");
+
+        outputField.executeScript("window.scrollTo(0,"
+            + " document.body.scrollHeight - " + height.intValue() + ");");
+    }
+
+    private void initializeRestoredLink(Element anchor)
+    {
+        ((EventTarget) anchor).addEventListener("click",
+            e -> uriDisplayer.openURI(anchor.getTextContent()), false);
+    }
+
+    /**
+     * Shows a window which searches this connection's output.
+     */
+    void showSearch()
+    {
+        if (searchDialog == null)
+        {
+            searchDialog = new SearchDialog(searchIndex, this::showLine,
+                connectionInfo.getName(),
+                tab.getTabPane().getScene().getWindow());
+        }
+        searchDialog.show();
+    }
+
+    /**
+     * Scrolls output to a line and selects it.  If the line has been
+     * archived, archived lines are restored until it is present.
+     *
+     * @param line index of line, counting from the start of the session
+     *
+     * @return true if line was shown, false if it has been discarded
+     */
+    private boolean showLine(int line)
+    {
+        if (lineOutput != null)
+        {
+            return lineOutput.showLine(line);
+        }
 
         Document doc = outputField.getDocument();
         Element body = doc.getElementById("body");
+        while (line < scrollback.getFirstLine() && scrollback.canRestore())
+        {
+            scrollback.restore(body, this::initializeRestoredLink);
+        }
+        if (line < scrollback.getFirstLine())
+        {
+            return false;
+        }
+
+        // Find first node of line, and the <br> which ends it.
+        int lineEnds = line - scrollback.getFirstLine();
+        org.w3c.dom.Node start = body.getFirstChild();
+        while (start != null && lineEnds > 0)
+        {
+            if (start.getNodeName().equalsIgnoreCase("br"))
+            {
+                lineEnds--;
+            }
+            start = start.getNextSibling();
+        }
+        if (start == null)
+        {
+            return false;
+        }
+        org.w3c.dom.Node end = start;
+        while (end.getNextSibling() != null &&
+            !end.getNodeName().equalsIgnoreCase("br"))
+        {
+            end = end.getNextSibling();
+        }
+
+        JSObject range = (JSObject) ((JSObject) doc).call("createRange");
+        range.call("setStartBefore", start);
+        range.call("setEndBefore", end);
+        JSObject selection =
+            (JSObject) outputField.executeScript("window.getSelection()");
+        selection.call("removeAllRanges");
+        selection.call("addRange", range);
+
+        // Line may start with a text node, which cannot be scrolled to,
+        // but it always ends with an element.
+        org.w3c.dom.Node target = (start instanceof Element ? start : end);
+        if (target instanceof Element)
+        {
+            ((JSObject) target).call("scrollIntoView");
+        }
+
+        // Scrolling is immediate, so new output will not scroll the line
+        // away unless it is at the end.
+        updateScrolledToEnd();
+        updateCopyable();
+        return true;
+    }
+
+    /**
+     * Converts received text to document nodes, or writes it to
+     * {@link #lineOutput} if that is being used.
+     *
+     * @param chars received text
+     * @param doc output document, or {@code null} if
+     *            {@code lineOutput} is used
+     * @param body batch to which converted text is appended, or
+     *             {@code null} if {@code lineOutput} is used
+     */
+    private void appendOutput(String chars,
+                              Document doc,
+                              DocumentFragment body)
+    {
+        logger.finest(() -> "Appending output \"" + escape(chars) + "\"" +
+            (chars.contains("\n") ? " (has newline)" : " (no newline)"));
 
         String[] lines = chars.split("\r?\n", -1);
         int lineCount = lines.length;
         for (int i = 0; i < lineCount; i++)
         {
-            if (finalLine != null && finalLine.getParentNode() != null)
+            boolean newLine = (i > 0 && lineCount > 1);
+            if (newLine)
             {
-                finalLine.getParentNode().removeChild(finalLine);
+                searchIndex.addLine(searchLine.toString());
+                searchLine.setLength(0);
             }
 
-            boolean newLine = false;
-            if (i > 0 && lineCount > 1)
+            if (lineOutput != null)
             {
-                newLine = true;
-                body.appendChild(doc.createElement("br"));
-
-                // Placeholder to force WebView to render newline after
-                // final <br> element.
-                if (finalLine == null)
-                {
-                    finalLine = doc.createElement("span");
-                    //finalLine.setAttribute("id", FINAL_SPAN_ID);
-                    finalLine.setAttribute("style", "padding-bottom: 1px;");
-                }
-                body.appendChild(finalLine);
+                lineOutput.startSegment(newLine);
             }
-
-            String line = lines[i];
-            line = replaceUnicode(line);
-
-            //boolean bellFound = replaceTextAttributesWith(line);
-            csiMatcher.reset(line);
-
-            boolean bellFound = false;
-
-            textAttributes.clearText();
-            String csi = null;
-            int csiEnd = 0;
-            while (csiMatcher.find())
+            else
             {
-                String run = line.substring(csiEnd, csiMatcher.start());
-                if (bellFound |= line.contains("\007"))
+                if (finalLine != null && finalLine.getParentNode() != null)
                 {
-                    run = run.replace("\007", "");
+                    finalLine.getParentNode().removeChild(finalLine);
                 }
 
-                textAttributes.append(csi, run);
-                csi = csiMatcher.group().substring(2);
-                csiEnd = csiMatcher.end();
+                if (newLine)
+                {
+                    body.appendChild(doc.createElement("br"));
+
+                    // Placeholder to force WebView to render newline after
+                    // final <br> element.
+                    if (finalLine == null)
+                    {
+                        finalLine = doc.createElement("span");
+                        //finalLine.setAttribute("id", FINAL_SPAN_ID);
+                        finalLine.setAttribute("style",
+                            "padding-bottom: 1px;");
+                    }
+                    body.appendChild(finalLine);
+                }
             }
-            textAttributes.append(csi, line.substring(csiEnd));
-            //
 
-            if (bellFound)
+            // Final segment may end partway through an escape, if it
+            // is a prompt or the rest of its line has not arrived yet.
+            String line = (unescapeReceived ?
+                unicodeDecoder.decode(lines[i], i < lineCount - 1) : lines[i]);
+
+            textAttributes.clearText();
+            if (ansiParser.parse(line, textAttributes))
             {
                 beep();
             }
 
+            // Triggers match displayed text, so positions of matches
+            // are also positions in textAttributes.
+            line = textAttributes.getText();
+
             TriggerResult result = null;
 
             if (!userTriggerTripped)
@@ -920,8 +1472,7 @@ public class Chat
             }
             else
             {
-                result = processTriggers(line, newLine,
-                    connectionInfo.getReceiveTriggers());
+                result = processTriggers(line, newLine, receiveTriggers);
 
                 if (result.hidden)
                 {
@@ -929,34 +1480,38 @@ public class Chat
                 }
             }
 
-            //Element lineElement = createLineFromTextAttributes(doc,
-            //    Optional.of(result).map(r -> r.timestamp));
+            searchLine.append(line.replace('\r', ' '));
+
+            if (lineOutput != null)
+            {
+                writeToLineOutput(result);
+                continue;
+            }
+
             Element lineElement = doc.createElement("span");
             lineElement.setAttribute("class", "line");
 
             if (result != null && result.timestamp != null)
             {
-                lineElement.appendChild(result.timestamp);
+                Action action = result.timestampAction;
+                lineElement.appendChild(createElement("span",
+                    result.timestamp,
+                    toStyle(action.getForeground(), action.getBackground()),
+                    doc));
             }
 
             int column = -1;
 
-            AttributedCharacterIterator ci = textAttributes.iterator();
-            for (char c = ci.first();
-                 c != CharacterIterator.DONE;
-                 c = ci.current())
+            int runCount = textAttributes.getRunCount();
+            for (int run = 0; run < runCount; run++)
             {
-                int start = ci.getRunStart();
-                int end = ci.getRunLimit();
-
-                TextAttributes t = TextAttributes.from(ci.getAttributes());
+                int start = textAttributes.getRunStart(run);
+                int end = textAttributes.getRunLimit(run);
 
-                Object uriAttr = ci.getAttribute(TextAttributes.HYPERLINK);
-                if (uriAttr != null)
+                String uri = textAttributes.getRunLink(run);
+                if (uri != null)
                 {
-                    String uri = uriAttr.toString();
-
-                    String style = t.toStyle(true);
+                    String style = textAttributes.toStyle(run, true);
 
                     Element anchor = createElement("a", uri, style, doc);
                     anchor.setAttribute("href", "#");
@@ -964,14 +1519,13 @@ public class Chat
                         e -> uriDisplayer.openURI(uri), false);
                     lineElement.appendChild(anchor);
 
-                    ci.setIndex(end);
+                    run = lastRunOfLink(run);
                 }
                 else
                 {
                     String text = textAttributes.getText(start, end);
-                    ci.setIndex(end);
 
-                    String style = t.toStyle(false);
+                    String style = textAttributes.toStyle(run, false);
 
                     String[] rows = text.split("\r");
                     int numRows = rows.length;
@@ -999,13 +1553,58 @@ public class Chat
 
             body.appendChild(lineElement);
         }
+    }
+
+    /**
+     * Writes the line in {@link #textAttributes} to {@link #lineOutput}.
+     *
+     * @param result trigger results for line, or {@code null}
+     */
+    private void writeToLineOutput(TriggerResult result)
+    {
+        if (result != null && result.timestamp != null)
+        {
+            lineOutput.write(result.timestamp, TextAttributes.toFXStyle(
+                result.timestampAction.getForeground()));
+        }
+
+        int runCount = textAttributes.getRunCount();
+        for (int run = 0; run < runCount; run++)
+        {
+            String uri = textAttributes.getRunLink(run);
+            if (uri != null)
+            {
+                lineOutput.writeLink(uri, textAttributes.toFXStyle(run, true));
+                run = lastRunOfLink(run);
+            }
+            else
+            {
+                lineOutput.write(
+                    textAttributes.getText(textAttributes.getRunStart(run),
+                        textAttributes.getRunLimit(run)),
+                    textAttributes.toFXStyle(run, false));
+            }
+        }
+    }
 
-        if (scrolledToEnd)
+    /**
+     * Finds the end of a hyperlink which spans several runs of
+     * {@link #textAttributes}, so the link can be shown once, with the
+     * style of its first run.
+     *
+     * @param run index of first run of hyperlink
+     *
+     * @return index of last run of same hyperlink
+     */
+    private int lastRunOfLink(int run)
+    {
+        String uri = textAttributes.getRunLink(run);
+        int runCount = textAttributes.getRunCount();
+        while (run + 1 < runCount && textAttributes.getRunLink(run + 1) == uri)
         {
-            // Scroll to bottom.
-            outputField.executeScript(
-                "window.scrollTo(0, document.body.scrollHeight);");
+            run++;
         }
+        return run;
     }
 
     private void overwrite(Element lineElement,
@@ -1072,82 +1671,6 @@ public class Chat
         }
     }
 
-/*
-    private boolean replaceTextAttributesWith(String line)
-    {
-        csiMatcher.reset(line);
-
-        boolean bellFound = false;
-
-        textAttributes.clearText();
-        String csi = null;
-        int csiEnd = 0;
-        while (csiMatcher.find())
-        {
-            String run = line.substring(csiEnd, csiMatcher.start());
-            if (bellFound |= line.contains("\007"))
-            {
-                run = run.replace("\007", "");
-            }
-
-            textAttributes.append(csi, run);
-            csi = csiMatcher.group().substring(2);
-            csiEnd = csiMatcher.end();
-        }
-        textAttributes.append(csi, line.substring(csiEnd));
-
-        return bellFound;
-    }
-*/
-
-/*
-    private Element createLineFromTextAttributes(Document doc,
-                                                 Optional<Element> timestamp)
-    {
-        Element lineElement = doc.createElement("span");
-        timestamp.ifPresent(e -> lineElement.appendChild(e));
-
-        AttributedCharacterIterator ci = textAttributes.iterator();
-        for (char c = ci.first();
-             c != CharacterIterator.DONE;
-             c = ci.current())
-        {
-            int start = ci.getRunStart();
-            int end = ci.getRunLimit();
-
-            TextAttributes t = TextAttributes.from(ci.getAttributes());
-
-            Object uriAttr = ci.getAttribute(TextAttributes.HYPERLINK);
-            if (uriAttr != null)
-            {
-                String uri = uriAttr.toString();
-
-                String style = t.toStyle(true);
-
-                Element anchor = createElement("a", uri, style, doc);
-                anchor.setAttribute("href", "#");
-                ((EventTarget) anchor).addEventListener("click",
-                    e -> uriDisplayer.openURI(uri), false);
-                lineElement.appendChild(anchor);
-
-                ci.setIndex(end);
-            }
-            else
-            {
-                String text = textAttributes.getText(start, end);
-                ci.setIndex(end);
-
-                String style = t.toStyle(false);
-
-                Element span = createElement("span", text, style, doc);
-                lineElement.appendChild(span);
-            }
-        }
-
-        return lineElement;
-    }
-*/
-
     /**
      * Escapes non-ASCII charcters in a string as
      * <code>&#x5c;u</code> sequences, for logging purposes.
@@ -1183,26 +1706,6 @@ public class Chat
         return serializer.writeToString(node);
     }
 
-    private String replaceUnicode(String text)
-    {
-        StringBuffer newText = new StringBuffer(text.length());
-
-        Pattern codepointPattern = Pattern.compile(
-            Pattern.quote(unicodeStart) +
-            "U\\+(\\p{XDigit}+)" +
-            Pattern.quote(unicodeEnd));
-        Matcher matcher = codepointPattern.matcher(text);
-        while (matcher.find())
-        {
-            int codepoint = Integer.parseInt(matcher.group(1), 16);
-            matcher.appendReplacement(newText, String.format("%c",
-                Character.isValidCodePoint(codepoint) ? codepoint : 0xfffd));
-        }
-        matcher.appendTail(newText);
-
-        return newText.toString();
-    }
-
     private Element createElement(String name,
                                   String content,
                                   String style,
@@ -1211,44 +1714,56 @@ public class Chat
         Element element = doc.createElement(name);
         element.appendChild(doc.createTextNode(content));
 
-        if (!style.isEmpty())
-        {
-            element.setAttribute("style", style);
-        }
+        styleRegistry.applyStyle(element, style);
 
         return element;
     }
 
+    /**
+     * Runs triggers on text which is not received output, such as a sent
+     * line or a GMCP or MSDP message.  Only response actions are run;
+     * modification actions apply to the output line being received, at
+     * offsets which have nothing to do with this text.
+     */
+    private void processResponseTriggers(String text,
+                                         TriggerMatcher triggers)
+    {
+        processTriggers(text, false, false, triggers);
+    }
+
     /**
      * @return whether line should be hidden
      */
     private TriggerResult processTriggers(String line,
-                                    Iterable<? extends Trigger> triggers)
+                                          boolean newLine,
+                                          TriggerMatcher triggers)
     {
-        return processTriggers(line, false, triggers);
+        return processTriggers(line, newLine, true, triggers);
     }
 
     /**
+     * @param output whether line is received output, to which
+     *               modification actions apply
+     *
      * @return whether line should be hidden
      */
     private TriggerResult processTriggers(String line,
                                           boolean newLine,
-                                          Iterable<? extends Trigger> triggers)
+                                          boolean output,
+                                          TriggerMatcher triggers)
     {
         TriggerResult result = new TriggerResult();
 
-        Document doc = outputField.getDocument();
-
-        for (Trigger trigger : triggers)
+        for (TriggerMatcher.Result match : triggers.match(line))
         {
+            Trigger trigger = match.trigger;
             if (trigger.isOneTime() &&
                 oneTimeTriggersTripped.contains(trigger))
             {
                 continue;
             }
 
-            Matcher matcher = trigger.toRegex().matcher(line);
-            while (matcher.find())
+            for (MatchResult matcher : match.matches)
             {
                 if (trigger.isOneTime())
                 {
@@ -1257,6 +1772,12 @@ public class Chat
 
                 for (Action action : trigger.getActions())
                 {
+                    if (!output &&
+                        action.getType().category != Action.Category.RESPONSE)
+                    {
+                        continue;
+                    }
+
                     switch (action.getType())
                     {
                         case HIDE:
@@ -1267,16 +1788,10 @@ public class Chat
                             {
                                 continue;
                             }
-                            String timestamp =
+                            result.timestamp =
                                 String.format(timestampFormat,
                                     action.getTimestampText());
-
-                            String style = toStyle(
-                                action.getForeground(),
-                                action.getBackground());
-
-                            result.timestamp = createElement("span",
-                                timestamp, style, doc);
+                            result.timestampAction = action;
                             break;
                         case COLOR:
                             int count = matcher.groupCount();
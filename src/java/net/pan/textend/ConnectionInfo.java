@@ -36,6 +36,12 @@ public class ConnectionInfo
 
     private final BooleanProperty requireValidCert;
 
+    private final BooleanProperty compression;
+
+    private final IntegerProperty promptTimeout;
+
+    private final BooleanProperty adaptivePromptTimeout;
+
     private final StringProperty charset;
 
     private final ObjectProperty<Trigger> usernameTrigger;
@@ -52,6 +58,9 @@ public class ConnectionInfo
     private final ObservableList<Trigger> sendTriggers =
         FXCollections.observableArrayList();
 
+    private final ObservableList<Trigger> dataTriggers =
+        FXCollections.observableArrayList();
+
     private final ObservableMap<TriggerType, ObservableList<Trigger>>
         allTriggers = FXCollections.observableMap(
             new EnumMap<TriggerType, ObservableList<Trigger>>(
@@ -59,6 +68,7 @@ public class ConnectionInfo
     {
         allTriggers.put(TriggerType.RECEIVE, receiveTriggers);
         allTriggers.put(TriggerType.SEND, sendTriggers);
+        allTriggers.put(TriggerType.DATA, dataTriggers);
 
         if (!allTriggers.keySet().containsAll(
             EnumSet.allOf(TriggerType.class)))
@@ -74,6 +84,24 @@ public class ConnectionInfo
 
     private final ObjectProperty<Color> background;
 
+    private final IntegerProperty scrollbackLimit;
+
+    private final ObjectProperty<ScrollbackUnit> scrollbackUnit;
+
+    private final BooleanProperty archiveScrollback;
+
+    private final ObjectProperty<OutputRenderer> outputRenderer;
+
+    private final BooleanProperty logSession;
+
+    private final StringProperty logDirectory;
+
+    private final ObjectProperty<SessionLogFormat> logFormat;
+
+    private final IntegerProperty logRotationSize;
+
+    private final IntegerProperty logRotationInterval;
+
     public ConnectionInfo()
     {
         name = new SimpleStringProperty(this, "name");
@@ -86,6 +114,11 @@ public class ConnectionInfo
             SSLProtocol.defaultProtocol());
         requireValidCert =
             new SimpleBooleanProperty(this, "requireValidCertificate", true);
+        compression = new SimpleBooleanProperty(this, "compression", true);
+        promptTimeout =
+            new SimpleIntegerProperty(this, "promptTimeout", 2000);
+        adaptivePromptTimeout =
+            new SimpleBooleanProperty(this, "adaptivePromptTimeout", true);
         charset = new SimpleStringProperty(this, "charset",
             StandardCharsets.US_ASCII.name());
 
@@ -115,6 +148,25 @@ public class ConnectionInfo
             new SimpleObjectProperty<>(this, "foreground", Color.BLACK);
         background =
             new SimpleObjectProperty<>(this, "background", Color.WHITE);
+
+        scrollbackLimit =
+            new SimpleIntegerProperty(this, "scrollbackLimit", 10000);
+        scrollbackUnit = new SimpleObjectProperty<>(this, "scrollbackUnit",
+            ScrollbackUnit.LINES);
+        archiveScrollback =
+            new SimpleBooleanProperty(this, "archiveScrollback");
+
+        outputRenderer = new SimpleObjectProperty<>(this, "outputRenderer",
+            OutputRenderer.WEB_VIEW);
+
+        logSession = new SimpleBooleanProperty(this, "logSession");
+        logDirectory = new SimpleStringProperty(this, "logDirectory");
+        logFormat = new SimpleObjectProperty<>(this, "logFormat",
+            SessionLogFormat.PLAIN);
+        logRotationSize =
+            new SimpleIntegerProperty(this, "logRotationSize", 10);
+        logRotationInterval =
+            new SimpleIntegerProperty(this, "logRotationInterval", 24);
     }
 
     public StringProperty nameProperty()
@@ -252,6 +304,76 @@ public class ConnectionInfo
         this.requireValidCert.set(require);
     }
 
+    /**
+     * Whether talker may compress the connection's data with MCCP
+     * (telnet options 86 and 87), if it offers to.
+     * Default value is true.
+     *
+     * @return property representing whether compression is allowed
+     */
+    public BooleanProperty compressionProperty()
+    {
+        return compression;
+    }
+
+    public boolean isCompression()
+    {
+        return compression.get();
+    }
+
+    public void setCompression(boolean compression)
+    {
+        this.compression.set(compression);
+    }
+
+    /**
+     * Longest time, in milliseconds, received text without a newline
+     * waits for the rest of its line before it is shown as a prompt.
+     * Prompts which the talker marks with telnet GA or EOR are shown
+     * at once.  Default value is 2000.
+     *
+     * @return property containing prompt timeout
+     *
+     * @see #adaptivePromptTimeoutProperty()
+     */
+    public IntegerProperty promptTimeoutProperty()
+    {
+        return promptTimeout;
+    }
+
+    public int getPromptTimeout()
+    {
+        return promptTimeout.get();
+    }
+
+    public void setPromptTimeout(int millis)
+    {
+        this.promptTimeout.set(millis);
+    }
+
+    /**
+     * Whether a shorter prompt timeout is learned from how quickly the
+     * talker sends the rest of a partial line.  If false, the
+     * {@linkplain #promptTimeoutProperty() prompt timeout} is always used
+     * in full.  Default value is true.
+     *
+     * @return property representing whether prompt timeout adapts
+     */
+    public BooleanProperty adaptivePromptTimeoutProperty()
+    {
+        return adaptivePromptTimeout;
+    }
+
+    public boolean isAdaptivePromptTimeout()
+    {
+        return adaptivePromptTimeout.get();
+    }
+
+    public void setAdaptivePromptTimeout(boolean adaptive)
+    {
+        this.adaptivePromptTimeout.set(adaptive);
+    }
+
     public StringProperty charsetProperty()
     {
         return charset;
@@ -402,6 +524,34 @@ public class ConnectionInfo
         }
     }
 
+    /**
+     * Triggers matched against the {@linkplain OutOfBandMessage#getText()
+     * text} of each GMCP or MSDP message received.
+     *
+     * @return modifiable list of data triggers
+     */
+    public ObservableList<Trigger> getDataTriggers()
+    {
+        return dataTriggers;
+    }
+
+    public Trigger[] getDataTriggersAsArray()
+    {
+        return dataTriggers.toArray(new Trigger[0]);
+    }
+
+    public void setDataTriggersAsArray(Trigger[] triggers)
+    {
+        if (triggers == null)
+        {
+            dataTriggers.clear();
+        }
+        else
+        {
+            dataTriggers.setAll(triggers);
+        }
+    }
+
     public BooleanProperty useSystemColorsProperty()
     {
         return useSystemColors;
@@ -447,6 +597,205 @@ public class ConnectionInfo
         this.background.set(color);
     }
 
+    /**
+     * Maximum amount of output kept in a connection's window, measured in
+     * units given by {@link #scrollbackUnitProperty()}.  When output exceeds
+     * this, the oldest lines are removed.  Zero or less means output is
+     * never removed.  Default value is 10,000.
+     *
+     * @return property containing scrollback limit
+     */
+    public IntegerProperty scrollbackLimitProperty()
+    {
+        return scrollbackLimit;
+    }
+
+    public int getScrollbackLimit()
+    {
+        return scrollbackLimit.get();
+    }
+
+    public void setScrollbackLimit(int limit)
+    {
+        this.scrollbackLimit.set(limit);
+    }
+
+    /**
+     * Unit of {@link #scrollbackLimitProperty()}.
+     * Default value is {@link ScrollbackUnit#LINES}.
+     *
+     * @return property containing unit of scrollback limit
+     */
+    public ObjectProperty<ScrollbackUnit> scrollbackUnitProperty()
+    {
+        return scrollbackUnit;
+    }
+
+    public ScrollbackUnit getScrollbackUnit()
+    {
+        return scrollbackUnit.get();
+    }
+
+    public void setScrollbackUnit(ScrollbackUnit unit)
+    {
+        this.scrollbackUnit.set(unit);
+    }
+
+    /**
+     * Whether lines removed from a connection's window because of
+     * {@link #scrollbackLimitProperty()} are kept in a temporary file,
+     * from which they are restored when the user scrolls to the top.
+     * Default value is false.
+     *
+     * @return property representing whether old output is archived
+     */
+    public BooleanProperty archiveScrollbackProperty()
+    {
+        return archiveScrollback;
+    }
+
+    public boolean isArchiveScrollback()
+    {
+        return archiveScrollback.get();
+    }
+
+    public void setArchiveScrollback(boolean archive)
+    {
+        this.archiveScrollback.set(archive);
+    }
+
+    /**
+     * How output is displayed.  Archiving, as specified by
+     * {@link #archiveScrollbackProperty()}, is only available with
+     * {@link OutputRenderer#WEB_VIEW}.
+     * Default value is {@link OutputRenderer#WEB_VIEW}.
+     *
+     * @return property containing output renderer
+     */
+    public ObjectProperty<OutputRenderer> outputRendererProperty()
+    {
+        return outputRenderer;
+    }
+
+    public OutputRenderer getOutputRenderer()
+    {
+        return outputRenderer.get();
+    }
+
+    public void setOutputRenderer(OutputRenderer renderer)
+    {
+        this.outputRenderer.set(renderer);
+    }
+
+    /**
+     * Whether received text is written to log files, as specified by
+     * {@link #logDirectoryProperty()} and {@link #logFormatProperty()}.
+     * Default value is false.
+     *
+     * @return property representing whether session is logged
+     */
+    public BooleanProperty logSessionProperty()
+    {
+        return logSession;
+    }
+
+    public boolean isLogSession()
+    {
+        return logSession.get();
+    }
+
+    public void setLogSession(boolean log)
+    {
+        this.logSession.set(log);
+    }
+
+    /**
+     * Directory in which session logs are written.  If {@code null} or
+     * empty, a {@code logs} directory in the application's data directory
+     * is used.  Default value is {@code null}.
+     *
+     * @return property containing log directory
+     */
+    public StringProperty logDirectoryProperty()
+    {
+        return logDirectory;
+    }
+
+    public String getLogDirectory()
+    {
+        return logDirectory.get();
+    }
+
+    public void setLogDirectory(String dir)
+    {
+        this.logDirectory.set(dir);
+    }
+
+    /**
+     * What session logs record.
+     * Default value is {@link SessionLogFormat#PLAIN}.
+     *
+     * @return property containing session log format
+     */
+    public ObjectProperty<SessionLogFormat> logFormatProperty()
+    {
+        return logFormat;
+    }
+
+    public SessionLogFormat getLogFormat()
+    {
+        return logFormat.get();
+    }
+
+    public void setLogFormat(SessionLogFormat format)
+    {
+        this.logFormat.set(format);
+    }
+
+    /**
+     * Size, in megabytes, at which a session log file is closed,
+     * compressed, and replaced by a new file.  Zero or less means files
+     * are not rotated by size.  Default value is 10.
+     *
+     * @return property containing log rotation size
+     */
+    public IntegerProperty logRotationSizeProperty()
+    {
+        return logRotationSize;
+    }
+
+    public int getLogRotationSize()
+    {
+        return logRotationSize.get();
+    }
+
+    public void setLogRotationSize(int megabytes)
+    {
+        this.logRotationSize.set(megabytes);
+    }
+
+    /**
+     * Age, in hours, at which a session log file is closed, compressed,
+     * and replaced by a new file.  Zero or less means files are not
+     * rotated by age.  Default value is 24.
+     *
+     * @return property containing log rotation interval
+     */
+    public IntegerProperty logRotationIntervalProperty()
+    {
+        return logRotationInterval;
+    }
+
+    public int getLogRotationInterval()
+    {
+        return logRotationInterval.get();
+    }
+
+    public void setLogRotationInterval(int hours)
+    {
+        this.logRotationInterval.set(hours);
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,250 @@
+package net.pan.textend;
+
+import java.io.IOException;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Services all open non-blocking {@link TelnetConnection}s from a single
+ * thread, using one {@code Selector}.  The thread reads from each connection
+ * as data arrives, writes queued output when a socket can accept it, and
+ * conveys partial lines as prompts when their prompt deadlines pass.
+ * Received lines are passed to each connection's read listener on this
+ * thread, so listeners must not block.
+ */
+class ConnectionMultiplexer
+implements Runnable
+{
+    private static final Logger logger =
+        Logger.getLogger(ConnectionMultiplexer.class.getName());
+
+    private static ConnectionMultiplexer instance;
+
+    private final Selector selector;
+
+    /** Operations which must be performed on the selector thread. */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    private ConnectionMultiplexer()
+    throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    /**
+     * Returns the multiplexer shared by all connections, starting its
+     * thread if necessary.
+     *
+     * @return shared instance
+     *
+     * @throws IOException if selector cannot be created
+     */
+    static synchronized ConnectionMultiplexer getInstance()
+    throws IOException
+    {
+        if (instance == null)
+        {
+            instance = new ConnectionMultiplexer();
+
+            Thread thread = new Thread(instance, "Textend network I/O");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Begins servicing a connection.  When the connection reaches end of
+     * stream or fails, it is closed and
+     * {@link TelnetConnection#finish TelnetConnection.finish} is called.
+     *
+     * @param connection connection with a non-blocking channel
+     */
+    void register(TelnetConnection connection)
+    {
+        execute(() -> {
+            try
+            {
+                connection.channel().register(selector,
+                    SelectionKey.OP_READ, connection);
+            }
+            catch (IOException e)
+            {
+                connection.finish(e);
+            }
+        });
+    }
+
+    /**
+     * Arranges for a connection's queued output to be written as soon as
+     * its socket can accept it.
+     *
+     * @param connection connection with pending output
+     */
+    void requestWrite(TelnetConnection connection)
+    {
+        execute(() -> {
+            SelectionKey key = connection.channel().keyFor(selector);
+            if (key != null && key.isValid())
+            {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    private void execute(Runnable task)
+    {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                long timeout = nextPromptTimeout();
+                if (timeout < 0)
+                {
+                    selector.selectNow();
+                }
+                else
+                {
+                    selector.select(timeout);
+                }
+
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext())
+                {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    service(key);
+                }
+
+                checkPromptDeadlines();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Errors for individual connections are handled in
+                // service();  this is a problem with the selector itself.
+                logger.log(Level.SEVERE, "Network I/O loop failed", e);
+            }
+        }
+    }
+
+    private void service(SelectionKey key)
+    {
+        TelnetConnection connection = (TelnetConnection) key.attachment();
+        try
+        {
+            if (key.isWritable() && connection.writePending())
+            {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isReadable() && !connection.readAvailable())
+            {
+                logger.fine(() -> "End of stream for " + connection);
+                close(key, null);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            close(key, e);
+        }
+    }
+
+    private void close(SelectionKey key,
+                       Throwable error)
+    {
+        key.cancel();
+
+        TelnetConnection connection = (TelnetConnection) key.attachment();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Couldn't close " + connection, e);
+        }
+
+        connection.finish(error);
+    }
+
+    /**
+     * Calculates how long selector may wait before a connection's
+     * partial line becomes a prompt.
+     *
+     * @return milliseconds to wait, 0 to wait indefinitely, or -1 if
+     *         a deadline has already passed
+     */
+    private long nextPromptTimeout()
+    {
+        long now = System.nanoTime();
+        long timeout = 0;
+        for (SelectionKey key : selector.keys())
+        {
+            TelnetConnection connection =
+                (TelnetConnection) key.attachment();
+            if (key.isValid() && connection.isAwaitingPrompt())
+            {
+                long remaining = connection.getPromptDeadline() - now;
+                if (remaining <= 0)
+                {
+                    return -1;
+                }
+
+                // Round up, so deadline has passed when select returns.
+                long millis = NANOSECONDS.toMillis(
+                    remaining + MILLISECONDS.toNanos(1) - 1);
+                if (timeout == 0 || millis < timeout)
+                {
+                    timeout = millis;
+                }
+            }
+        }
+        return timeout;
+    }
+
+    private void checkPromptDeadlines()
+    {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys())
+        {
+            TelnetConnection connection =
+                (TelnetConnection) key.attachment();
+            if (key.isValid() && connection.isAwaitingPrompt() &&
+                connection.getPromptDeadline() - now <= 0)
+            {
+                try
+                {
+                    connection.promptTimedOut();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    close(key, e);
+                }
+            }
+        }
+    }
+}
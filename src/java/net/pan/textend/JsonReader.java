@@ -0,0 +1,356 @@
+package net.pan.textend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Parses JSON text, such as the data of a GMCP message, into plain Java
+ * objects:
+ * <ul>
+ * <li>objects become {@code Map<String, Object>}, in document order
+ * <li>arrays become {@code List<Object>}
+ * <li>strings become {@code String}
+ * <li>numbers become {@code Long} if they are integers which fit,
+ *     otherwise {@code Double}
+ * <li>{@code true} and {@code false} become {@code Boolean}
+ * <li>{@code null} becomes {@code null}
+ * </ul>
+ */
+class JsonReader
+{
+    /**
+     * Deepest nesting of objects and arrays allowed, so malformed data
+     * cannot exhaust the stack.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    private final CharSequence text;
+
+    private final int length;
+
+    private int position;
+
+    private JsonReader(CharSequence text)
+    {
+        this.text = Objects.requireNonNull(text, "Text cannot be null");
+        this.length = text.length();
+    }
+
+    /**
+     * Parses a single JSON value, which may be surrounded by whitespace.
+     *
+     * @param text JSON text
+     *
+     * @return parsed value
+     *
+     * @throws IllegalArgumentException if text is not valid JSON
+     */
+    static Object parse(CharSequence text)
+    {
+        JsonReader reader = new JsonReader(text);
+        reader.skipWhitespace();
+        Object value = reader.readValue(0);
+        reader.skipWhitespace();
+        if (reader.position < reader.length)
+        {
+            throw reader.error("Unexpected text after value");
+        }
+        return value;
+    }
+
+    private Object readValue(int depth)
+    {
+        if (depth > MAX_DEPTH)
+        {
+            throw error("Nesting too deep");
+        }
+        if (position >= length)
+        {
+            throw error("Missing value");
+        }
+
+        char c = text.charAt(position);
+        switch (c)
+        {
+            case '{':
+                return readObject(depth);
+            case '[':
+                return readArray(depth);
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                {
+                    return readNumber();
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject(int depth)
+    {
+        Map<String, Object> object = new LinkedHashMap<>();
+
+        position++;
+        skipWhitespace();
+        if (peek() == '}')
+        {
+            position++;
+            return object;
+        }
+
+        while (true)
+        {
+            skipWhitespace();
+            if (peek() != '"')
+            {
+                throw error("Expected name");
+            }
+            String name = readString();
+
+            skipWhitespace();
+            expect(":");
+            skipWhitespace();
+            object.put(name, readValue(depth + 1));
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}')
+            {
+                return object;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Object> readArray(int depth)
+    {
+        List<Object> array = new ArrayList<>();
+
+        position++;
+        skipWhitespace();
+        if (peek() == ']')
+        {
+            position++;
+            return array;
+        }
+
+        while (true)
+        {
+            skipWhitespace();
+            array.add(readValue(depth + 1));
+
+            skipWhitespace();
+            char c = next();
+            if (c == ']')
+            {
+                return array;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private String readString()
+    {
+        position++;
+
+        // Most strings have no escapes, and need no copying.
+        int start = position;
+        StringBuilder string = null;
+        while (true)
+        {
+            char c = next();
+            if (c == '"')
+            {
+                if (string == null)
+                {
+                    return text.subSequence(start, position - 1).toString();
+                }
+                return string.toString();
+            }
+            if (c < ' ')
+            {
+                throw error("Control character in string");
+            }
+
+            if (c == '\\')
+            {
+                if (string == null)
+                {
+                    string = new StringBuilder();
+                    string.append(text, start, position - 1);
+                }
+                string.append(readEscape());
+            }
+            else if (string != null)
+            {
+                string.append(c);
+            }
+        }
+    }
+
+    private char readEscape()
+    {
+        char c = next();
+        switch (c)
+        {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0)
+                    {
+                        throw error("Invalid \\u escape");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            default:
+                throw error("Invalid escape '\\" + c + "'");
+        }
+    }
+
+    private Number readNumber()
+    {
+        int start = position;
+        boolean integer = true;
+
+        if (peek() == '-')
+        {
+            position++;
+        }
+        skipDigits();
+
+        if (peek() == '.')
+        {
+            integer = false;
+            position++;
+            skipDigits();
+        }
+
+        char c = peek();
+        if (c == 'e' || c == 'E')
+        {
+            integer = false;
+            position++;
+            c = peek();
+            if (c == '+' || c == '-')
+            {
+                position++;
+            }
+            skipDigits();
+        }
+
+        String number = text.subSequence(start, position).toString();
+        if (integer)
+        {
+            try
+            {
+                return Long.valueOf(number);
+            }
+            catch (NumberFormatException e)
+            {
+                // Too large for a long;  fall through.
+            }
+        }
+        return Double.valueOf(number);
+    }
+
+    private void skipDigits()
+    {
+        int start = position;
+        while (position < length && isDigit(text.charAt(position)))
+        {
+            position++;
+        }
+        if (position == start)
+        {
+            throw error("Expected digit");
+        }
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private void skipWhitespace()
+    {
+        while (position < length)
+        {
+            char c = text.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+            {
+                break;
+            }
+            position++;
+        }
+    }
+
+    private void expect(String expected)
+    {
+        int end = position + expected.length();
+        if (end > length ||
+            !text.subSequence(position, end).toString().equals(expected))
+        {
+            throw error("Expected \"" + expected + "\"");
+        }
+        position = end;
+    }
+
+    /**
+     * @return next character, or zero if there is none
+     */
+    private char peek()
+    {
+        return (position < length ? text.charAt(position) : 0);
+    }
+
+    private char next()
+    {
+        if (position >= length)
+        {
+            throw error("Unexpected end of text");
+        }
+        return text.charAt(position++);
+    }
+
+    private IllegalArgumentException error(String message)
+    {
+        return new IllegalArgumentException(
+            message + " at position " + position);
+    }
+}
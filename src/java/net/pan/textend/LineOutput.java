@@ -0,0 +1,415 @@
+package net.pan.textend;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import java.util.logging.Logger;
+
+import javafx.beans.binding.Bindings;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import javafx.scene.Node;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+/**
+ * Displays a connection's output in a virtualized {@code ListView}, as an
+ * alternative to the {@code WebView} document normally used by
+ * {@link Chat}.  Each line is kept as a compact {@link OutputLine};  nodes
+ * are only created for lines which are visible.  The connection's
+ * scrollback limit is enforced by discarding the oldest lines.
+ * <p>
+ * Received text is written to the current line, with
+ * {@link #write write} and {@link #writeLink writeLink}, until
+ * {@link #startSegment startSegment} begins a new line.  Changes are
+ * shown when {@link #flush()} is called.  While the user is scrolled away
+ * from the last line, such as after a search has shown an earlier line,
+ * the view stays where it is and no lines are discarded.
+ * <p>
+ * All methods must be called on the JavaFX application thread.
+ *
+ * @see OutputRenderer#LIST_VIEW
+ */
+class LineOutput
+{
+    private static final Logger logger =
+        Logger.getLogger(LineOutput.class.getName());
+
+    private final ListView<OutputLine> view;
+
+    private final ObservableList<OutputLine> lines =
+        FXCollections.observableArrayList();
+
+    private final URIDisplayer uriDisplayer;
+
+    private final int limit;
+
+    private final ScrollbackUnit unit;
+
+    /** Number of characters in all complete lines. */
+    private long length;
+
+    /**
+     * Index of first element of {@link #lines}, counting from the start
+     * of the session.
+     */
+    private int firstLine;
+
+    private final OutputLine.Builder current = new OutputLine.Builder();
+
+    /** Whether last element of {@link #lines} is the current line. */
+    private boolean currentShown;
+
+    /** Whether current line has changed since last {@link #flush()}. */
+    private boolean currentChanged;
+
+    /**
+     * Column at which text overwrites current line, or -1 if text is
+     * appended.
+     */
+    private int column = -1;
+
+    /** Shared instances of equal style strings. */
+    private final Map<String, String> styles = new HashMap<>();
+
+    /** Style applied to all text, before the style of each run. */
+    private final String baseStyle;
+
+    /**
+     * Creates an output list which uses a connection's scrollback limit
+     * and colors.
+     *
+     * @param info connection whose settings are used
+     * @param uriDisplayer opens hyperlinks when they are clicked
+     */
+    LineOutput(ConnectionInfo info,
+               URIDisplayer uriDisplayer)
+    {
+        this.uriDisplayer = Objects.requireNonNull(uriDisplayer,
+            "URI displayer cannot be null");
+        this.limit = info.getScrollbackLimit();
+        this.unit = Objects.requireNonNullElse(info.getScrollbackUnit(),
+            ScrollbackUnit.LINES);
+
+        String colorStyle = "";
+        String viewStyle = "";
+        if (!info.isUseSystemColors())
+        {
+            Color foreground = info.getForeground();
+            Color background = info.getBackground();
+            if (foreground != null && background != null)
+            {
+                colorStyle = TextAttributes.toFXStyle(foreground);
+                viewStyle = "-fx-control-inner-background: "
+                    + toCSS(background) + ";";
+            }
+        }
+        baseStyle = "-fx-font-family: monospace;" + colorStyle;
+
+        view = new ListView<>(lines);
+        view.setStyle(viewStyle);
+        view.getStyleClass().add("line-output");
+        view.getStylesheets().add(
+            LineOutput.class.getResource("style.css").toString());
+        view.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        view.setCellFactory(v -> new LineCell());
+    }
+
+    private static String toCSS(Color color)
+    {
+        return String.format("rgba(%d,%d,%d,%s)",
+            Math.round(color.getRed() * 255),
+            Math.round(color.getGreen() * 255),
+            Math.round(color.getBlue() * 255),
+            color.getOpacity());
+    }
+
+    /**
+     * Returns the control which displays output.
+     *
+     * @return output control
+     */
+    ListView<OutputLine> getView()
+    {
+        return view;
+    }
+
+    /**
+     * Prepares for text received in a new segment of output.
+     *
+     * @param newLine whether segment starts a new line, rather than
+     *                continuing the current one
+     */
+    void startSegment(boolean newLine)
+    {
+        column = -1;
+
+        if (newLine)
+        {
+            showCurrent();
+            length += current.length();
+            current.clear();
+            currentShown = false;
+            currentChanged = true;
+        }
+    }
+
+    /**
+     * Writes plain text to the current line.  A carriage return in the
+     * text causes subsequent text to overwrite the line from its start.
+     *
+     * @param text text to write
+     * @param style JavaFX CSS style of text
+     */
+    void write(String text,
+               String style)
+    {
+        style = styles.computeIfAbsent(style, s -> s);
+
+        String[] rows = text.split("\r", -1);
+        for (int r = 0; r < rows.length; r++)
+        {
+            if (r > 0)
+            {
+                column = 0;
+            }
+
+            String row = rows[r];
+            if (column < 0)
+            {
+                current.append(row, style, null);
+            }
+            else
+            {
+                current.overwrite(column, row, style, null);
+                column += row.length();
+            }
+        }
+        currentChanged = true;
+    }
+
+    /**
+     * Appends a hyperlink to the current line.
+     *
+     * @param uri URI, which is also the link's text
+     * @param style JavaFX CSS style of link
+     */
+    void writeLink(String uri,
+                   String style)
+    {
+        current.append(uri, styles.computeIfAbsent(style, s -> s), uri);
+        currentChanged = true;
+    }
+
+    private void showCurrent()
+    {
+        if (!currentChanged)
+        {
+            return;
+        }
+
+        OutputLine line = current.build();
+        if (currentShown)
+        {
+            lines.set(lines.size() - 1, line);
+        }
+        else
+        {
+            lines.add(line);
+            currentShown = true;
+        }
+        currentChanged = false;
+    }
+
+    /**
+     * Shows all written text.  If the view was scrolled to its last line,
+     * also removes lines beyond the scrollback limit, and scrolls to the
+     * new last line.
+     */
+    void flush()
+    {
+        boolean scrolledToEnd = isScrolledToEnd();
+
+        showCurrent();
+
+        if (!scrolledToEnd)
+        {
+            return;
+        }
+
+        // Current line is last, and is never removed.
+        int complete = lines.size() - 1;
+        int excess = 0;
+        if (limit > 0)
+        {
+            switch (unit)
+            {
+                case CHARACTERS:
+                    while (excess < complete && length > limit)
+                    {
+                        length -= lines.get(excess).getText().length();
+                        excess++;
+                    }
+                    break;
+                case LINES:
+                default:
+                    excess = Math.max(0, complete - limit);
+                    break;
+            }
+        }
+        if (excess > 0)
+        {
+            if (unit == ScrollbackUnit.LINES)
+            {
+                for (OutputLine line : lines.subList(0, excess))
+                {
+                    length -= line.getText().length();
+                }
+            }
+            lines.remove(0, excess);
+            firstLine += excess;
+
+            int count = excess;
+            logger.finer(() -> "Removed " + count + " lines");
+        }
+
+        view.scrollTo(lines.size() - 1);
+    }
+
+    /**
+     * Returns whether the last line is visible, or the view has not
+     * been displayed yet.
+     */
+    private boolean isScrolledToEnd()
+    {
+        VirtualFlow<?> flow = (VirtualFlow<?>) view.lookup(".virtual-flow");
+        if (flow == null)
+        {
+            return true;
+        }
+
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last == null || last.getIndex() >= lines.size() - 1;
+    }
+
+    /**
+     * Scrolls to a line and selects it, if it has not been removed.
+     * The view stays there until the user scrolls back to the end.
+     *
+     * @param line index of line, counting from the start of the session
+     *
+     * @return true if line was shown
+     */
+    boolean showLine(int line)
+    {
+        int index = line - firstLine;
+        if (index < 0 || index >= lines.size())
+        {
+            return false;
+        }
+
+        view.scrollTo(index);
+        view.getSelectionModel().clearAndSelect(index);
+        return true;
+    }
+
+    /**
+     * Returns the text of all selected lines.
+     *
+     * @return selected text, possibly empty
+     */
+    String getSelectedText()
+    {
+        return view.getSelectionModel().getSelectedItems().stream()
+            .map(OutputLine::getText)
+            .collect(Collectors.joining("\n"));
+    }
+
+    boolean hasSelection()
+    {
+        return !view.getSelectionModel().isEmpty();
+    }
+
+    /**
+     * Returns the hyperlink displayed by a node, if any.
+     *
+     * @param node node in this output's view, or {@code null}
+     *
+     * @return URI of hyperlink containing node, or {@code null}
+     */
+    String getLink(Node node)
+    {
+        while (node != null && node != view)
+        {
+            if (node instanceof Hyperlink)
+            {
+                return ((Hyperlink) node).getText();
+            }
+            node = node.getParent();
+        }
+        return null;
+    }
+
+    private class LineCell
+    extends ListCell<OutputLine>
+    {
+        private final TextFlow flow = new TextFlow();
+
+        LineCell()
+        {
+            // Keeps lines from widening the list;  they wrap instead.
+            setPrefWidth(0);
+            flow.prefWidthProperty().bind(Bindings.createDoubleBinding(
+                () -> getWidth() - snappedLeftInset() - snappedRightInset(),
+                widthProperty(), paddingProperty()));
+        }
+
+        @Override
+        protected void updateItem(OutputLine line,
+                                  boolean empty)
+        {
+            super.updateItem(line, empty);
+
+            flow.getChildren().clear();
+            if (empty || line == null)
+            {
+                setGraphic(null);
+                return;
+            }
+
+            String text = line.getText();
+            int count = line.getRunCount();
+            for (int i = 0; i < count; i++)
+            {
+                String run = text.substring(
+                    line.getRunStart(i), line.getRunLimit(i));
+                String link = line.getRunLink(i);
+                if (link != null)
+                {
+                    Hyperlink hyperlink = new Hyperlink(run);
+                    hyperlink.setStyle(line.getRunStyle(i));
+                    hyperlink.setOnAction(e -> uriDisplayer.openURI(link));
+                    flow.getChildren().add(hyperlink);
+                }
+                else
+                {
+                    Text node = new Text(run);
+                    node.setStyle(baseStyle + line.getRunStyle(i));
+                    flow.getChildren().add(node);
+                }
+            }
+            setGraphic(flow);
+        }
+    }
+}
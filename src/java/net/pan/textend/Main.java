@@ -5,10 +5,13 @@ import java.io.IOException;
 
 import java.time.LocalDate;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -97,7 +100,8 @@ extends Application
     @Override
     public void init()
     {
-        LoggerInitializer.parseLogLevelOptions(getParameters());
+        ThreadMode.parseThreadModeOption(
+            LoggerInitializer.parseLogLevelOptions(getParameters()));
     }
 
     @Override
@@ -131,6 +135,7 @@ extends Application
         MenuItem cutItem = new MenuItem(res.getString("cut"));
         MenuItem copyItem = new MenuItem(res.getString("copy"));
         MenuItem pasteItem = new MenuItem(res.getString("paste"));
+        MenuItem findItem = new MenuItem(res.getString("find"));
         MenuItem prevItem = new MenuItem(res.getString("previous"));
         MenuItem nextItem = new MenuItem(res.getString("next"));
 
@@ -149,6 +154,8 @@ extends Application
             res.getString("copy.accelerator")));
         pasteItem.setAccelerator(KeyCombination.valueOf(
             res.getString("paste.accelerator")));
+        findItem.setAccelerator(KeyCombination.valueOf(
+            res.getString("find.accelerator")));
         nextItem.setAccelerator(KeyCombination.valueOf(
             res.getString("next.accelerator")));
         prevItem.setAccelerator(KeyCombination.valueOf(
@@ -161,6 +168,8 @@ extends Application
         cutItem.setOnAction(e -> doTextAction(TextInputControl::cut));
         copyItem.setOnAction(e -> copy());
         pasteItem.setOnAction(e -> doTextAction(TextInputControl::paste));
+        findItem.setOnAction(e ->
+            currentChat().ifPresent(c -> c.showSearch()));
 
         prevItem.setOnAction(e-> 
             currentChat().ifPresent(c -> c.previousInHistory()));
@@ -175,6 +184,7 @@ extends Application
             new Menu(res.getString("menu.edit"), null,
                 cutItem, copyItem, pasteItem,
                 /*new SeparatorMenuItem(), undoItem, redoItem,*/
+                new SeparatorMenuItem(), findItem,
                 new SeparatorMenuItem(), prevItem, nextItem),
             new Menu(res.getString("menu.help"), null,
                 aboutItem));
@@ -214,6 +224,7 @@ extends Application
 
         BooleanBinding notConnected =
             Bindings.selectBoolean(selectedTab, "userData", "connected").not();
+        findItem.disableProperty().bind(selectedTab.isNull());
         prevItem.disableProperty().bind(notConnected);
         nextItem.disableProperty().bind(notConnected);
 
@@ -248,6 +259,37 @@ extends Application
 
     private void exit()
     {
+        stage.hide();
+
+        // Session logs are written by daemon threads, so they must be
+        // finished before exiting, or their last text would be lost.
+        List<Chat> chats = new ArrayList<>();
+        for (Tab tab : tabPane.getTabs())
+        {
+            Chat chat = (Chat) tab.getUserData();
+            chat.closeSessionLog();
+            chats.add(chat);
+        }
+
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(SessionLog.EXIT_TIMEOUT);
+        try
+        {
+            for (Chat chat : chats)
+            {
+                if (!chat.awaitSessionLog(deadline))
+                {
+                    logger.warning(
+                        "Session logs not finished;  exiting anyway");
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.log(Level.INFO, "Interrupted waiting for session logs", e);
+        }
+
         System.exit(0);
     }
 
@@ -0,0 +1,333 @@
+package net.pan.textend;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Structured data sent by a talker apart from its displayed text,
+ * through the GMCP or MSDP telnet options, such as room information or
+ * character status.  Messages are parsed on the connection's reading
+ * thread;  data triggers match each message's {@linkplain #getText() text}.
+ * <p>
+ * A message's {@linkplain #getValue() value} is made of plain Java
+ * objects, as described for {@link JsonReader}.  MSDP tables become maps,
+ * MSDP arrays become lists, and all other MSDP values are strings.
+ */
+final class OutOfBandMessage
+{
+    /** Telnet option through which a message arrived. */
+    enum Protocol
+    {
+        /** Generic MUD Communication Protocol, telnet option 201. */
+        GMCP,
+        /** MUD Server Data Protocol, telnet option 69. */
+        MSDP
+    }
+
+    /** Starts an MSDP variable name. */
+    static final int MSDP_VAR = 1;
+    /** Starts an MSDP value. */
+    static final int MSDP_VAL = 2;
+    static final int MSDP_TABLE_OPEN = 3;
+    static final int MSDP_TABLE_CLOSE = 4;
+    static final int MSDP_ARRAY_OPEN = 5;
+    static final int MSDP_ARRAY_CLOSE = 6;
+
+    /**
+     * Deepest nesting of MSDP tables and arrays allowed, so malformed data
+     * cannot exhaust the stack.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    private final Protocol protocol;
+
+    private final String name;
+
+    private final Object value;
+
+    private final String text;
+
+    private OutOfBandMessage(Protocol protocol,
+                             String name,
+                             Object value,
+                             String text)
+    {
+        this.protocol = protocol;
+        this.name = name;
+        this.value = value;
+        this.text = text;
+    }
+
+    /**
+     * Parses a GMCP message, which is a package and message name,
+     * optionally followed by whitespace and JSON data.
+     *
+     * @param payload text of GMCP subnegotiation
+     *
+     * @return new message
+     *
+     * @throws IllegalArgumentException if payload has no name, or its
+     *                                  data is not valid JSON
+     */
+    static OutOfBandMessage fromGMCP(String payload)
+    {
+        Objects.requireNonNull(payload, "Payload cannot be null");
+
+        int nameEnd = 0;
+        while (nameEnd < payload.length() &&
+            !Character.isWhitespace(payload.charAt(nameEnd)))
+        {
+            nameEnd++;
+        }
+        if (nameEnd == 0)
+        {
+            throw new IllegalArgumentException("GMCP message has no name");
+        }
+
+        String name = payload.substring(0, nameEnd);
+        String data = payload.substring(nameEnd).trim();
+        Object value = (data.isEmpty() ? null : JsonReader.parse(data));
+
+        return new OutOfBandMessage(Protocol.GMCP, name, value, payload);
+    }
+
+    /**
+     * Parses the variables in an MSDP subnegotiation, each of which
+     * becomes a separate message.  A variable with more than one value
+     * has a list as its value.
+     *
+     * @param payload data of MSDP subnegotiation;  all of it is consumed
+     * @param charset charset of names and values
+     *
+     * @return new messages, in the order their variables appear
+     *
+     * @throws IllegalArgumentException if payload is malformed
+     */
+    static List<OutOfBandMessage> fromMSDP(ByteBuffer payload,
+                                           Charset charset)
+    {
+        Objects.requireNonNull(payload, "Payload cannot be null");
+        Objects.requireNonNull(charset, "Charset cannot be null");
+
+        Map<String, Object> variables = readMSDPTable(payload, charset, 0);
+
+        List<OutOfBandMessage> messages = new ArrayList<>(variables.size());
+        for (Map.Entry<String, Object> variable : variables.entrySet())
+        {
+            String name = variable.getKey();
+            Object value = variable.getValue();
+            messages.add(new OutOfBandMessage(Protocol.MSDP,
+                name, value, name + " " + value));
+        }
+        return messages;
+    }
+
+    private static Map<String, Object> readMSDPTable(ByteBuffer data,
+                                                     Charset charset,
+                                                     int depth)
+    {
+        Map<String, Object> table = new LinkedHashMap<>();
+
+        String name = null;
+        List<Object> values = new ArrayList<>(1);
+        while (data.hasRemaining())
+        {
+            int b = data.get() & 0xff;
+            if (b == MSDP_VAR)
+            {
+                putMSDPVariable(table, name, values);
+                name = readMSDPString(data, charset);
+                values = new ArrayList<>(1);
+            }
+            else if (b == MSDP_VAL)
+            {
+                if (name == null)
+                {
+                    throw new IllegalArgumentException(
+                        "MSDP value has no variable");
+                }
+                values.add(readMSDPValue(data, charset, depth));
+            }
+            else if (b == MSDP_TABLE_CLOSE && depth > 0)
+            {
+                putMSDPVariable(table, name, values);
+                return table;
+            }
+            else
+            {
+                throw new IllegalArgumentException(
+                    "Unexpected MSDP byte " + b);
+            }
+        }
+
+        if (depth > 0)
+        {
+            throw new IllegalArgumentException("Unterminated MSDP table");
+        }
+        putMSDPVariable(table, name, values);
+        return table;
+    }
+
+    private static void putMSDPVariable(Map<String, Object> table,
+                                        String name,
+                                        List<Object> values)
+    {
+        if (name != null)
+        {
+            switch (values.size())
+            {
+                case 0:
+                    table.put(name, "");
+                    break;
+                case 1:
+                    table.put(name, values.get(0));
+                    break;
+                default:
+                    table.put(name, values);
+                    break;
+            }
+        }
+    }
+
+    private static Object readMSDPValue(ByteBuffer data,
+                                        Charset charset,
+                                        int depth)
+    {
+        if (depth >= MAX_DEPTH)
+        {
+            throw new IllegalArgumentException("MSDP nesting too deep");
+        }
+
+        if (data.hasRemaining())
+        {
+            int b = data.get(data.position()) & 0xff;
+            if (b == MSDP_TABLE_OPEN)
+            {
+                data.get();
+                return readMSDPTable(data, charset, depth + 1);
+            }
+            if (b == MSDP_ARRAY_OPEN)
+            {
+                data.get();
+                return readMSDPArray(data, charset, depth + 1);
+            }
+        }
+        return readMSDPString(data, charset);
+    }
+
+    private static List<Object> readMSDPArray(ByteBuffer data,
+                                              Charset charset,
+                                              int depth)
+    {
+        List<Object> array = new ArrayList<>();
+        while (data.hasRemaining())
+        {
+            int b = data.get() & 0xff;
+            if (b == MSDP_ARRAY_CLOSE)
+            {
+                return array;
+            }
+            if (b != MSDP_VAL)
+            {
+                throw new IllegalArgumentException(
+                    "Unexpected MSDP byte " + b + " in array");
+            }
+            array.add(readMSDPValue(data, charset, depth));
+        }
+        throw new IllegalArgumentException("Unterminated MSDP array");
+    }
+
+    private static String readMSDPString(ByteBuffer data,
+                                         Charset charset)
+    {
+        int start = data.position();
+        int end = start;
+        int limit = data.limit();
+        while (end < limit)
+        {
+            int b = data.get(end) & 0xff;
+            if (b >= MSDP_VAR && b <= MSDP_ARRAY_CLOSE)
+            {
+                break;
+            }
+            end++;
+        }
+
+        ByteBuffer bytes = data.duplicate();
+        bytes.limit(end);
+        data.position(end);
+        return charset.decode(bytes).toString();
+    }
+
+    /**
+     * Returns the option through which this message arrived.
+     *
+     * @return message's protocol, never {@code null}
+     */
+    Protocol getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Returns the GMCP package and message name, such as
+     * {@code Char.Vitals}, or the MSDP variable name, such as
+     * {@code HEALTH}.
+     *
+     * @return message name, never {@code null}
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns this message's data.
+     *
+     * @return parsed data;  {@code null} for a GMCP message without data
+     */
+    Object getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Returns this message's data as a map, if it is a JSON object
+     * or an MSDP table.
+     *
+     * @return data as a map, or an empty map if data is not a map
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> getValueAsMap()
+    {
+        return (value instanceof Map ?
+            (Map<String, Object>) value : Collections.emptyMap());
+    }
+
+    /**
+     * Returns the text which triggers match:  the name, a space, and
+     * the data.  For GMCP, this is the message exactly as received.
+     * For MSDP, values are formatted as by {@code toString()}.
+     *
+     * @return message as text, never {@code null}
+     */
+    String getText()
+    {
+        return text;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getName()
+            + "[" + protocol + " " + name + " " + value + "]";
+    }
+}
@@ -0,0 +1,208 @@
+package net.pan.textend;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * One line of output in compact form:  its text, and the runs of that
+ * text which share a style.  Instances are immutable;  lines are built
+ * with an {@link OutputLine.Builder}.
+ */
+final class OutputLine
+{
+    private final String text;
+
+    /** Index in text at which each run ends. */
+    private final int[] runLimits;
+
+    /** JavaFX CSS style of each run. */
+    private final String[] runStyles;
+
+    /** URI of each run which is a hyperlink, or {@code null}. */
+    private final String[] runLinks;
+
+    private OutputLine(String text,
+                       int[] runLimits,
+                       String[] runStyles,
+                       String[] runLinks)
+    {
+        this.text = text;
+        this.runLimits = runLimits;
+        this.runStyles = runStyles;
+        this.runLinks = runLinks;
+    }
+
+    String getText()
+    {
+        return text;
+    }
+
+    int getRunCount()
+    {
+        return runLimits.length;
+    }
+
+    int getRunStart(int run)
+    {
+        return (run > 0 ? runLimits[run - 1] : 0);
+    }
+
+    int getRunLimit(int run)
+    {
+        return runLimits[run];
+    }
+
+    String getRunStyle(int run)
+    {
+        return runStyles[run];
+    }
+
+    /**
+     * Returns the URI of a run, if it is a hyperlink.
+     *
+     * @param run index of run
+     *
+     * @return URI of hyperlink, or {@code null} if run is plain text
+     */
+    String getRunLink(int run)
+    {
+        return runLinks[run];
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + "[" + Chat.escape(text) + "]";
+    }
+
+    /**
+     * Accumulates text and styles for an {@link OutputLine}.
+     */
+    static class Builder
+    {
+        private final StringBuilder text = new StringBuilder();
+
+        private int[] runLimits = new int[8];
+
+        private String[] runStyles = new String[8];
+
+        private String[] runLinks = new String[8];
+
+        private int runCount;
+
+        int length()
+        {
+            return text.length();
+        }
+
+        void clear()
+        {
+            text.setLength(0);
+            runCount = 0;
+        }
+
+        /**
+         * Adds text to the end of the line.  Consecutive plain text with
+         * the same style is merged into one run.
+         *
+         * @param s text to add
+         * @param style JavaFX CSS style of text
+         * @param link URI, if text is a hyperlink, otherwise {@code null}
+         */
+        void append(String s,
+                    String style,
+                    String link)
+        {
+            if (s.isEmpty())
+            {
+                return;
+            }
+
+            text.append(s);
+
+            int last = runCount - 1;
+            if (last >= 0 && link == null && runLinks[last] == null &&
+                runStyles[last].equals(style))
+            {
+                runLimits[last] = text.length();
+                return;
+            }
+
+            if (runCount == runLimits.length)
+            {
+                int size = runCount * 2;
+                runLimits = Arrays.copyOf(runLimits, size);
+                runStyles = Arrays.copyOf(runStyles, size);
+                runLinks = Arrays.copyOf(runLinks, size);
+            }
+            runLimits[runCount] = text.length();
+            runStyles[runCount] = Objects.requireNonNull(style,
+                "Style cannot be null");
+            runLinks[runCount] = link;
+            runCount++;
+        }
+
+        /**
+         * Replaces text starting at a column, as a terminal does after a
+         * carriage return.  Text which extends past the end of the line
+         * is appended.
+         *
+         * @param column index at which to start replacing
+         * @param s replacement text
+         * @param style JavaFX CSS style of text
+         * @param link URI, if text is a hyperlink, otherwise {@code null}
+         */
+        void overwrite(int column,
+                       String s,
+                       String style,
+                       String link)
+        {
+            if (column >= text.length())
+            {
+                append(s, style, link);
+                return;
+            }
+
+            String oldText = text.toString();
+            int[] oldLimits = Arrays.copyOf(runLimits, runCount);
+            String[] oldStyles = Arrays.copyOf(runStyles, runCount);
+            String[] oldLinks = Arrays.copyOf(runLinks, runCount);
+            int end = column + s.length();
+
+            clear();
+            int start = 0;
+            for (int i = 0; i < oldLimits.length; i++)
+            {
+                if (start < column)
+                {
+                    append(oldText.substring(start,
+                        Math.min(oldLimits[i], column)),
+                        oldStyles[i], oldLinks[i]);
+                }
+                start = oldLimits[i];
+            }
+
+            append(s, style, link);
+
+            start = 0;
+            for (int i = 0; i < oldLimits.length; i++)
+            {
+                if (oldLimits[i] > end)
+                {
+                    append(oldText.substring(Math.max(start, end),
+                        oldLimits[i]),
+                        oldStyles[i], oldLinks[i]);
+                }
+                start = oldLimits[i];
+            }
+        }
+
+        OutputLine build()
+        {
+            return new OutputLine(text.toString(),
+                Arrays.copyOf(runLimits, runCount),
+                Arrays.copyOf(runStyles, runCount),
+                Arrays.copyOf(runLinks, runCount));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package net.pan.textend;
+
+/**
+ * How a connection's output is displayed.
+ *
+ * @see ConnectionInfo#outputRendererProperty()
+ */
+public enum OutputRenderer
+{
+    /**
+     * An HTML document in a {@code WebView}, which supports every text
+     * attribute, and selection of arbitrary text.
+     */
+    WEB_VIEW,
+    /**
+     * A virtualized {@code ListView}, which only creates nodes for visible
+     * lines, and selects whole lines.  Text backgrounds, overlines and
+     * enclosures are not shown.
+     */
+    LIST_VIEW
+}
@@ -0,0 +1,125 @@
+package net.pan.textend;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Learns how long a talker takes to send the rest of a line after sending
+ * only part of it, so that a partial line which is really a prompt can be
+ * shown soon after the rest of a line would have arrived, rather than
+ * after a fixed, generous delay.
+ * <p>
+ * Each observed gap between a partial line and the data which followed
+ * it is a sample.  As TCP does for round trip times (RFC 6298), a
+ * smoothed gap and its mean deviation are kept, and the timeout is the
+ * smoothed gap plus four deviations, kept between
+ * {@link #MIN_TIMEOUT} milliseconds and a configured maximum.
+ * <p>
+ * Instances are not thread safe.
+ */
+class PromptTimeoutEstimator
+{
+    /** Shortest timeout, in milliseconds, however fast the talker is. */
+    static final int MIN_TIMEOUT = 20;
+
+    /** Timeout, in milliseconds, until the first sample is observed. */
+    static final int INITIAL_TIMEOUT = 250;
+
+    private final long maxTimeout;
+
+    private final boolean adaptive;
+
+    /** Smoothed gap, in nanoseconds;  negative until first sample. */
+    private double smoothedGap = -1;
+
+    /** Smoothed mean deviation of gaps, in nanoseconds. */
+    private double deviation;
+
+    /**
+     * Creates an estimator.
+     *
+     * @param maxTimeout longest timeout, in milliseconds
+     * @param adaptive whether timeout is learned;  if false, it is always
+     *                 {@code maxTimeout}
+     *
+     * @throws IllegalArgumentException if {@code maxTimeout} is less than
+     *                                  {@link #MIN_TIMEOUT}
+     */
+    PromptTimeoutEstimator(int maxTimeout,
+                           boolean adaptive)
+    {
+        if (maxTimeout < MIN_TIMEOUT)
+        {
+            throw new IllegalArgumentException(
+                "Maximum timeout must be at least " + MIN_TIMEOUT + " ms");
+        }
+
+        this.maxTimeout = MILLISECONDS.toNanos(maxTimeout);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Returns the longest timeout, which is used when learning is off.
+     *
+     * @return maximum timeout, in nanoseconds
+     */
+    long getMaxTimeout()
+    {
+        return maxTimeout;
+    }
+
+    /**
+     * Records how long the rest of a partial line took to arrive.
+     * Gaps longer than the maximum timeout are ignored, since the
+     * partial line was then most likely a prompt.
+     *
+     * @param gap nanoseconds between arrival of partial line and arrival
+     *            of data which followed it
+     */
+    void addSample(long gap)
+    {
+        if (gap < 0 || gap > maxTimeout)
+        {
+            return;
+        }
+
+        if (smoothedGap < 0)
+        {
+            smoothedGap = gap;
+            deviation = gap / 2.0;
+        }
+        else
+        {
+            deviation = 0.75 * deviation + 0.25 * Math.abs(smoothedGap - gap);
+            smoothedGap = 0.875 * smoothedGap + 0.125 * gap;
+        }
+    }
+
+    /**
+     * Returns how long to wait for the rest of a partial line.
+     *
+     * @return timeout, in nanoseconds
+     */
+    long getTimeout()
+    {
+        if (!adaptive)
+        {
+            return maxTimeout;
+        }
+
+        long timeout = (smoothedGap < 0 ?
+            MILLISECONDS.toNanos(INITIAL_TIMEOUT) :
+            (long) (smoothedGap + 4 * deviation));
+        return Math.max(MILLISECONDS.toNanos(MIN_TIMEOUT),
+            Math.min(timeout, maxTimeout));
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + "["
+            + "adaptive=" + adaptive
+            + ", smoothedGap=" + (long) smoothedGap
+            + ", deviation=" + (long) deviation
+            + ", timeout=" + getTimeout() + "]";
+    }
+}
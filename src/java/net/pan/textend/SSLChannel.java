@@ -0,0 +1,479 @@
+package net.pan.textend;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import java.util.Objects;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Carries SSL/TLS over a non-blocking socket channel with an
+ * {@link SSLEngine}, so SSL connections can be serviced by
+ * {@link ConnectionMultiplexer} just as plain connections are.
+ * <p>
+ * Reads return decrypted data.  A read may return zero even though the
+ * socket was readable, if only handshake data arrived.  The handshake is
+ * carried out by reads, including any delegated tasks such as certificate
+ * checks, so reads must be made by one thread at a time.
+ * <p>
+ * Writes may be made from any thread, and always consume all of the given
+ * data.  Encrypted data which the socket does not accept immediately is
+ * kept until {@link #flush()} sends it;  {@link #hasPendingOutput()} tells
+ * whether there is any.  Data written before the handshake completes is
+ * kept until it completes, then encrypted and sent by the reading thread.
+ */
+class SSLChannel
+implements ByteChannel, GatheringByteChannel
+{
+    private static final Logger logger =
+        Logger.getLogger(SSLChannel.class.getName());
+
+    private static final ByteBuffer[] NO_DATA = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    /**
+     * Encrypted data read from socket, not yet decrypted.  In write mode.
+     * Used only by reading thread.
+     */
+    private ByteBuffer netInput;
+
+    /**
+     * Decrypted data which did not fit in a reader's buffer.  In write mode.
+     * Used only by reading thread.
+     */
+    private ByteBuffer appInput;
+
+    private final Object outputMonitor = new Object();
+
+    /**
+     * Encrypted data not yet accepted by socket.  In write mode.
+     * Guarded by {@link #outputMonitor}.
+     */
+    private ByteBuffer netOutput;
+
+    /**
+     * Data written while a handshake was in progress, waiting to be
+     * encrypted.  In write mode.  Guarded by {@link #outputMonitor}.
+     */
+    private ByteBuffer pendingData = ByteBuffer.allocate(0);
+
+    /**
+     * Creates a channel and begins the handshake.
+     *
+     * @param channel connected non-blocking socket channel
+     * @param engine engine for the connection, ideally created with the
+     *               peer's host and port so a cached session can be resumed
+     *
+     * @throws IOException if handshake cannot be started
+     */
+    SSLChannel(SocketChannel channel,
+               SSLEngine engine)
+    throws IOException
+    {
+        this.channel = Objects.requireNonNull(channel,
+            "Channel cannot be null");
+        this.engine = Objects.requireNonNull(engine,
+            "Engine cannot be null");
+
+        engine.setUseClientMode(true);
+
+        SSLSession session = engine.getSession();
+        netInput = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        appInput = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOutput = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+
+        engine.beginHandshake();
+        handshake(engine.getHandshakeStatus());
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + "[" + engine.getPeerHost()
+            + ":" + engine.getPeerPort() + "]";
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Reads and decrypts whatever data the socket has available.
+     *
+     * @param dst buffer to receive decrypted data
+     *
+     * @return number of bytes placed in {@code dst}, possibly zero,
+     *         or -1 at end of stream
+     *
+     * @throws IOException if socket cannot be read, or talker's data
+     *                     is not valid SSL/TLS
+     */
+    @Override
+    public int read(ByteBuffer dst)
+    throws IOException
+    {
+        if (appInput.position() > 0)
+        {
+            return moveAppInput(dst);
+        }
+
+        while (true)
+        {
+            // Decrypt straight into caller's buffer, when it has room
+            // for a whole record, to avoid a copy.
+            ByteBuffer target =
+                (dst.remaining() >= appInput.capacity() ? dst : appInput);
+
+            netInput.flip();
+            SSLEngineResult result;
+            try
+            {
+                result = engine.unwrap(netInput, target);
+            }
+            finally
+            {
+                netInput.compact();
+            }
+
+            switch (result.getStatus())
+            {
+                case BUFFER_OVERFLOW:
+                    appInput = enlarge(appInput,
+                        engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (!netInput.hasRemaining())
+                    {
+                        netInput = enlarge(netInput,
+                            engine.getSession().getPacketBufferSize());
+                    }
+                    int bytesRead = channel.read(netInput);
+                    if (bytesRead < 0)
+                    {
+                        endOfStream();
+                        return -1;
+                    }
+                    if (bytesRead == 0)
+                    {
+                        return 0;
+                    }
+                    continue;
+                case CLOSED:
+                    // Talker sent close_notify, which may need a reply.
+                    handshake(result.getHandshakeStatus());
+                    return -1;
+                default:
+                    break;
+            }
+
+            handshake(result.getHandshakeStatus());
+
+            if (result.bytesProduced() > 0)
+            {
+                return (target == dst ?
+                    result.bytesProduced() : moveAppInput(dst));
+            }
+        }
+    }
+
+    /**
+     * Moves as much decrypted data as will fit from {@link #appInput}
+     * to a reader's buffer.
+     */
+    private int moveAppInput(ByteBuffer dst)
+    {
+        appInput.flip();
+        int count = Math.min(appInput.remaining(), dst.remaining());
+        ByteBuffer part = appInput.duplicate();
+        part.limit(part.position() + count);
+        dst.put(part);
+        appInput.position(appInput.position() + count);
+        appInput.compact();
+        return count;
+    }
+
+    private void endOfStream()
+    {
+        try
+        {
+            engine.closeInbound();
+        }
+        catch (SSLException e)
+        {
+            // Many talkers simply close the socket.
+            logger.log(Level.FINE,
+                "Connection closed without close_notify", e);
+        }
+    }
+
+    /**
+     * Continues handshake for as long as it does not need talker's data.
+     *
+     * @param status handshake status reported by most recent wrap or unwrap
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status)
+    throws IOException
+    {
+        while (true)
+        {
+            switch (status)
+            {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                    {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    synchronized (outputMonitor)
+                    {
+                        status = wrap(NO_DATA, 0, 1).getHandshakeStatus();
+                        flush();
+                    }
+                    break;
+                case FINISHED:
+                    logger.fine(() -> "Handshake finished for " + this
+                        + ", protocol " + engine.getSession().getProtocol());
+                    writePendingData();
+                    return;
+                case NOT_HANDSHAKING:
+                    writePendingData();
+                    return;
+                default:
+                    // Waiting for talker's data.
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts data written while a handshake was in progress.
+     */
+    private void writePendingData()
+    throws IOException
+    {
+        synchronized (outputMonitor)
+        {
+            if (pendingData.position() > 0 && !engine.isOutboundDone())
+            {
+                pendingData.flip();
+                try
+                {
+                    wrap(new ByteBuffer[] { pendingData }, 0, 1);
+                }
+                finally
+                {
+                    pendingData.compact();
+                }
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Encrypts data into {@link #netOutput} until all of it is consumed,
+     * or engine stops accepting it because a handshake is in progress.
+     * Caller must hold {@link #outputMonitor}.
+     *
+     * @return result of last wrap
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs,
+                                 int offset,
+                                 int length)
+    throws SSLException
+    {
+        while (true)
+        {
+            SSLEngineResult result =
+                engine.wrap(srcs, offset, length, netOutput);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            {
+                netOutput = enlarge(netOutput, netOutput.position()
+                    + engine.getSession().getPacketBufferSize());
+                continue;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED ||
+                (result.bytesConsumed() == 0 && result.bytesProduced() == 0) ||
+                remaining(srcs, offset, length) == 0)
+            {
+                return result;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    throws IOException
+    {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs)
+    throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts data and writes as much of it as the socket accepts.
+     *
+     * @return number of bytes consumed, which is always all of them
+     *
+     * @throws ClosedChannelException if channel has been closed
+     * @throws IOException if data cannot be encrypted or written
+     */
+    @Override
+    public long write(ByteBuffer[] srcs,
+                      int offset,
+                      int length)
+    throws IOException
+    {
+        synchronized (outputMonitor)
+        {
+            if (engine.isOutboundDone())
+            {
+                throw new ClosedChannelException();
+            }
+
+            long count = remaining(srcs, offset, length);
+
+            // Earlier data waiting for a handshake must be sent first.
+            if (pendingData.position() == 0)
+            {
+                wrap(srcs, offset, length);
+                flush();
+            }
+
+            for (int i = offset; i < offset + length; i++)
+            {
+                if (srcs[i].hasRemaining())
+                {
+                    if (pendingData.remaining() < srcs[i].remaining())
+                    {
+                        pendingData = enlarge(pendingData,
+                            pendingData.position() + srcs[i].remaining());
+                    }
+                    pendingData.put(srcs[i]);
+                }
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Writes as much encrypted data as the socket will accept.
+     *
+     * @return {@code true} if no encrypted data remains to be written
+     *
+     * @throws IOException if socket cannot be written
+     */
+    boolean flush()
+    throws IOException
+    {
+        synchronized (outputMonitor)
+        {
+            if (netOutput.position() > 0)
+            {
+                netOutput.flip();
+                try
+                {
+                    channel.write(netOutput);
+                }
+                finally
+                {
+                    netOutput.compact();
+                }
+            }
+            return netOutput.position() == 0;
+        }
+    }
+
+    /**
+     * Returns whether encrypted data is waiting for the socket to accept it.
+     *
+     * @return {@code true} if {@link #flush()} needs to be called
+     */
+    boolean hasPendingOutput()
+    {
+        synchronized (outputMonitor)
+        {
+            return netOutput.position() > 0;
+        }
+    }
+
+    /**
+     * Sends close_notify, if the socket will accept it immediately,
+     * and closes the socket.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        try
+        {
+            synchronized (outputMonitor)
+            {
+                engine.closeOutbound();
+                wrap(NO_DATA, 0, 1);
+                flush();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Couldn't send close_notify", e);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers,
+                                  int offset,
+                                  int length)
+    {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            remaining += buffers[i].remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Copies a buffer's contents, which are in write mode, to a larger one.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer,
+                                      int minCapacity)
+    {
+        int capacity = Math.max(minCapacity, buffer.capacity() * 2);
+        ByteBuffer larger = (buffer.isDirect() ?
+            ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
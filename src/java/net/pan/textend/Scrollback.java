@@ -0,0 +1,321 @@
+package net.pan.textend;
+
+import java.io.IOException;
+
+import java.util.Objects;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import netscape.javascript.JSObject;
+
+/**
+ * Keeps a connection's output document within its scrollback limit, by
+ * removing the oldest lines.  If the connection's settings ask for it,
+ * removed lines are archived to a temporary file, from which they can be
+ * restored a page at a time.
+ * <p>
+ * Each line in the document is a run of nodes ending with a {@code <br>}
+ * element.  Nodes after the last {@code <br>} make up the current,
+ * incomplete line, which is never removed.
+ * <p>
+ * All methods must be called on the JavaFX application thread.
+ *
+ * @see ConnectionInfo#scrollbackLimitProperty()
+ */
+class Scrollback
+{
+    private static final Logger logger =
+        Logger.getLogger(Scrollback.class.getName());
+
+    /** Number of archived lines restored at a time. */
+    private static final int PAGE_SIZE = 200;
+
+    private final int limit;
+
+    private final ScrollbackUnit unit;
+
+    /** Whether removed lines are archived;  cleared if archiving fails. */
+    private boolean archiving;
+
+    /** Created when first line is archived. */
+    private TextArchive archive;
+
+    /** Number of complete lines in document. */
+    private int lineCount;
+
+    /** Number of characters of text in document. */
+    private long length;
+
+    /**
+     * Index of first line in document, counting from the start of
+     * the session.  Lines before it are either archived or discarded.
+     */
+    private int firstLine;
+
+    /**
+     * Creates a scrollback which enforces a connection's settings.
+     * Settings are read once;  later changes have no effect.
+     *
+     * @param info connection whose scrollback settings will be used
+     */
+    Scrollback(ConnectionInfo info)
+    {
+        this.limit = info.getScrollbackLimit();
+        this.unit = Objects.requireNonNullElse(info.getScrollbackUnit(),
+            ScrollbackUnit.LINES);
+        this.archiving = info.isArchiveScrollback();
+    }
+
+    /**
+     * Counts nodes which are about to be appended to the document.
+     *
+     * @param nodes node whose children will be appended
+     */
+    void adding(Node nodes)
+    {
+        for (Node node = nodes.getFirstChild();
+             node != null;
+             node = node.getNextSibling())
+        {
+            count(node, 1);
+        }
+    }
+
+    private void count(Node node,
+                       int sign)
+    {
+        if (isLineEnd(node))
+        {
+            lineCount += sign;
+        }
+        length += sign * node.getTextContent().length();
+    }
+
+    private static boolean isLineEnd(Node node)
+    {
+        return node.getNodeType() == Node.ELEMENT_NODE &&
+            node.getNodeName().equalsIgnoreCase("br");
+    }
+
+    private boolean isOverLimit()
+    {
+        if (limit <= 0)
+        {
+            return false;
+        }
+
+        switch (unit)
+        {
+            case CHARACTERS:
+                return length > limit;
+            case LINES:
+            default:
+                return lineCount > limit;
+        }
+    }
+
+    /**
+     * Removes lines from the start of the document until it is within
+     * the scrollback limit.  Callers should not prune while the user is
+     * scrolled away from the end of the document, since the lines removed
+     * may be the ones being read.
+     *
+     * @param body element containing output
+     */
+    void prune(Element body)
+    {
+        int removed = 0;
+        while (isOverLimit())
+        {
+            Node end = body.getFirstChild();
+            while (end != null && !isLineEnd(end))
+            {
+                end = end.getNextSibling();
+            }
+            if (end == null)
+            {
+                // Only the incomplete line is left.
+                break;
+            }
+
+            boolean archive = archiving && isUnarchived(firstLine);
+            StringBuilder html = (archive ? new StringBuilder() : null);
+
+            Node node;
+            do
+            {
+                node = body.getFirstChild();
+                count(node, -1);
+                if (archive)
+                {
+                    html.append(toHTML(node));
+                }
+                body.removeChild(node);
+            }
+            while (node != end);
+
+            if (archive)
+            {
+                archive(html.toString());
+            }
+            firstLine++;
+            removed++;
+        }
+
+        if (removed > 0)
+        {
+            int count = removed;
+            logger.finer(() -> "Removed " + count + " lines;  "
+                + lineCount + " lines, " + length + " characters remain");
+        }
+    }
+
+    private boolean isUnarchived(int line)
+    {
+        return line >= (archive != null ? archive.size() : 0);
+    }
+
+    private void archive(String html)
+    {
+        try
+        {
+            if (archive == null)
+            {
+                archive = new TextArchive("scrollback");
+            }
+            archive.add(html);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING,
+                "Cannot archive scrollback;  old output will be discarded",
+                e);
+            close();
+        }
+    }
+
+    private static String toHTML(Node node)
+    {
+        if (node instanceof JSObject)
+        {
+            Object html = ((JSObject) node).getMember("outerHTML");
+            if (html instanceof String)
+            {
+                return (String) html;
+            }
+        }
+
+        return node.getTextContent().replace("&", "&amp;")
+            .replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Returns the index of the first line in the document, counting from
+     * the start of the session.
+     *
+     * @return number of lines removed from the start of the document
+     */
+    int getFirstLine()
+    {
+        return firstLine;
+    }
+
+    /**
+     * Whether any removed lines can be restored.
+     *
+     * @return true if {@link #restore restore} would add lines
+     */
+    boolean canRestore()
+    {
+        return archive != null && firstLine > 0;
+    }
+
+    /**
+     * Restores the most recently removed page of archived lines to the
+     * start of the document.  Restored lines count toward the limit, so
+     * they are removed again by the first call to {@link #prune prune}
+     * after the user returns to the end of the document.
+     *
+     * @param body element containing output
+     * @param linkInitializer called for each restored {@code <a>} element,
+     *                        since DOM event listeners are not archived
+     *
+     * @return number of lines restored
+     */
+    int restore(Element body,
+                Consumer<Element> linkInitializer)
+    {
+        if (!canRestore())
+        {
+            return 0;
+        }
+
+        int count = Math.min(PAGE_SIZE, firstLine);
+        StringBuilder html = new StringBuilder();
+        try
+        {
+            for (int i = firstLine - count; i < firstLine; i++)
+            {
+                html.append(archive.get(i));
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Cannot read scrollback archive", e);
+            close();
+            return 0;
+        }
+
+        ((JSObject) body).call("insertAdjacentHTML",
+            "afterbegin", html.toString());
+
+        int lines = 0;
+        for (Node node = body.getFirstChild();
+             node != null && lines < count;
+             node = node.getNextSibling())
+        {
+            count(node, 1);
+            if (isLineEnd(node))
+            {
+                lines++;
+            }
+            else if (node instanceof Element)
+            {
+                Element element = (Element) node;
+                if (element.getTagName().equalsIgnoreCase("a"))
+                {
+                    linkInitializer.accept(element);
+                }
+                NodeList links = element.getElementsByTagName("a");
+                int linkCount = links.getLength();
+                for (int i = 0; i < linkCount; i++)
+                {
+                    linkInitializer.accept((Element) links.item(i));
+                }
+            }
+        }
+
+        firstLine -= count;
+        return count;
+    }
+
+    /**
+     * Discards any archived lines, and stops archiving.
+     */
+    void close()
+    {
+        archiving = false;
+        if (archive != null)
+        {
+            archive.close();
+            archive = null;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package net.pan.textend;
+
+/**
+ * What a connection's scrollback limit measures.
+ *
+ * @see ConnectionInfo#scrollbackLimitProperty()
+ */
+public enum ScrollbackUnit
+{
+    /** Complete lines of output. */
+    LINES,
+    /** Characters of output text, not counting markup. */
+    CHARACTERS
+}
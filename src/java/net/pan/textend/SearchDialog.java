@@ -0,0 +1,228 @@
+package net.pan.textend;
+
+import java.text.MessageFormat;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.ResourceBundle;
+
+import java.util.function.IntPredicate;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import javafx.application.Platform;
+
+import javafx.geometry.Insets;
+
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+import javafx.stage.Modality;
+import javafx.stage.Window;
+
+/**
+ * Non-modal window which searches a connection's {@link SearchIndex} as
+ * the user types, and shows a chosen line of output.
+ */
+class SearchDialog
+{
+    private static final Logger logger =
+        Logger.getLogger(SearchDialog.class.getName());
+
+    /** Largest number of matching lines shown. */
+    private static final int MAX_RESULTS = 500;
+
+    private final SearchIndex index;
+
+    private final IntPredicate lineShower;
+
+    private final Dialog<Void> dialog;
+
+    private final TextField queryField;
+
+    private final ListView<SearchIndex.Hit> resultList;
+
+    private final Label statusLabel;
+
+    private final MessageFormat countFormat;
+
+    private final String noResultsMessage;
+
+    private final String removedMessage;
+
+    /**
+     * Creates a search window for one connection.
+     *
+     * @param index index to search
+     * @param lineShower scrolls to a line of this session's output, given
+     *                   its index, and returns false if line is no longer
+     *                   present
+     * @param connectionName name of connection, shown in title
+     * @param owner window which owns search window
+     */
+    SearchDialog(SearchIndex index,
+                 IntPredicate lineShower,
+                 String connectionName,
+                 Window owner)
+    {
+        this.index = Objects.requireNonNull(index, "Index cannot be null");
+        this.lineShower = Objects.requireNonNull(lineShower,
+            "Line shower cannot be null");
+
+        ResourceBundle res = ResourceBundle.getBundle(
+            SearchDialog.class.getPackage().getName() + ".Localization");
+
+        countFormat = new MessageFormat(res.getString("search.count"));
+        noResultsMessage = res.getString("search.noResults");
+        removedMessage = res.getString("search.removed");
+        MessageFormat lineFormat =
+            new MessageFormat(res.getString("search.line"));
+        String outputName = res.getString("search.output");
+
+        queryField = new TextField();
+        queryField.setPrefColumnCount(30);
+        Label queryLabel =
+            LabelFactory.createLabel(res.getString("search.query"),
+                queryField);
+
+        resultList = new ListView<>();
+        resultList.setCellFactory(v -> new ListCell<SearchIndex.Hit>()
+        {
+            @Override
+            protected void updateItem(SearchIndex.Hit hit,
+                                      boolean empty)
+            {
+                super.updateItem(hit, empty);
+                if (empty || hit == null)
+                {
+                    setText(null);
+                    return;
+                }
+
+                String source = (hit.getFile() != null ?
+                    hit.getFile().getFileName().toString() : outputName);
+                setText(lineFormat.format(new Object[] {
+                    source, hit.getLine() + 1, hit.getText() }));
+            }
+        });
+        resultList.setPrefWidth(600);
+
+        statusLabel = new Label();
+
+        HBox queryPane = new HBox(6, queryLabel, queryField);
+        HBox.setHgrow(queryField, Priority.ALWAYS);
+        BorderPane contents = new BorderPane(resultList,
+            queryPane, null, statusLabel, null);
+        BorderPane.setMargin(resultList, new Insets(6, 0, 6, 0));
+
+        dialog = new Dialog<>();
+        dialog.initOwner(owner);
+        dialog.initModality(Modality.NONE);
+        dialog.setResizable(true);
+        dialog.setTitle(MessageFormat.format(res.getString("search.title"),
+            connectionName));
+        dialog.getDialogPane().setContent(contents);
+        dialog.getDialogPane().getButtonTypes().setAll(ButtonType.CLOSE);
+
+        queryField.textProperty().addListener(
+            (obs, old, query) -> search(query));
+        queryField.setOnAction(e -> {
+            resultList.getSelectionModel().selectFirst();
+            showSelectedLine();
+        });
+        resultList.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.ENTER)
+            {
+                showSelectedLine();
+            }
+        });
+        resultList.setOnMouseClicked(e -> {
+            if (e.getButton() == MouseButton.PRIMARY &&
+                e.getClickCount() == 2)
+            {
+                showSelectedLine();
+            }
+        });
+    }
+
+    /**
+     * Shows the window, or brings it to the front if already showing.
+     */
+    void show()
+    {
+        if (dialog.isShowing())
+        {
+            Window window = dialog.getDialogPane().getScene().getWindow();
+            window.requestFocus();
+        }
+        else
+        {
+            dialog.show();
+            search(queryField.getText());
+        }
+        queryField.requestFocus();
+        queryField.selectAll();
+    }
+
+    void close()
+    {
+        dialog.close();
+    }
+
+    private void search(String query)
+    {
+        index.search(query, MAX_RESULTS).whenComplete((hits, e) -> {
+            if (e != null)
+            {
+                logger.log(Level.WARNING, "Search failed", e);
+                return;
+            }
+            Platform.runLater(() -> showResults(query, hits));
+        });
+    }
+
+    private void showResults(String query,
+                             List<SearchIndex.Hit> hits)
+    {
+        if (!query.equals(queryField.getText()))
+        {
+            // User has typed more since this search started.
+            return;
+        }
+
+        resultList.getItems().setAll(hits);
+        if (hits.isEmpty())
+        {
+            statusLabel.setText(query.isBlank() ? null : noResultsMessage);
+        }
+        else
+        {
+            statusLabel.setText(
+                countFormat.format(new Object[] { hits.size() }));
+        }
+    }
+
+    private void showSelectedLine()
+    {
+        SearchIndex.Hit hit = resultList.getSelectionModel().getSelectedItem();
+        if (hit == null || hit.getFile() != null)
+        {
+            return;
+        }
+
+        if (!lineShower.test(hit.getLine()))
+        {
+            statusLabel.setText(removedMessage);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package net.pan.textend;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.zip.GZIPInputStream;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Incremental inverted index of a connection's output lines, and of lines
+ * in session log files from earlier sessions.  Each line is broken into
+ * words (runs of letters and digits, compared without regard to case),
+ * and each word maps to a sorted list of the lines which contain it.
+ * A query matches lines containing all of its words;  the last word of a
+ * query also matches words which start with it, so results can be shown
+ * while the user types.
+ * <p>
+ * Lines are indexed, and queries answered, on a background thread
+ * belonging to the index, so neither the FX thread nor the socket reader
+ * waits on indexing, and a search in one connection never waits for
+ * another connection's log files to be indexed.  Line text is kept in a
+ * temporary file rather than in memory;  only word lists are held in
+ * memory.
+ */
+class SearchIndex
+{
+    private static final Logger logger =
+        Logger.getLogger(SearchIndex.class.getName());
+
+    /** Words longer than this are truncated. */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    /**
+     * Largest number of lines whose text is checked for a query's last
+     * word, rather than looking up every word which starts with it.
+     */
+    private static final int MAX_CHECKED_LINES = 10000;
+
+    /**
+     * A line which matches a query.
+     */
+    static final class Hit
+    {
+        private final Path file;
+
+        private final int line;
+
+        private final String text;
+
+        Hit(Path file,
+            int line,
+            String text)
+        {
+            this.file = file;
+            this.line = line;
+            this.text = text;
+        }
+
+        /**
+         * Returns the session log file containing the line.
+         *
+         * @return log file, or {@code null} if line is from this session's
+         *         output
+         */
+        Path getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Returns the index of the line in its source.
+         *
+         * @return zero-based line index, counting from the start of the
+         *         session or of the file
+         */
+        int getLine()
+        {
+            return line;
+        }
+
+        String getText()
+        {
+            return text;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getClass().getName() + "[" + file + ":" + line + " "
+                + Chat.escape(text) + "]";
+        }
+    }
+
+    /**
+     * Growable, ascending list of indexed line numbers.
+     */
+    private static class Postings
+    {
+        int[] lines = new int[4];
+
+        int size;
+
+        void add(int line)
+        {
+            if (size > 0 && lines[size - 1] == line)
+            {
+                return;
+            }
+            if (size == lines.length)
+            {
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+            lines[size++] = line;
+        }
+
+        /**
+         * Returns the greatest line in this list which is not greater than
+         * a given line.
+         *
+         * @return matching line, or -1 if there is none
+         */
+        int floor(int line)
+        {
+            int index = Arrays.binarySearch(lines, 0, size, line);
+            if (index < 0)
+            {
+                index = -index - 2;
+            }
+            return (index >= 0 ? lines[index] : -1);
+        }
+    }
+
+    /**
+     * Lines containing any of several words, all starting with the same
+     * query word.  Short prefixes can match thousands of words, so large
+     * unions are merged into a bit set once, rather than searching every
+     * member for each candidate line.
+     */
+    private static class PostingsUnion
+    {
+        /** Largest union searched member by member. */
+        static final int MAX_MEMBERS = 16;
+
+        private final Postings[] members;
+
+        /** All lines in union;  created when first needed. */
+        private BitSet merged;
+
+        final long size;
+
+        PostingsUnion(Collection<Postings> members)
+        {
+            this.members = members.toArray(new Postings[0]);
+            this.size = members.stream().mapToLong(p -> p.size).sum();
+        }
+
+        boolean isLarge()
+        {
+            return members.length > MAX_MEMBERS;
+        }
+
+        int floor(int line)
+        {
+            if (isLarge())
+            {
+                if (merged == null)
+                {
+                    merged = new BitSet();
+                    for (Postings member : members)
+                    {
+                        for (int i = 0; i < member.size; i++)
+                        {
+                            merged.set(member.lines[i]);
+                        }
+                    }
+                }
+                return merged.previousSetBit(line);
+            }
+
+            int floor = -1;
+            for (Postings member : members)
+            {
+                floor = Math.max(floor, member.floor(line));
+            }
+            return floor;
+        }
+    }
+
+    /** Indexes lines and answers queries for this index. */
+    private final ExecutorService indexer =
+        Executors.newSingleThreadExecutor(
+            ThreadMode.current().newThreadFactory("Textend search indexer"));
+
+    // All remaining fields are only used on the indexer thread.
+
+    private final NavigableMap<String, Postings> words = new TreeMap<>();
+
+    /** Text of every indexed line, or {@code null} if unavailable. */
+    private TextArchive texts;
+
+    /** Index of each indexed line in {@link #files}. */
+    private int[] lineSources = new int[1024];
+
+    /** Index of each indexed line within its source. */
+    private int[] sourceLines = new int[1024];
+
+    private int lineCount;
+
+    /** Source of indexed lines;  first element is {@code null}. */
+    private final List<Path> files = new ArrayList<>();
+
+    /** Number of lines of this session's output indexed so far. */
+    private int sessionLineCount;
+
+    private boolean closed;
+
+    SearchIndex()
+    {
+        files.add(null);
+    }
+
+    /**
+     * Queues the next line of this session's output to be indexed.
+     * Lines are numbered in the order they are added, starting at zero.
+     *
+     * @param text displayed text of line
+     */
+    void addLine(String text)
+    {
+        queue(() -> {
+            if (!closed)
+            {
+                index(text, 0, sessionLineCount++);
+            }
+        });
+    }
+
+    /**
+     * Queues the lines of session log files to be indexed.  Escape
+     * sequences are removed.  Files compressed with gzip are read
+     * transparently.
+     *
+     * @param logFiles files to index
+     */
+    void addLogFiles(List<Path> logFiles)
+    {
+        for (Path file : logFiles)
+        {
+            queue(() -> {
+                if (!closed)
+                {
+                    indexFile(file);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a task on the indexer thread, unless index has been disposed.
+     */
+    private void queue(Runnable task)
+    {
+        try
+        {
+            indexer.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.log(Level.FINE, "Index already disposed", e);
+        }
+    }
+
+    private void indexFile(Path file)
+    {
+        int source = files.size();
+        files.add(file);
+
+        AnsiParser parser = new AnsiParser();
+        TextAttributes attributes = new TextAttributes();
+
+        int count = 0;
+        try (InputStream in = openLogFile(file);
+             BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null && !closed)
+            {
+                attributes.clearText();
+                parser.parse(line, attributes);
+                index(attributes.getText(), source, count++);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Cannot index \"" + file + "\"", e);
+        }
+
+        int lines = count;
+        logger.fine(() -> "Indexed " + lines + " lines of \"" + file + "\"");
+    }
+
+    private static InputStream openLogFile(Path file)
+    throws IOException
+    {
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(".gz"))
+        {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    private void index(String text,
+                       int source,
+                       int sourceLine)
+    {
+        int line = lineCount;
+
+        if (texts == null)
+        {
+            try
+            {
+                texts = new TextArchive("search");
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.WARNING,
+                    "Cannot store search text;  search is unavailable", e);
+                close();
+                return;
+            }
+        }
+        try
+        {
+            texts.add(text);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING,
+                "Cannot store search text;  search is unavailable", e);
+            close();
+            return;
+        }
+
+        if (line == lineSources.length)
+        {
+            lineSources = Arrays.copyOf(lineSources, line * 2);
+            sourceLines = Arrays.copyOf(sourceLines, line * 2);
+        }
+        lineSources[line] = source;
+        sourceLines[line] = sourceLine;
+        lineCount++;
+
+        for (String word : toWords(text))
+        {
+            words.computeIfAbsent(word, w -> new Postings()).add(line);
+        }
+    }
+
+    private static List<String> toWords(String text)
+    {
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+
+        List<String> result = new ArrayList<>();
+        int len = lowerCase.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++)
+        {
+            boolean wordChar =
+                (i < len && Character.isLetterOrDigit(lowerCase.charAt(i)));
+            if (wordChar && start < 0)
+            {
+                start = i;
+            }
+            else if (!wordChar && start >= 0)
+            {
+                result.add(lowerCase.substring(start,
+                    Math.min(i, start + MAX_WORD_LENGTH)));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the most recent lines which match a query.  The query is
+     * answered after all lines queued before it have been indexed.
+     *
+     * @param query words to find
+     * @param limit maximum number of matching lines to return
+     *
+     * @return matching lines, newest first;  empty if query has no words
+     */
+    CompletableFuture<List<Hit>> search(String query,
+                                        int limit)
+    {
+        try
+        {
+            return CompletableFuture.supplyAsync(() -> find(query, limit),
+                indexer);
+        }
+        catch (RejectedExecutionException e)
+        {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+    }
+
+    private List<Hit> find(String query,
+                           int limit)
+    {
+        List<String> queryWords = toWords(query);
+        if (queryWords.isEmpty() || closed)
+        {
+            return Collections.emptyList();
+        }
+
+        long start = System.nanoTime();
+
+        int last = queryWords.size() - 1;
+        List<PostingsUnion> sets = new ArrayList<>();
+        for (int i = 0; i < last; i++)
+        {
+            Postings postings = words.get(queryWords.get(i));
+            if (postings == null)
+            {
+                return Collections.emptyList();
+            }
+            sets.add(new PostingsUnion(List.of(postings)));
+        }
+        sets.sort(Comparator.comparingLong(set -> set.size));
+
+        String prefix = queryWords.get(last);
+        Collection<Postings> prefixMatches = words.subMap(prefix, true,
+            prefix + Character.MAX_VALUE, false).values();
+        if (prefixMatches.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        // A short last word can be the start of many thousands of words.
+        // If other words narrow the search to a few lines, it is faster
+        // to check those lines' text than to merge all those words' lines.
+        boolean manyMatches = prefixMatches.stream()
+            .limit(PostingsUnion.MAX_MEMBERS + 1)
+            .count() > PostingsUnion.MAX_MEMBERS;
+        if (manyMatches && !sets.isEmpty() &&
+            sets.get(0).size <= MAX_CHECKED_LINES)
+        {
+            logger.finer(() -> "Checking text of lines for \""
+                + queryWords.get(last) + "\"");
+        }
+        else
+        {
+            sets.add(new PostingsUnion(prefixMatches));
+            sets.sort(Comparator.comparingLong(set -> set.size));
+            prefix = null;
+        }
+
+        // Walk backward through lines, skipping to the greatest line
+        // which could be in every set, until enough lines are found.
+        List<Hit> hits = new ArrayList<>();
+        int line = lineCount - 1;
+        while (line >= 0 && hits.size() < limit)
+        {
+            int candidate = line;
+            for (PostingsUnion set : sets)
+            {
+                candidate = set.floor(candidate);
+                if (candidate < 0)
+                {
+                    break;
+                }
+            }
+            if (candidate < 0)
+            {
+                break;
+            }
+
+            if (candidate == line)
+            {
+                Hit hit = toHit(line);
+                if (hit == null)
+                {
+                    break;
+                }
+                if (prefix == null ||
+                    hasWordStartingWith(hit.getText(), prefix))
+                {
+                    hits.add(hit);
+                }
+                line--;
+            }
+            else
+            {
+                line = candidate;
+            }
+        }
+
+        long time = System.nanoTime() - start;
+        logger.fine(() -> "Found " + hits.size() + " lines matching \""
+            + query + "\" among " + lineCount + " lines in "
+            + (time / 1_000_000) + " ms");
+
+        return hits;
+    }
+
+    private static boolean hasWordStartingWith(String text,
+                                               String prefix)
+    {
+        for (String word : toWords(text))
+        {
+            if (word.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Hit toHit(int line)
+    {
+        try
+        {
+            return new Hit(files.get(lineSources[line]), sourceLines[line],
+                texts.get(line));
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Cannot read search text", e);
+            return null;
+        }
+    }
+
+    /**
+     * Discards the index and its stored text, and stops its thread.
+     * Returns immediately.
+     */
+    void dispose()
+    {
+        queue(this::close);
+        indexer.shutdown();
+    }
+
+    private void close()
+    {
+        closed = true;
+        words.clear();
+        if (texts != null)
+        {
+            texts.close();
+            texts = null;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package net.pan.textend;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import java.util.zip.GZIPOutputStream;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Writes a connection's received text to log files.  Text is handed to
+ * {@link #write write}, which never blocks;  a background thread writes
+ * each batch of queued text, and forces it to disk at most once per
+ * sync interval.  If the queue is full because the disk cannot keep up,
+ * text is dropped and a warning is logged, rather than slowing the
+ * connection.
+ * <p>
+ * Files are rotated when they reach the connection's rotation size or
+ * age.  Each closed file is compressed with gzip in the background.
+ * <p>
+ * Three system properties tune the writer:
+ * {@code net.pan.textend.SessionLog.queueCapacity}, the number of received
+ * chunks which can wait to be written (default 4096),
+ * {@code net.pan.textend.SessionLog.syncInterval}, the longest time in
+ * milliseconds written text may go without being forced to disk
+ * (default 1000), and
+ * {@code net.pan.textend.SessionLog.exitTimeout}, the longest time in
+ * milliseconds the application waits at exit for logs to be written
+ * and compressed (default 5000).
+ *
+ * @see ConnectionInfo#logSessionProperty()
+ */
+class SessionLog
+{
+    private static final Logger logger =
+        Logger.getLogger(SessionLog.class.getName());
+
+    private static final int QUEUE_CAPACITY = Math.max(1,
+        Integer.getInteger(SessionLog.class.getName() + ".queueCapacity",
+            4096));
+
+    private static final long SYNC_INTERVAL = Math.max(1,
+        Integer.getInteger(SessionLog.class.getName() + ".syncInterval",
+            1000));
+
+    /**
+     * Longest time, in milliseconds, to wait at exit for queued text to be
+     * written and files to be compressed.
+     */
+    static final long EXIT_TIMEOUT = Math.max(0,
+        Integer.getInteger(SessionLog.class.getName() + ".exitTimeout",
+            5000));
+
+    private static final DateTimeFormatter FILE_TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /** Compresses rotated files for all session logs. */
+    private static final ExecutorService compressor =
+        Executors.newSingleThreadExecutor(
+            ThreadMode.current().newThreadFactory("Textend log compressor"));
+
+    /** Queued after all other text when log is closed. */
+    private static final String END = new String("");
+
+    private final BlockingQueue<String> queue =
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final Path dir;
+
+    private final String baseName;
+
+    private final SessionLogFormat format;
+
+    /** Size in bytes at which files are rotated, or 0. */
+    private final long rotationSize;
+
+    /** Age in milliseconds at which files are rotated, or 0. */
+    private final long rotationInterval;
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /** Number of received chunks dropped since the last warning. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Remaining fields are only used by writer thread.
+
+    private Segment plainSegment;
+
+    private Segment ansiSegment;
+
+    /** Time at which current files were created. */
+    private long segmentStart;
+
+    private long lastSync;
+
+    /** Removes escape sequences for plain text log. */
+    private final AnsiParser ansiParser = new AnsiParser();
+
+    private final TextAttributes textAttributes = new TextAttributes();
+
+    /**
+     * Starts a session log for a connection.  Files are not created until
+     * text is received.  Settings are read once;  later changes have
+     * no effect.
+     *
+     * @param info connection whose logging settings will be used
+     */
+    SessionLog(ConnectionInfo info)
+    {
+        this.dir = directory(info);
+        this.baseName = baseName(info);
+        this.format = format(info);
+        this.rotationSize =
+            Math.max(0, info.getLogRotationSize()) * 1024L * 1024L;
+        this.rotationInterval = Math.max(0,
+            TimeUnit.HOURS.toMillis(info.getLogRotationInterval()));
+
+        writer = ThreadMode.current().newThreadFactory(
+            "Textend session log " + baseName).newThread(this::run);
+        writer.start();
+    }
+
+    private static Path directory(ConnectionInfo info)
+    {
+        String dirName = info.getLogDirectory();
+        return (dirName != null && !dirName.isEmpty() ?
+            Paths.get(dirName) :
+            SystemDirectories.dataDir("Textend").resolve("logs"));
+    }
+
+    private static String baseName(ConnectionInfo info)
+    {
+        String name = Objects.toString(info.getName(), info.getHost());
+        return Objects.toString(name, "session")
+            .replaceAll("[^\\p{L}\\p{N}._-]+", "_");
+    }
+
+    private static SessionLogFormat format(ConnectionInfo info)
+    {
+        return Objects.requireNonNullElse(info.getLogFormat(),
+            SessionLogFormat.PLAIN);
+    }
+
+    /**
+     * Lists log files already written for a connection, oldest first.
+     * If the connection logs plain text, only plain text files are
+     * listed;  otherwise only files with escape sequences are listed.
+     * Both compressed and uncompressed files are included.
+     *
+     * @param info connection whose logs are to be found
+     *
+     * @return existing log files, possibly empty
+     *
+     * @throws IOException if log directory cannot be read
+     */
+    static List<Path> findLogFiles(ConnectionInfo info)
+    throws IOException
+    {
+        Path dir = directory(info);
+        if (!Files.isDirectory(dir))
+        {
+            return Collections.emptyList();
+        }
+
+        // Timestamp is matched exactly, so logs of a connection whose
+        // name starts with this one's name plus a hyphen are excluded.
+        // Names are formed by openSegment.
+        boolean ansi = (format(info) == SessionLogFormat.ANSI);
+        Pattern namePattern = Pattern.compile(
+            Pattern.quote(baseName(info)) + "-\\d{8}-\\d{6}(-\\d+)?"
+            + Pattern.quote(ansi ? ".ansi.log" : ".log") + "(\\.gz)?");
+        try (Stream<Path> files = Files.list(dir))
+        {
+            // Names contain creation time, so they sort chronologically,
+            // except for files rotated within the same second.
+            return files.filter(file -> namePattern.matcher(
+                file.getFileName().toString()).matches())
+                .sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Queues received text to be logged.  Never blocks;  if the queue is
+     * full, the text is discarded.
+     *
+     * @param text decoded text, including any escape sequences
+     */
+    void write(String text)
+    {
+        if (closed || text.isEmpty())
+        {
+            return;
+        }
+
+        if (!queue.offer(text) && dropped.getAndIncrement() == 0)
+        {
+            logger.warning(() -> "Session log for " + baseName
+                + " cannot keep up;  discarding received text");
+        }
+    }
+
+    /**
+     * Writes all queued text, then closes and compresses the log files.
+     * Returns immediately;  the work is done by the writer thread.
+     */
+    void close()
+    {
+        closed = true;
+        // If the queue is full, the writer is awake anyway, and will
+        // see the flag once the queue is empty.
+        queue.offer(END);
+    }
+
+    /**
+     * Waits for the writer thread to finish after {@link #close()}, and for
+     * closed files to be compressed.  Since the background threads do not
+     * keep the application alive, this must be called before exiting,
+     * or the end of the log may be lost.
+     *
+     * @param deadline {@link System#nanoTime()} value after which to stop
+     *                 waiting
+     *
+     * @return {@code true} if all text was written and compressed in time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitClose(long deadline)
+    throws InterruptedException
+    {
+        TimeUnit.NANOSECONDS.timedJoin(writer,
+            Math.max(1, deadline - System.nanoTime()));
+        if (writer.isAlive())
+        {
+            return false;
+        }
+
+        // Compressor runs tasks in order, so all of this log's files
+        // have been compressed when this task runs.
+        try
+        {
+            compressor.submit(() -> { }).get(
+                Math.max(1, deadline - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+            return true;
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            return false;
+        }
+    }
+
+    private void run()
+    {
+        List<String> batch = new ArrayList<>();
+        try
+        {
+            boolean ending = false;
+            while (!ending)
+            {
+                String first = queue.poll(SYNC_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+                if (first != null)
+                {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+
+                for (String text : batch)
+                {
+                    if (text == END)
+                    {
+                        ending = true;
+                    }
+                    else
+                    {
+                        append(text);
+                    }
+                }
+                batch.clear();
+
+                long count = dropped.getAndSet(0);
+                if (count > 0)
+                {
+                    appendNote("[" + count + " received chunks not logged]");
+                }
+
+                ending |= (closed && queue.isEmpty());
+                if (!ending)
+                {
+                    sync();
+                    if (isRotationDue())
+                    {
+                        closeSegments();
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING,
+                "Cannot write session log;  logging stopped", e);
+        }
+        catch (InterruptedException e)
+        {
+            logger.log(Level.FINE, "Session log interrupted", e);
+        }
+        finally
+        {
+            closed = true;
+            queue.clear();
+            closeSegments();
+        }
+    }
+
+    private void append(String text)
+    throws IOException
+    {
+        if (format != SessionLogFormat.ANSI)
+        {
+            textAttributes.clearText();
+            ansiParser.parse(text, textAttributes);
+            String plain = textAttributes.getText().replace("\r", "");
+            if (plainSegment == null)
+            {
+                plainSegment = openSegment(".log");
+            }
+            plainSegment.write(plain);
+        }
+        if (format != SessionLogFormat.PLAIN)
+        {
+            if (ansiSegment == null)
+            {
+                ansiSegment = openSegment(".ansi.log");
+            }
+            ansiSegment.write(text);
+        }
+    }
+
+    private void appendNote(String note)
+    throws IOException
+    {
+        String line = System.lineSeparator() + note + System.lineSeparator();
+        if (plainSegment != null)
+        {
+            plainSegment.write(line);
+        }
+        if (ansiSegment != null)
+        {
+            ansiSegment.write(line);
+        }
+    }
+
+    private Segment openSegment(String suffix)
+    throws IOException
+    {
+        if (plainSegment == null && ansiSegment == null)
+        {
+            segmentStart = System.currentTimeMillis();
+        }
+
+        Files.createDirectories(dir);
+        String name = baseName + "-" + LocalDateTime.now().format(
+            FILE_TIME_FORMAT);
+        for (int i = 0; ; i++)
+        {
+            Path file = dir.resolve(name + (i > 0 ? "-" + i : "") + suffix);
+            if (Files.exists(toCompressed(file)))
+            {
+                continue;
+            }
+            try
+            {
+                return new Segment(file);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // Rotated more than once in the same second.
+                logger.log(Level.FINEST, "Skipping existing " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes buffered text, and forces it to disk if the sync interval
+     * has passed.
+     */
+    private void sync()
+    throws IOException
+    {
+        long now = System.currentTimeMillis();
+        boolean force = (now - lastSync >= SYNC_INTERVAL);
+        if (plainSegment != null)
+        {
+            plainSegment.flush(force);
+        }
+        if (ansiSegment != null)
+        {
+            ansiSegment.flush(force);
+        }
+        if (force)
+        {
+            lastSync = now;
+        }
+    }
+
+    private boolean isRotationDue()
+    throws IOException
+    {
+        if (plainSegment == null && ansiSegment == null)
+        {
+            return false;
+        }
+
+        if (rotationInterval > 0 &&
+            System.currentTimeMillis() - segmentStart >= rotationInterval)
+        {
+            return true;
+        }
+
+        return rotationSize > 0 &&
+            ((plainSegment != null && plainSegment.size() >= rotationSize) ||
+             (ansiSegment != null && ansiSegment.size() >= rotationSize));
+    }
+
+    /**
+     * Closes current files, and compresses them in the background.
+     * Never throws;  failures are logged.
+     */
+    private void closeSegments()
+    {
+        for (Segment segment : new Segment[] { plainSegment, ansiSegment })
+        {
+            if (segment != null)
+            {
+                try
+                {
+                    segment.close();
+                    compressor.execute(() -> compress(segment.file));
+                }
+                catch (IOException e)
+                {
+                    logger.log(Level.WARNING,
+                        "Cannot close \"" + segment.file + "\"", e);
+                }
+            }
+        }
+        plainSegment = null;
+        ansiSegment = null;
+    }
+
+    private static Path toCompressed(Path file)
+    {
+        return file.resolveSibling(file.getFileName() + ".gz");
+    }
+
+    private static void compress(Path file)
+    {
+        Path compressed = toCompressed(file);
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new GZIPOutputStream(
+                Files.newOutputStream(compressed,
+                    StandardOpenOption.CREATE_NEW)))
+        {
+            in.transferTo(out);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Cannot compress \"" + file + "\"", e);
+            return;
+        }
+
+        try
+        {
+            Files.delete(file);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Cannot delete \"" + file + "\""
+                + " after compressing it", e);
+        }
+    }
+
+    /**
+     * One open log file.
+     */
+    private static class Segment
+    {
+        final Path file;
+
+        private final FileChannel channel;
+
+        private final Writer writer;
+
+        Segment(Path file)
+        throws IOException
+        {
+            this.file = file;
+            this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.writer = new BufferedWriter(new OutputStreamWriter(
+                Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+
+            logger.fine(() -> "Logging session to \"" + file + "\"");
+        }
+
+        void write(String text)
+        throws IOException
+        {
+            writer.write(text);
+        }
+
+        void flush(boolean force)
+        throws IOException
+        {
+            writer.flush();
+            if (force)
+            {
+                channel.force(false);
+            }
+        }
+
+        /** Returns number of bytes written to file so far. */
+        long size()
+        throws IOException
+        {
+            return channel.size();
+        }
+
+        void close()
+        throws IOException
+        {
+            flush(true);
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package net.pan.textend;
+
+/**
+ * What a session log records.
+ *
+ * @see ConnectionInfo#logFormatProperty()
+ */
+public enum SessionLogFormat
+{
+    /** Received text with escape sequences removed. */
+    PLAIN,
+    /** Received text exactly as decoded, including escape sequences. */
+    ANSI,
+    /** Both {@link #PLAIN} and {@link #ANSI}, in separate files. */
+    BOTH
+}
@@ -0,0 +1,150 @@
+package net.pan.textend;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import java.util.logging.Logger;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import netscape.javascript.JSException;
+import netscape.javascript.JSObject;
+
+/**
+ * Gives each distinct style used in an output document a generated CSS
+ * class, and adds a rule for that class to a style sheet in the document.
+ * Elements then carry a short class name instead of an inline style, so
+ * WebKit parses and stores each style only once.
+ * <p>
+ * Rules are never removed, since lines pruned from the document may be
+ * restored with their class names.  To keep the style sheet from growing
+ * without limit, such as when 24-bit color makes nearly every run's style
+ * distinct, at most {@value #MAX_RULES} rules are added to a document;
+ * styles first seen after that are applied inline.
+ * <p>
+ * The document must contain a {@code <style>} element with the ID given
+ * to the constructor.  If it does not, styles are applied inline.
+ * All methods must be called on the JavaFX application thread.
+ */
+class StyleRegistry
+{
+    private static final Logger logger =
+        Logger.getLogger(StyleRegistry.class.getName());
+
+    /** Largest number of rules added to one document's style sheet. */
+    private static final int MAX_RULES = 4096;
+
+    private final String styleElementID;
+
+    /** Class name assigned to each style. */
+    private final Map<String, String> classNames = new HashMap<>();
+
+    /** Document whose style sheet holds rules for {@link #classNames}. */
+    private Document document;
+
+    /** CSSStyleSheet object of document, or {@code null} if unavailable. */
+    private JSObject sheet;
+
+    /** Whether {@link #MAX_RULES} has been reached for document. */
+    private boolean full;
+
+    /**
+     * Creates a registry for documents containing a particular
+     * {@code <style>} element.
+     *
+     * @param styleElementID ID of {@code <style>} element to which
+     *                       rules are added
+     */
+    StyleRegistry(String styleElementID)
+    {
+        this.styleElementID = styleElementID;
+    }
+
+    /**
+     * Applies a style to an element, by class if possible.
+     *
+     * @param element element to style
+     * @param style CSS declarations;  if empty, element is unchanged
+     */
+    void applyStyle(Element element,
+                    String style)
+    {
+        if (style.isEmpty())
+        {
+            return;
+        }
+
+        String className = getClassName(element.getOwnerDocument(), style);
+        if (className != null)
+        {
+            element.setAttribute("class", className);
+        }
+        else
+        {
+            element.setAttribute("style", style);
+        }
+    }
+
+    private String getClassName(Document doc,
+                                String style)
+    {
+        if (doc != document)
+        {
+            document = doc;
+            classNames.clear();
+            full = false;
+            sheet = findSheet(doc);
+        }
+
+        if (sheet == null)
+        {
+            return null;
+        }
+
+        String className = classNames.get(style);
+        if (className == null)
+        {
+            if (classNames.size() >= MAX_RULES)
+            {
+                if (!full)
+                {
+                    full = true;
+                    logger.fine("Style sheet full;  using inline styles");
+                }
+                return null;
+            }
+
+            className = "s" + classNames.size();
+            String rule = "." + className + " { " + style + " }";
+            try
+            {
+                sheet.call("insertRule", rule, classNames.size());
+            }
+            catch (JSException e)
+            {
+                logger.fine(() -> "Cannot add rule \"" + rule + "\": " + e);
+                return null;
+            }
+            classNames.put(style, className);
+        }
+        return className;
+    }
+
+    private JSObject findSheet(Document doc)
+    {
+        Element styleElement = doc.getElementById(styleElementID);
+        if (styleElement instanceof JSObject)
+        {
+            Object sheet = ((JSObject) styleElement).getMember("sheet");
+            if (sheet instanceof JSObject)
+            {
+                return (JSObject) sheet;
+            }
+        }
+
+        logger.warning(() -> "No style sheet with ID \"" + styleElementID
+            + "\" in document;  using inline styles");
+        return null;
+    }
+}
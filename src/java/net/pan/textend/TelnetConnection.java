@@ -7,57 +7,127 @@ import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
+import java.nio.CharBuffer;
+
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
 import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.channels.SocketChannel;
 
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.util.function.Consumer;
 
+import java.util.regex.Pattern;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 /**
- * Implements telnet protocol over a socket.  The entire session is managed
- * in the {@link #call()} method.
+ * Implements telnet protocol over a socket.  Reading begins when
+ * {@link #start()} is called, and continues until the connection closes.
+ * <p>
+ * Connections use a non-blocking {@code SocketChannel}, which is
+ * serviced by the {@link ConnectionMultiplexer} thread shared by all
+ * connections;  SSL connections add an {@link SSLChannel} on top of it.
+ * Connections in {@link ThreadMode#VIRTUAL} mode use a blocking socket,
+ * with a read timeout for prompt detection, and need a thread of their own.
  */
 class TelnetConnection
-implements Callable<Void>
 {
     private static final Logger logger =
         Logger.getLogger(TelnetConnection.class.getName());
 
-    // TODO: configurable (per world?)
-    private static final int PROMPT_TIMEOUT = Math.max(250, Integer.getInteger(
-        TelnetConnection.class.getPackage().getName() + ".promptThreshold",
-        2000));
+    /**
+     * Longest time, in milliseconds, a partial line waits for the rest of
+     * its line before being conveyed as a prompt, unless
+     * {@link #setPromptTimeout} is called.
+     */
+    private static final int DEFAULT_PROMPT_TIMEOUT = Math.max(
+        PromptTimeoutEstimator.MIN_TIMEOUT, Integer.getInteger(
+            TelnetConnection.class.getPackage().getName() + ".promptThreshold",
+            2000));
 
     /** Interpret As Command. */
     private static final int IAC = 255;
 
+    private static final int WRITE_BUFFER_SIZE = 4096;
+
+    /**
+     * Longest subnegotiation payload kept;  longer ones are discarded,
+     * so a misbehaving talker cannot make the client buffer without limit.
+     */
+    private static final int SUBNEGOTIATION_LIMIT = Math.max(64,
+        Integer.getInteger(
+            TelnetConnection.class.getPackage().getName()
+                + ".subnegotiationLimit",
+            256 * 1024));
+
+    /**
+     * GMCP packages, with versions, which client asks talker to send
+     * once GMCP is in effect.
+     */
+    private static final String[] GMCP_PACKAGES = System.getProperty(
+        TelnetConnection.class.getPackage().getName() + ".gmcpPackages",
+        "Char 1,Char.Skills 1,Char.Items 1,Comm.Channel 1,Room 1")
+            .split("\\s*,\\s*");
+
+    /**
+     * MSDP variables which client asks talker to report once MSDP
+     * is in effect.
+     */
+    private static final String[] MSDP_VARIABLES = System.getProperty(
+        TelnetConnection.class.getPackage().getName() + ".msdpReport",
+        "CHARACTER_NAME,HEALTH,HEALTH_MAX,MANA,MANA_MAX,"
+        + "MOVEMENT,MOVEMENT_MAX,ROOM").split("\\s*,\\s*");
+
+    /**
+     * Longest incomplete multi-byte sequence held back for the next text.
+     * Far longer than any charset's encoding of one character.
+     */
+    private static final int UNDECODED_BYTES_CAPACITY = 16;
+
+    /** Initial capacity of buffer holding a subnegotiation payload. */
+    private static final int SUBNEGOTIATION_BUFFER_SIZE = 1024;
+
+    /** Sent after each record when END-OF-RECORD is in effect. */
+    private static final ByteBuffer EOR_TRAILER =
+        ByteBuffer.wrap(new byte[] { (byte) IAC, (byte) Command.EOR })
+            .asReadOnlyBuffer();
+
     private static class Command
     {
         /** End of Record. */
@@ -122,6 +192,16 @@ implements Callable<Void>
         /** Negotiation About Window Size. */
         static final int NAWS = 31;
         static final int LINEMODE = 34;
+        /** Character set negotiation (RFC 2066). */
+        static final int CHARSET = 42;
+        /** MUD Server Data Protocol. */
+        static final int MSDP = 69;
+        /** MUD Client Compression Protocol v2, for talker's output. */
+        static final int COMPRESS2 = 86;
+        /** MUD Client Compression Protocol v3, for client's output. */
+        static final int COMPRESS3 = 87;
+        /** Generic MUD Communication Protocol. */
+        static final int GMCP = 201;
 
         static final TelnetByteNames names = new TelnetByteNames(Option.class);
 
@@ -131,6 +211,19 @@ implements Callable<Void>
         }
     }
 
+    /**
+     * @see <a href="http://tools.ietf.org/html/rfc2066">RFC 2066 - TELNET CHARSET Option</a>
+     */
+    private interface CharsetCommand
+    {
+        int REQUEST = 1;
+        int ACCEPTED = 2;
+        int REJECTED = 3;
+    }
+
+    /** Precedes translation table version in a CHARSET request. */
+    private static final String TTABLE_MARKER = "[TTABLE]";
+
     /**
      * @see <a href="http://tools.ietf.org/html/rfc1184">RFC 1184 - Telnet Linemode Option</a>
      */
@@ -154,39 +247,267 @@ implements Callable<Void>
     private enum IACResult
     {
         NORMAL,
-        NEED_FURTHER_READ,
-        EOF
+        NEED_FURTHER_READ
+    }
+
+    /** Progress through a subnegotiation (IAC SB option ... IAC SE). */
+    private enum SubnegotiationState
+    {
+        /** Not in a subnegotiation. */
+        NONE,
+        /** IAC SB received;  option is next. */
+        OPTION,
+        /** Receiving payload. */
+        DATA,
+        /** IAC received in payload;  SE, or a second IAC, is next. */
+        DATA_IAC
+    }
+
+    /**
+     * Acts on the payload of a subnegotiation for a particular option.
+     */
+    @FunctionalInterface
+    private interface SubnegotiationHandler
+    {
+        /**
+         * Handles a complete subnegotiation.
+         *
+         * @param data payload, with doubled IACs undoubled, and without
+         *             the option or the surrounding IAC SB and IAC SE;
+         *             valid only until this method returns
+         *
+         * @throws IOException if a response cannot be sent
+         */
+        void handle(ByteBuffer data)
+        throws IOException;
     }
 
-    private final ExecutorService socketReadExecutor;
+    /**
+     * SSL contexts, by protocol, which require valid certificates.
+     * Contexts are reused because each keeps a cache of sessions, which
+     * lets later connections to the same host and port resume a session
+     * instead of performing a full handshake.
+     * Guarded by {@code TelnetConnection.class}.
+     */
+    private static final Map<SSLProtocol, SSLContext> validatingSSLContexts =
+        new EnumMap<>(SSLProtocol.class);
+
+    /**
+     * SSL contexts, by protocol, which accept any certificate.
+     * Guarded by {@code TelnetConnection.class}.
+     */
+    private static final Map<SSLProtocol, SSLContext> trustingSSLContexts =
+        new EnumMap<>(SSLProtocol.class);
+
+    /** Runs read loops of blocking connections. */
+    private static final ExecutorService blockingReaders =
+        Executors.newCachedThreadPool(
+            ThreadMode.current().newThreadFactory("Textend socket reader"));
 
     private final Object writeMonitor = new Object();
 
     private final Closeable connection;
 
+    /**
+     * Non-blocking channel serviced by {@link ConnectionMultiplexer},
+     * or {@code null} if connection is a blocking socket.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * SSL layer over {@link #channel}, or {@code null} if connection is
+     * plain or is a blocking socket.
+     */
+    private final SSLChannel sslChannel;
+
+    /**
+     * Where {@link #sendGathered} writes:  {@link #channel}, or
+     * {@link #sslChannel} if there is one.
+     */
+    private final GatheringByteChannel gatheringOutput;
+
+    /** Blocking socket, or {@code null} if connection is a channel. */
+    private final Socket socket;
+
+    /**
+     * Outgoing data which the socket could not accept immediately, waiting
+     * to be written by {@link ConnectionMultiplexer}.  Only used for
+     * non-blocking channels;  guarded by {@link #writeMonitor}.
+     */
+    private final Queue<ByteBuffer> pendingOutput = new ArrayDeque<>();
+
+    /**
+     * Reused for outgoing text which needs IAC escaping, and for
+     * assembling writes to a blocking socket.
+     * Guarded by {@link #writeMonitor}.
+     */
+    private ByteBuffer writeBuffer =
+        ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    /** Completes when connection closes. */
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
     private final SocketAddress address;
 
     private final int socketReceiveBufferSize;
 
-    private final Charset charset;
+    /** Character set given when connection was created. */
+    private final Charset configuredCharset;
+
+    /**
+     * Character set of text currently in effect:  the configured one,
+     * or UTF-8 if talker has agreed to it in binary mode.
+     * Changed only by reading thread.
+     */
+    private volatile Charset charset;
+
+    /**
+     * Told on reading thread whenever {@link #charset} changes;
+     * may be {@code null}.
+     */
+    private volatile Consumer<Charset> charsetListener;
+
+    /** Whether talker sends binary data.  Used only by reading thread. */
+    private boolean binaryInput;
+
+    /** Whether client sends binary data.  Used only by reading thread. */
+    private boolean binaryOutput;
+
+    /**
+     * Whether client has sent DO BINARY and awaits the reply.
+     * Used only by reading thread.
+     */
+    private boolean binaryInputRequested;
+
+    /**
+     * Whether client has sent WILL BINARY and awaits the reply.
+     * Used only by reading thread.
+     */
+    private boolean binaryOutputRequested;
+
+    /**
+     * Character set talker agreed to with CHARSET option, or {@code null}.
+     * Used only by reading thread.
+     */
+    private Charset negotiatedCharset;
+
+    private final Consumer<CharSequence> readListener;
+
+    /**
+     * Decodes received text.  Replaced if {@link #charset} changes.
+     * Used only by reading thread.
+     */
+    private CharsetDecoder textDecoder;
+
+    /**
+     * Incomplete multi-byte sequence at the end of the most recently
+     * decoded text, which is completed by the start of the next text.
+     * In write mode.  Used only by reading thread.
+     */
+    private final ByteBuffer undecodedBytes =
+        ByteBuffer.allocate(UNDECODED_BYTES_CAPACITY);
 
-    private final Consumer<String> readListener;
+    /**
+     * Holds each decoded text while read listener sees it.
+     * Used only by reading thread.
+     */
+    private CharBuffer decodedText;
 
     private final ReadableByteChannel input;
 
     private final WritableByteChannel output;
 
-    private boolean readyToProcessRead;
+    private ReadState state;
+
+    /** Whether a partial line is waiting to be conveyed as a prompt. */
+    private boolean awaitingPrompt;
+
+    /** {@code System.nanoTime()} at which a partial line is a prompt. */
+    private long promptDeadline;
+
+    /** Decides how long a partial line waits.  Used by reading thread. */
+    private PromptTimeoutEstimator promptTimeout =
+        new PromptTimeoutEstimator(DEFAULT_PROMPT_TIMEOUT, true);
+
+    /**
+     * Whether talker has marked a prompt with GA or EOR, and so probably
+     * marks all of them.  Used only by reading thread.
+     */
+    private boolean promptsMarked;
+
+    /**
+     * Whether the most recent data left a partial line, whose continuation
+     * has not arrived yet.  Used only by reading thread.
+     */
+    private boolean partialLinePending;
+
+    /**
+     * {@code System.nanoTime()} of most recent data which left a partial
+     * line.  Used only by reading thread.
+     */
+    private long partialLineArrival;
+
+    /**
+     * Whether client has sent text since the most recent partial line,
+     * in which case the next data is probably a response to that text
+     * rather than the rest of the line.
+     */
+    private volatile boolean wroteSincePartialLine;
 
     /** Set, but not currently used. */
     private boolean echo = true;
 
     private boolean endOfRecord = false;
 
+    /**
+     * Receives GMCP and MSDP messages on the reading thread;
+     * {@code null} if those options are to be refused.
+     */
+    private volatile Consumer<OutOfBandMessage> outOfBandListener;
+
+    /** Whether talker may start MCCP compression in either direction. */
+    private volatile boolean compressionAllowed = true;
+
+    /**
+     * Decompresses received data while MCCP2 compression is in effect;
+     * otherwise {@code null}.  Used only by reading thread.
+     */
+    private Inflater inflater;
+
+    /**
+     * Received data not yet decompressed, or received after compression
+     * ended and not yet moved to read buffer;  {@code null} if
+     * compression has never started, or all such data has been moved.
+     * Used only by reading thread.
+     */
+    private ByteBuffer compressedInput;
+
+    /**
+     * Compresses sent data while MCCP3 compression is in effect;
+     * otherwise {@code null}.  Guarded by {@link #writeMonitor}.
+     */
+    private Deflater deflater;
+
+    /** Output of {@link #deflater}.  Guarded by {@link #writeMonitor}. */
+    private ByteBuffer deflateBuffer;
+
+    private volatile boolean closed;
+
+    /** Subnegotiation handlers, keyed by option. */
+    private final Map<Integer, SubnegotiationHandler> subnegotiationHandlers =
+        new HashMap<>();
+    {
+        subnegotiationHandlers.put(Option.COMPRESS2,
+            data -> startInputCompression(state.buffer));
+        subnegotiationHandlers.put(Option.GMCP, this::receiveGMCP);
+        subnegotiationHandlers.put(Option.MSDP, this::receiveMSDP);
+        subnegotiationHandlers.put(Option.CHARSET, this::receiveCharset);
+    }
+
     static TelnetConnection create(String host,
                                    int port,
                                    Charset charset,
-                                   Consumer<String> readListener)
+                                   Consumer<CharSequence> readListener)
     throws IOException
     {
         return create(host, port, charset,
@@ -199,7 +520,7 @@ implements Callable<Void>
                                    boolean ssl,
                                    SSLProtocol sslProtocol,
                                    boolean requireValidCertificates,
-                                   Consumer<String> readListener)
+                                   Consumer<CharSequence> readListener)
     throws IOException
     {
         if (ssl)
@@ -208,23 +529,75 @@ implements Callable<Void>
                 "Charset cannot be null if ssl is true");
         }
 
-        if (ssl)
+        if (ThreadMode.current() == ThreadMode.VIRTUAL)
         {
             Socket socket = new Socket(host, port);
             socket.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
             socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
+            if (ssl)
+            {
+                SSLContext context =
+                    sslContext(sslProtocol, requireValidCertificates);
+                socket = context.getSocketFactory().createSocket(socket,
+                    host, port, true);
+            }
+
+            return new TelnetConnection(socket, charset, readListener);
+        }
+        else
+        {
+            SocketChannel channel = SocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(host, port));
+
+            SSLEngine engine = null;
+            if (ssl)
+            {
+                // Host and port identify cached sessions for resumption.
+                SSLContext context =
+                    sslContext(sslProtocol, requireValidCertificates);
+                engine = context.createSSLEngine(host, port);
+            }
+
+            return new TelnetConnection(channel, engine, charset,
+                readListener);
+        }
+    }
+
+    /**
+     * Returns the shared SSL context for a protocol, creating it if needed.
+     *
+     * @param protocol SSL/TLS version
+     * @param requireValidCertificates whether context rejects invalid
+     *                                 certificates
+     *
+     * @return context, which is the same for all connections with the
+     *         same arguments
+     *
+     * @throws IOException if protocol is not supported
+     */
+    private static synchronized SSLContext sslContext(
+                                        SSLProtocol protocol,
+                                        boolean requireValidCertificates)
+    throws IOException
+    {
+        Map<SSLProtocol, SSLContext> contexts = (requireValidCertificates ?
+            validatingSSLContexts : trustingSSLContexts);
+
+        SSLContext context = contexts.get(protocol);
+        if (context == null)
+        {
             TrustManager[] trustManagers = null;
             if (!requireValidCertificates)
             {
                 trustManagers = new TrustManager[] { new DummyTrustManager() };
             }
 
-            SSLContext context;
             try
             {
-                String protocol = sslProtocol.standardName;
-                context = SSLContext.getInstance(protocol);
+                context = SSLContext.getInstance(protocol.standardName);
                 context.init(null, trustManagers, null);
             }
             catch (GeneralSecurityException e)
@@ -232,54 +605,85 @@ implements Callable<Void>
                 throw new IOException(e);
             }
 
-            socket = context.getSocketFactory().createSocket(socket,
-                host, port, true);
-
-            return new TelnetConnection(socket, charset, readListener);
+            contexts.put(protocol, context);
         }
-        else
-        {
-            SocketChannel channel = SocketChannel.open();
-            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-            channel.connect(new InetSocketAddress(host, port));
+        return context;
+    }
 
-            return new TelnetConnection(channel, charset, readListener);
-        }
+    /**
+     * Creates a connection which reads from an already connected socket,
+     * with blocking reads.
+     *
+     * @param socket connected socket
+     * @param charset character set of text
+     * @param readListener receives each line, and each prompt
+     *
+     * @return new connection, which must be {@linkplain #start() started}
+     *
+     * @throws IOException if socket's options cannot be read
+     */
+    static TelnetConnection create(Socket socket,
+                                   Charset charset,
+                                   Consumer<CharSequence> readListener)
+    throws IOException
+    {
+        return new TelnetConnection(socket, charset, readListener);
     }
 
     private TelnetConnection(SocketChannel channel,
+                             SSLEngine sslEngine,
                              Charset charset,
-                             Consumer<String> readListener)
+                             Consumer<CharSequence> readListener)
     throws IOException
     {
-        this.connection = channel;
         this.address = channel.getRemoteAddress();
         this.readListener = Objects.requireNonNull(readListener,
             "Read listener cannot be null");
-        this.charset = Objects.requireNonNull(charset,
+        this.configuredCharset = Objects.requireNonNull(charset,
             "Charset cannot be null");
-        socketReadExecutor = Executors.newSingleThreadExecutor();
+        this.charset = charset;
+        this.channel = channel;
+        this.socket = null;
 
         socketReceiveBufferSize =
             channel.getOption(StandardSocketOptions.SO_RCVBUF);
 
-        input = channel;
-        output = channel;
+        channel.configureBlocking(false);
+
+        if (sslEngine != null)
+        {
+            sslChannel = new SSLChannel(channel, sslEngine);
+            this.connection = sslChannel;
+            input = sslChannel;
+            output = sslChannel;
+            gatheringOutput = sslChannel;
+        }
+        else
+        {
+            sslChannel = null;
+            this.connection = channel;
+            input = channel;
+            output = channel;
+            gatheringOutput = channel;
+        }
     }
 
     private TelnetConnection(Socket socket,
                              Charset charset,
-                             Consumer<String> readListener)
+                             Consumer<CharSequence> readListener)
     throws IOException
     {
         this.connection = socket;
         this.address = socket.getRemoteSocketAddress();
         this.readListener = Objects.requireNonNull(readListener,
             "Read listener cannot be null");
-        this.charset = Objects.requireNonNull(charset,
+        this.configuredCharset = Objects.requireNonNull(charset,
             "Charset cannot be null");
-        socketReadExecutor = Executors.newSingleThreadExecutor();
+        this.charset = charset;
+        this.channel = null;
+        this.sslChannel = null;
+        this.gatheringOutput = null;
+        this.socket = socket;
 
         socketReceiveBufferSize =
             socket.getOption(StandardSocketOptions.SO_RCVBUF);
@@ -306,12 +710,30 @@ implements Callable<Void>
     private static class ReadState
     {
         final ByteBuffer buffer;
-        Future<ByteBuffer> lastRead;
         /**
          * Start position in buffer of text which hasn't been conveyed to UI.
          * -1 means "no text in the buffer to send yet."
          */
         int textStart = -1;
+        /**
+         * Number of bytes at start of buffer which have already been
+         * processed, but are being kept because they haven't been
+         * conveyed to UI.
+         */
+        int processed;
+        /** Progress through subnegotiation being received, if any. */
+        SubnegotiationState subnegotiation = SubnegotiationState.NONE;
+        /** Option of subnegotiation being received. */
+        int subnegotiationOption;
+        /**
+         * Payload of subnegotiation being received.  Reused for each
+         * subnegotiation;  grows as needed, up to
+         * {@link #SUBNEGOTIATION_LIMIT}.
+         */
+        ByteBuffer subnegotiationData =
+            ByteBuffer.allocate(SUBNEGOTIATION_BUFFER_SIZE);
+        /** Whether current payload has exceeded the limit. */
+        boolean subnegotiationOverflow;
 
         ReadState(ByteBuffer buffer)
         {
@@ -323,167 +745,529 @@ implements Callable<Void>
         public String toString()
         {
             return "ReadState["
-                + "textStart=" + textStart + ", lastRead=" + lastRead + "]";
+                + "textStart=" + textStart + ", processed=" + processed + "]";
         }
     }
 
     /**
-     * Reads from this connection's socket until it closes.
+     * Begins reading from this connection.  Each received line, and each
+     * prompt, is passed to this connection's read listener.
+     *
+     * @return future which completes when connection has closed,
+     *         or completes exceptionally if reading fails
      *
-     * @return always {@code null}
+     * @throws IOException if connection cannot be registered for reading
      */
-    @Override
-    public Void call()
-    throws IOException,
-           ExecutionException,
-           InterruptedException
-            
+    CompletableFuture<Void> start()
+    throws IOException
     {
-        ByteBuffer buffer = ByteBuffer.allocate(socketReceiveBufferSize * 2);
+        // One direct buffer serves the entire session;  the socket
+        // reads straight into it, with no intermediate copies.
+        ByteBuffer buffer =
+            ByteBuffer.allocateDirect(socketReceiveBufferSize * 2);
         logger.config(() -> String.format(
             "Created buffer with size %,d", buffer.capacity()));
 
-        ReadState state = new ReadState(buffer);
+        state = new ReadState(buffer);
 
-        Callable<ByteBuffer> socketReader =
-            new Callable<ByteBuffer>()
-            {
-                @Override
-                public ByteBuffer call()
-                throws IOException
+        if (channel != null)
+        {
+            ConnectionMultiplexer.getInstance().register(this);
+            requestEncryptedWrite();
+        }
+        else
+        {
+            blockingReaders.execute(() -> {
+                try
                 {
-                    ByteBuffer buffer =
-                        ByteBuffer.allocate(socketReceiveBufferSize);
-                    int bytesRead = input.read(buffer);
-                    if (bytesRead < 0)
-                    {
-                        return null;
-                    }
-                    buffer.flip();
-                    return buffer;
+                    readBlocking();
+                    finish(null);
                 }
-            };
-
+                catch (IOException | RuntimeException e)
+                {
+                    finish(e);
+                }
+            });
+        }
 
-        boolean timedOut = false;
+        return finished;
+    }
 
-        readLoop:
-        while (true)
+    /**
+     * Marks this connection as finished.  Errors which occur after
+     * connection has been deliberately closed are not considered failures.
+     *
+     * @param error cause of failure, or {@code null} if connection
+     *              closed normally
+     */
+    void finish(Throwable error)
+    {
+        if (error == null || closed)
         {
-            if (state.lastRead == null)
+            if (error != null)
             {
-                state.lastRead = socketReadExecutor.submit(socketReader);
+                logger.log(Level.FINE, "Connection closed during read", error);
             }
+            finished.complete(null);
+        }
+        else
+        {
+            finished.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Sets whether talker may compress data with MCCP, in either direction.
+     * Compression is allowed by default.  Must be called before
+     * {@link #start()}.
+     *
+     * @param allowed whether to accept compression when talker offers it
+     */
+    void setCompressionAllowed(boolean allowed)
+    {
+        this.compressionAllowed = allowed;
+    }
+
+    /**
+     * Sets how long a partial line waits for the rest of its line before
+     * it is conveyed as a prompt.  Prompts marked with GA or EOR are
+     * always conveyed at once.  Must be called before {@link #start()}.
+     *
+     * @param maxTimeout longest wait, in milliseconds
+     * @param adaptive whether to learn a shorter wait from how quickly
+     *                 talker continues partial lines
+     *
+     * @throws IllegalArgumentException if {@code maxTimeout} is less than
+     *                                  {@link PromptTimeoutEstimator#MIN_TIMEOUT}
+     */
+    void setPromptTimeout(int maxTimeout,
+                          boolean adaptive)
+    {
+        this.promptTimeout = new PromptTimeoutEstimator(maxTimeout, adaptive);
+    }
+
+    /**
+     * Sets the receiver of charset changes.  The charset changes to UTF-8
+     * when the talker agrees to it through the CHARSET option and binary
+     * mode is in effect in both directions;  text sent after that needs
+     * no codepoint escapes.  Must be called before {@link #start()}.
+     *
+     * @param listener receives new charset on the reading thread,
+     *                 or {@code null}
+     */
+    void setCharsetListener(Consumer<Charset> listener)
+    {
+        this.charsetListener = listener;
+    }
+
+    /**
+     * Sets the receiver of GMCP and MSDP messages.  Unless a listener is
+     * set, those options are refused.  Must be called before
+     * {@link #start()}.
+     *
+     * @param listener receives each message on the reading thread,
+     *                 or {@code null} to refuse those options
+     */
+    void setOutOfBandListener(Consumer<OutOfBandMessage> listener)
+    {
+        this.outOfBandListener = listener;
+    }
+
+    /**
+     * Returns the non-blocking channel of this connection, for use by
+     * {@link ConnectionMultiplexer}.
+     *
+     * @return socket channel, or {@code null} if this is a blocking connection
+     */
+    SocketChannel channel()
+    {
+        return channel;
+    }
 
-            ByteBuffer newBytes;
-            if (!timedOut)
+    /**
+     * Reads from blocking socket until it closes.
+     */
+    private void readBlocking()
+    throws IOException
+    {
+        while (!closed)
+        {
+            if (!state.buffer.hasRemaining())
             {
-                try
-                {
-                    newBytes = state.lastRead.get(PROMPT_TIMEOUT, MILLISECONDS);
-                    timedOut = false;
-                }
-                catch (TimeoutException e)
-                {
-                    logger.log(Level.FINER,
-                        "Read timed out;  assuming prompt.", e);
-                    logger.finest(() -> "textStart=" + state.textStart +
-                        ", current prompt in buffer is \"" +
-                        Chat.escape(toText(buffer.duplicate().flip())) + "\"");
+                logger.fine("Buffer full;  conveying partial line.");
+                process(true);
+                continue;
+            }
 
-                    newBytes = ByteBuffer.allocate(0);
-                    timedOut = true;
-                }
+            // After a prompt has been conveyed, there is no need to
+            // time out again until more data arrives.
+            socket.setSoTimeout(awaitingPrompt ? millisUntilPrompt() : 0);
+
+            int bytesRead;
+            try
+            {
+                bytesRead = read();
             }
-            else
+            catch (SocketTimeoutException e)
             {
-                newBytes = state.lastRead.get();
-                timedOut = false;   // TODO: remove this if not needed
+                promptTimedOut();
+                continue;
             }
 
-            if (newBytes == null)
+            if (bytesRead < 0)
             {
                 break;
             }
-
-            if (!timedOut)
+            if (bytesRead > 0)
             {
-                buffer.put(newBytes);
-                state.lastRead = null;
+                noteArrival();
             }
 
-            buffer.flip();
-            logger.finest(() -> "Read into buffer: \"" +
-                toText(buffer.duplicate()) + "\"");
+            process(false);
+            updatePromptDeadline();
+        }
+    }
 
-            int b;
-            bytesProcessingLoop:
-            while (buffer.hasRemaining())
-            {
-                b = buffer.get() & 0xff;
-                if (b == IAC)
-                {
-                    IACResult result = handleIAC(state);
-                    switch (result)
-                    {
-                        case NEED_FURTHER_READ:
-                            break bytesProcessingLoop;
-                        case EOF:
-                            break readLoop;
-                        default:
-                            break;
-                    }
+    /**
+     * Reads and processes all data currently available from non-blocking
+     * channel.  Called by {@link ConnectionMultiplexer} when channel
+     * is readable.
+     *
+     * @return {@code false} if end of stream was reached
+     *
+     * @throws IOException if channel cannot be read
+     */
+    boolean readAvailable()
+    throws IOException
+    {
+        int bytesRead;
+        boolean full;
+        boolean arrived = false;
+        do
+        {
+            full = !state.buffer.hasRemaining();
+            if (full)
+            {
+                logger.fine("Buffer full;  conveying partial line.");
+                bytesRead = 0;
+            }
+            else
+            {
+                bytesRead = read();
+                if (bytesRead < 0)
+                {
+                    return false;
                 }
-                else
+                if (bytesRead > 0 && !arrived)
                 {
-                    // Got a readable character.
+                    arrived = true;
+                    noteArrival();
+                }
+            }
 
-                    if (state.textStart < 0)
-                    {
-                        state.textStart = buffer.position() - 1;
-                    }
+            if (bytesRead > 0 || full)
+            {
+                process(full);
+            }
+        }
+        // When compression is in effect, more data may be waiting in
+        // the inflater rather than the socket, so a full buffer always
+        // means reading again.
+        while (bytesRead > 0 || full);
 
-                    if (timedOut)
-                    {
-                        logger.finest(
-                            () -> "Timed out, remaining=" + buffer.remaining() +
-                                ", text=\"" + toText(buffer.duplicate()) +
-                                "\"");
-                    }
+        // Reading may have produced handshake data, or completed a
+        // handshake which held back earlier output.
+        requestEncryptedWrite();
 
-                    if (b == '\n' || (timedOut && !buffer.hasRemaining()))
-                    {
-                        notifyReadListener(state);
-                        state.textStart = -1;
-                    }
+        updatePromptDeadline();
+        return true;
+    }
+
+    /**
+     * Reads into read buffer, decompressing if talker has started
+     * MCCP compression.
+     *
+     * @return number of bytes added to read buffer, which may be zero
+     *         if only compressed data arrived, or -1 at end of stream
+     */
+    private int read()
+    throws IOException
+    {
+        if (compressedInput != null && inflater == null &&
+            compressedInput.position() == 0)
+        {
+            // Compression ended, and everything after it has been used.
+            compressedInput = null;
+        }
+
+        if (compressedInput == null)
+        {
+            return input.read(state.buffer);
+        }
+
+        // Earlier input may have produced more than fit in read buffer.
+        int count = inflate();
+        if (count > 0 || !state.buffer.hasRemaining())
+        {
+            return count;
+        }
+
+        if (input.read(compressedInput) < 0)
+        {
+            return -1;
+        }
+        return inflate();
+    }
+
+    /**
+     * Moves as much of {@link #compressedInput} to read buffer as will fit,
+     * decompressing it until the end of the compressed stream.
+     *
+     * @return number of bytes added to read buffer
+     */
+    private int inflate()
+    throws IOException
+    {
+        ByteBuffer buffer = state.buffer;
+        int start = buffer.position();
+
+        compressedInput.flip();
+        try
+        {
+            if (inflater != null)
+            {
+                inflater.setInput(compressedInput);
+                inflater.inflate(buffer);
+                if (inflater.finished())
+                {
+                    logger.fine(() -> String.format(
+                        "Talker ended compression;  %,d bytes received "
+                        + "as %,d bytes.",
+                        inflater.getBytesWritten(), inflater.getBytesRead()));
+                    inflater.end();
+                    inflater = null;
                 }
             }
 
-            // Remove everything before textStart.
-            if (state.textStart < 0)
+            if (inflater == null)
+            {
+                // Whatever follows the compressed stream is not compressed.
+                int count = Math.min(compressedInput.remaining(),
+                    buffer.remaining());
+                buffer.put(compressedInput.slice().limit(count));
+                compressedInput.position(compressedInput.position() + count);
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Invalid compressed data from talker", e);
+        }
+        finally
+        {
+            compressedInput.compact();
+        }
+
+        return buffer.position() - start;
+    }
+
+    /**
+     * Starts MCCP2 decompression of all data after the current position
+     * of read buffer, which is moved aside to be decompressed by
+     * subsequent reads.
+     */
+    private void startInputCompression(ByteBuffer buffer)
+    {
+        logger.fine("Talker started compression.");
+
+        inflater = new Inflater();
+
+        // Bytes left over from a previous compressed stream, if any,
+        // come after the rest of the read buffer.
+        int leftover = (compressedInput != null ?
+            compressedInput.position() : 0);
+        ByteBuffer compressed = ByteBuffer.allocateDirect(Math.max(
+            buffer.capacity(), buffer.remaining() + leftover));
+        compressed.put(buffer);
+        if (leftover > 0)
+        {
+            compressedInput.flip();
+            compressed.put(compressedInput);
+        }
+        compressedInput = compressed;
+    }
+
+    /**
+     * Learns how long the talker takes to continue a partial line, from
+     * the time between data which left a partial line and this data.
+     * Called when data arrives, before it is processed.
+     */
+    private void noteArrival()
+    {
+        if (partialLinePending && !wroteSincePartialLine)
+        {
+            promptTimeout.addSample(System.nanoTime() - partialLineArrival);
+            logger.finest(() -> "Prompt timeout: " + promptTimeout);
+        }
+        partialLinePending = false;
+    }
+
+    private void updatePromptDeadline()
+    {
+        awaitingPrompt = (state.textStart >= 0);
+        if (awaitingPrompt)
+        {
+            long now = System.nanoTime();
+            partialLinePending = true;
+            partialLineArrival = now;
+            wroteSincePartialLine = false;
+
+            // A talker which marks its prompts has probably just split
+            // a line, so the longest timeout is safest.
+            promptDeadline = now + (promptsMarked ?
+                promptTimeout.getMaxTimeout() : promptTimeout.getTimeout());
+        }
+    }
+
+    /**
+     * Returns time remaining until prompt deadline, for a blocking
+     * socket's read timeout.
+     */
+    private int millisUntilPrompt()
+    {
+        long remaining = promptDeadline - System.nanoTime();
+        return (int) Math.max(1,
+            MILLISECONDS.convert(remaining + 999_999, NANOSECONDS));
+    }
+
+    /**
+     * Returns whether a partial line is waiting to be conveyed as a prompt,
+     * if no more data arrives before the {@linkplain #getPromptDeadline()
+     * prompt deadline}.
+     *
+     * @return whether a prompt deadline is in effect
+     */
+    boolean isAwaitingPrompt()
+    {
+        return awaitingPrompt;
+    }
+
+    /**
+     * Returns time at which a partial line will be considered a prompt.
+     * Only meaningful if {@link #isAwaitingPrompt()} returns true.
+     *
+     * @return deadline, in terms of {@code System.nanoTime()}
+     */
+    long getPromptDeadline()
+    {
+        return promptDeadline;
+    }
+
+    /**
+     * Conveys the current partial line, since no data has arrived before
+     * the prompt deadline and the line is probably a prompt.
+     *
+     * @throws IOException if a telnet response cannot be sent
+     */
+    void promptTimedOut()
+    throws IOException
+    {
+        logger.finer("Read timed out;  assuming prompt.");
+        logger.finest(() -> "textStart=" + state.textStart +
+            ", current prompt in buffer is \"" +
+            Chat.escape(toText(state.buffer.duplicate().flip())) + "\"");
+
+        process(true);
+        awaitingPrompt = false;
+    }
+
+    /**
+     * Processes bytes newly read into buffer, conveying complete lines to
+     * read listener.
+     *
+     * @param conveyPartialLine whether to also convey any text after
+     *                          the last newline
+     */
+    private void process(boolean conveyPartialLine)
+    throws IOException
+    {
+        ByteBuffer buffer = state.buffer;
+
+        buffer.flip();
+        buffer.position(state.processed);
+        logger.finest(() -> "Read into buffer: \"" +
+            toText(buffer.duplicate()) + "\"");
+
+        int b;
+        bytesProcessingLoop:
+        while (buffer.hasRemaining())
+        {
+            b = buffer.get() & 0xff;
+            if (state.subnegotiation != SubnegotiationState.NONE)
             {
-                buffer.clear();
+                receiveSubnegotiation(state, b);
+            }
+            else if (b == IAC)
+            {
+                IACResult result = handleIAC(state);
+                if (result == IACResult.NEED_FURTHER_READ)
+                {
+                    break bytesProcessingLoop;
+                }
             }
             else
             {
-                buffer.position(state.textStart);
-                buffer.compact();
+                // Got a readable character.
+
+                if (state.textStart < 0)
+                {
+                    state.textStart = buffer.position() - 1;
+                }
+
+                if (b == '\n')
+                {
+                    notifyReadListener(state);
+                    state.textStart = -1;
+                }
             }
-            state.textStart = 0;
         }
 
-        return null;
+        if (conveyPartialLine && !buffer.hasRemaining())
+        {
+            // Convey partial line (probably a prompt).
+            notifyReadListener(state);
+            state.textStart = -1;
+        }
+
+        // Remove everything before textStart, keeping any bytes
+        // which have not been processed yet.
+        int keepStart = (state.textStart < 0 ?
+            buffer.position() : state.textStart);
+        state.processed = buffer.position() - keepStart;
+        buffer.position(keepStart);
+        buffer.compact();
+        if (state.textStart >= 0)
+        {
+            state.textStart = 0;
+        }
     }
 
     private IACResult handleIAC(ReadState state)
-    throws IOException,
-           ExecutionException,
-           InterruptedException
+    throws IOException
     {
         if (!state.buffer.hasRemaining())
         {
             // Save IAC to be read again in next iteration.
             state.buffer.position(state.buffer.position() - 1);
+
+            if (state.buffer.limit() == state.buffer.capacity() &&
+                state.textStart >= 0)
+            {
+                // Buffer is full, so unless the text before the IAC is
+                // conveyed, nothing can be compacted to make room for
+                // the byte after it, and reading would stall forever.
+                notifyReadListener(state);
+                state.textStart = -1;
+            }
             return IACResult.NEED_FURTHER_READ;
         }
         int cmd = state.buffer.get() & 0xff;
@@ -503,7 +1287,7 @@ implements Callable<Void>
                 state.textStart = state.buffer.position() - 1;
             }
 
-            return IACResult.NEED_FURTHER_READ;
+            return IACResult.NORMAL;
         }
 
         // Convey any received text prior to this telnet command
@@ -557,6 +1341,73 @@ implements Callable<Void>
                     }
                     acknowledge(cmd, opt);
                     break;
+                case Option.COMPRESS2:
+                    if (cmd == Command.WONT ||
+                        (cmd == Command.WILL && compressionAllowed))
+                    {
+                        acknowledge(cmd, opt);
+                    }
+                    else
+                    {
+                        refuse(cmd, opt);
+                    }
+                    break;
+                case Option.COMPRESS3:
+                    if (cmd == Command.WILL && compressionAllowed)
+                    {
+                        startOutputCompression();
+                    }
+                    else if (cmd == Command.WONT)
+                    {
+                        endOutputCompression();
+                        acknowledge(cmd, opt);
+                    }
+                    else
+                    {
+                        refuse(cmd, opt);
+                    }
+                    break;
+                case Option.GMCP:
+                case Option.MSDP:
+                    if (cmd == Command.WILL && outOfBandListener != null)
+                    {
+                        acknowledge(cmd, opt);
+                        if (opt == Option.GMCP)
+                        {
+                            startGMCP();
+                        }
+                        else
+                        {
+                            startMSDP();
+                        }
+                    }
+                    else if (cmd == Command.WONT || cmd == Command.DONT)
+                    {
+                        // Client never sends GMCP or MSDP data, so there
+                        // is nothing to stop for DONT;  agree with WONT.
+                        acknowledge(cmd, opt);
+                    }
+                    else
+                    {
+                        refuse(cmd, opt);
+                    }
+                    break;
+                case Option.BINARY:
+                    negotiateBinary(cmd);
+                    break;
+                case Option.CHARSET:
+                    if (cmd == Command.DO)
+                    {
+                        // Talker expects client to propose charsets.
+                        acknowledge(cmd, opt);
+                        requestCharset();
+                    }
+                    else
+                    {
+                        // For WILL, talker will send its own request.
+                        acknowledge(cmd, opt);
+                    }
+                    break;
                 case Option.LINEMODE:
                     // TODO
                     refuse(cmd, opt);
@@ -568,35 +1419,7 @@ implements Callable<Void>
         }
         else if (cmd == Command.SB)
         {
-            logger.fine("Got SB, consuming bytes until SE found");
-            int b;
-            do
-            {
-                if (!state.buffer.hasRemaining())
-                {
-                    state.buffer.clear();
-                    if (state.lastRead != null)
-                    {
-                        ByteBuffer newBytes = state.lastRead.get();
-                        if (newBytes == null)
-                        {
-                            return IACResult.EOF;
-                        }
-                        state.buffer.put(newBytes);
-                    }
-                    else
-                    {
-                        if (input.read(state.buffer) < 0)
-                        {
-                            return IACResult.EOF;
-                        }
-                    }
-
-                    state.buffer.flip();
-                }
-                b = state.buffer.get() & 0xff;
-            }
-            while (b != Command.SE);
+            state.subnegotiation = SubnegotiationState.OPTION;
         }
         else if (cmd == Command.EC)
         {
@@ -606,13 +1429,10 @@ implements Callable<Void>
         {
             // TODO
         }
-        else if (cmd == Command.GA)
-        {
-            notifyReadListener(state);
-            state.textStart = -1;
-        }
-        else if (cmd == Command.EOR)
+        else if (cmd == Command.GA || cmd == Command.EOR)
         {
+            // Prompt is marked, so it is conveyed without waiting.
+            promptsMarked = true;
             notifyReadListener(state);
             state.textStart = -1;
         }
@@ -620,48 +1440,576 @@ implements Callable<Void>
         return IACResult.NORMAL;
     }
 
-    private void deleteByte(ByteBuffer buffer)
+    /**
+     * Advances through a subnegotiation by one byte.  Since state is kept
+     * between calls, a subnegotiation may be split across any number of
+     * reads.  When IAC SE is reached, the payload is passed to the
+     * option's handler.
+     */
+    private void receiveSubnegotiation(ReadState state,
+                                       int b)
+    throws IOException
     {
-        ByteBuffer remainder = buffer.slice();
-        remainder.get();
-        remainder.compact();
-        buffer.limit(buffer.limit() - 1);
+        switch (state.subnegotiation)
+        {
+            case OPTION:
+                logger.fine(() -> "Received subnegotiation for option " +
+                    Option.getName(b));
+                state.subnegotiationOption = b;
+                state.subnegotiationData.clear();
+                state.subnegotiationOverflow = false;
+                state.subnegotiation = SubnegotiationState.DATA;
+                break;
+            case DATA:
+                if (b == IAC)
+                {
+                    state.subnegotiation = SubnegotiationState.DATA_IAC;
+                }
+                else
+                {
+                    appendSubnegotiationByte(state, b);
+                }
+                break;
+            case DATA_IAC:
+                if (b == IAC)
+                {
+                    appendSubnegotiationByte(state, b);
+                    state.subnegotiation = SubnegotiationState.DATA;
+                }
+                else
+                {
+                    state.subnegotiation = SubnegotiationState.NONE;
+                    if (b == Command.SE)
+                    {
+                        dispatchSubnegotiation(state);
+                    }
+                    else
+                    {
+                        logger.warning(() -> "Subnegotiation for option " +
+                            Option.getName(state.subnegotiationOption) +
+                            " interrupted by " + Command.getName(b) +
+                            ";  discarding it.");
+                    }
+                }
+                break;
+            default:
+                break;
+        }
     }
 
-    private void notifyReadListener(ReadState state)
+    private void appendSubnegotiationByte(ReadState state,
+                                          int b)
     {
-        notifyReadListener(state.buffer, state.textStart);
+        if (state.subnegotiationOverflow)
+        {
+            return;
+        }
+
+        ByteBuffer data = state.subnegotiationData;
+        if (!data.hasRemaining())
+        {
+            if (data.capacity() >= SUBNEGOTIATION_LIMIT)
+            {
+                state.subnegotiationOverflow = true;
+                return;
+            }
+
+            ByteBuffer larger = ByteBuffer.allocate(
+                Math.min(data.capacity() * 2, SUBNEGOTIATION_LIMIT));
+            data.flip();
+            larger.put(data);
+            state.subnegotiationData = data = larger;
+        }
+        data.put((byte) b);
     }
 
-    private void notifyReadListener(ByteBuffer buffer,
-                                    int textStart)
+    private void dispatchSubnegotiation(ReadState state)
+    throws IOException
     {
-        logger.finest(() -> "textStart=" + textStart);
-        if (textStart < 0)
+        int option = state.subnegotiationOption;
+        if (state.subnegotiationOverflow)
         {
+            logger.warning(() -> String.format(
+                "Discarding subnegotiation for option %s "
+                + "longer than %,d bytes.",
+                Option.getName(option), SUBNEGOTIATION_LIMIT));
             return;
         }
 
-        ByteBuffer textBuffer = buffer.duplicate();
-        textBuffer.flip().position(textStart);
-        String text = charset.decode(textBuffer).toString();
-
-        logger.finest(() -> "Received \"" + Chat.escape(text) + "\"");
+        SubnegotiationHandler handler = subnegotiationHandlers.get(option);
+        if (handler == null)
+        {
+            logger.fine(() -> "Ignoring subnegotiation for option " +
+                Option.getName(option));
+            return;
+        }
 
-        readListener.accept(text);
+        ByteBuffer data = state.subnegotiationData;
+        data.flip();
+        try
+        {
+            handler.handle(data);
+        }
+        finally
+        {
+            data.clear();
+        }
     }
 
-    private void acknowledge(int command,
-                             int opt)
+    /**
+     * Responds to a change of BINARY option, without replying to a reply.
+     */
+    private void negotiateBinary(int cmd)
     throws IOException
     {
-        switch (command)
+        switch (cmd)
         {
             case Command.WILL:
-                sendCommand(Command.DO, opt);
-                break;
-            case Command.WONT:
-                sendCommand(Command.DONT, opt);
+                if (!binaryInput)
+                {
+                    binaryInput = true;
+                    if (!binaryInputRequested)
+                    {
+                        sendCommand(Command.DO, Option.BINARY);
+                    }
+                }
+                binaryInputRequested = false;
+                break;
+            case Command.WONT:
+                if (binaryInput && !binaryInputRequested)
+                {
+                    sendCommand(Command.DONT, Option.BINARY);
+                }
+                binaryInput = false;
+                binaryInputRequested = false;
+                break;
+            case Command.DO:
+                if (!binaryOutput)
+                {
+                    binaryOutput = true;
+                    if (!binaryOutputRequested)
+                    {
+                        sendCommand(Command.WILL, Option.BINARY);
+                    }
+                }
+                binaryOutputRequested = false;
+                break;
+            case Command.DONT:
+                if (binaryOutput && !binaryOutputRequested)
+                {
+                    sendCommand(Command.WONT, Option.BINARY);
+                }
+                binaryOutput = false;
+                binaryOutputRequested = false;
+                break;
+        }
+
+        updateCharset();
+    }
+
+    /**
+     * Proposes UTF-8 to talker.
+     */
+    private void requestCharset()
+    throws IOException
+    {
+        logger.fine("Requesting UTF-8");
+
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.put((byte) CharsetCommand.REQUEST);
+        data.put((byte) ';');
+        data.put("UTF-8".getBytes(StandardCharsets.US_ASCII));
+        data.flip();
+        sendSubnegotiation(Option.CHARSET, data);
+    }
+
+    /**
+     * Handles a CHARSET request from talker, accepting UTF-8 if offered,
+     * and talker's reply to a request from client.
+     */
+    private void receiveCharset(ByteBuffer data)
+    throws IOException
+    {
+        if (!data.hasRemaining())
+        {
+            return;
+        }
+
+        int command = data.get() & 0xff;
+        String text = StandardCharsets.US_ASCII.decode(data).toString();
+        switch (command)
+        {
+            case CharsetCommand.REQUEST:
+                String offered = text;
+                if (offered.startsWith(TTABLE_MARKER))
+                {
+                    // Translation tables are not supported;  skip marker
+                    // and its version byte.
+                    offered = offered.substring(Math.min(offered.length(),
+                        TTABLE_MARKER.length() + 1));
+                }
+                if (offered.isEmpty())
+                {
+                    break;
+                }
+
+                String accepted = null;
+                String separator = offered.substring(0, 1);
+                for (String name :
+                    offered.substring(1).split(Pattern.quote(separator)))
+                {
+                    if (isUTF8(name))
+                    {
+                        accepted = name;
+                        break;
+                    }
+                }
+
+                logger.fine(() -> "Talker offered charsets \"" +
+                    text + "\"");
+
+                ByteBuffer reply;
+                if (accepted != null)
+                {
+                    byte[] name = accepted.getBytes(StandardCharsets.US_ASCII);
+                    reply = ByteBuffer.allocate(name.length + 1);
+                    reply.put((byte) CharsetCommand.ACCEPTED).put(name);
+                }
+                else
+                {
+                    reply = ByteBuffer.allocate(1);
+                    reply.put((byte) CharsetCommand.REJECTED);
+                }
+                reply.flip();
+                sendSubnegotiation(Option.CHARSET, reply);
+
+                if (accepted != null)
+                {
+                    charsetAgreed();
+                }
+                break;
+            case CharsetCommand.ACCEPTED:
+                if (isUTF8(text))
+                {
+                    charsetAgreed();
+                }
+                else
+                {
+                    logger.warning(() -> "Talker accepted unrequested " +
+                        "charset \"" + text + "\"");
+                }
+                break;
+            case CharsetCommand.REJECTED:
+                logger.fine("Talker rejected UTF-8");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isUTF8(String name)
+    {
+        String trimmed = name.trim();
+        return trimmed.equalsIgnoreCase("UTF-8") ||
+            trimmed.equalsIgnoreCase("UTF8");
+    }
+
+    /**
+     * Records that talker agreed to UTF-8, and asks for binary mode in
+     * both directions, which UTF-8 needs, if not already in effect.
+     */
+    private void charsetAgreed()
+    throws IOException
+    {
+        logger.fine("Talker agreed to UTF-8");
+        negotiatedCharset = StandardCharsets.UTF_8;
+
+        if (!binaryInput && !binaryInputRequested)
+        {
+            binaryInputRequested = true;
+            sendCommand(Command.DO, Option.BINARY);
+        }
+        if (!binaryOutput && !binaryOutputRequested)
+        {
+            binaryOutputRequested = true;
+            sendCommand(Command.WILL, Option.BINARY);
+        }
+
+        updateCharset();
+    }
+
+    /**
+     * Uses negotiated charset while binary mode is in effect in both
+     * directions, and configured charset otherwise.
+     */
+    private void updateCharset()
+    {
+        Charset newCharset =
+            (negotiatedCharset != null && binaryInput && binaryOutput ?
+                negotiatedCharset : configuredCharset);
+        if (!newCharset.equals(charset))
+        {
+            logger.fine(() -> "Charset of " + address + " is now " +
+                newCharset);
+            charset = newCharset;
+
+            Consumer<Charset> listener = charsetListener;
+            if (listener != null)
+            {
+                listener.accept(newCharset);
+            }
+        }
+    }
+
+    /**
+     * Introduces client to talker, and asks for the packages in
+     * {@link #GMCP_PACKAGES}.
+     */
+    private void startGMCP()
+    throws IOException
+    {
+        sendGMCP("Core.Hello {\"client\":\"Textend\",\"version\":\""
+            + clientVersion() + "\"}");
+
+        StringBuilder packages = new StringBuilder("Core.Supports.Set [");
+        for (int i = 0; i < GMCP_PACKAGES.length; i++)
+        {
+            if (i > 0)
+            {
+                packages.append(',');
+            }
+            packages.append('"').append(GMCP_PACKAGES[i]).append('"');
+        }
+        packages.append(']');
+        sendGMCP(packages.toString());
+    }
+
+    private static String clientVersion()
+    {
+        String version =
+            TelnetConnection.class.getPackage().getImplementationVersion();
+        Module module = TelnetConnection.class.getModule();
+        if (version == null && module.isNamed())
+        {
+            version = module.getDescriptor().version()
+                .map(Object::toString).orElse(null);
+        }
+        return (version != null ? version : "unknown");
+    }
+
+    /**
+     * Asks talker to report the variables in {@link #MSDP_VARIABLES}
+     * whenever they change.
+     */
+    private void startMSDP()
+    throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(256);
+        for (String variable : MSDP_VARIABLES)
+        {
+            byte[] name = variable.getBytes(StandardCharsets.UTF_8);
+            if (data.remaining() < name.length + 10)
+            {
+                data = ByteBuffer.allocate(data.capacity() * 2 + name.length)
+                    .put(data.flip());
+            }
+            data.put((byte) OutOfBandMessage.MSDP_VAR);
+            data.put("REPORT".getBytes(StandardCharsets.US_ASCII));
+            data.put((byte) OutOfBandMessage.MSDP_VAL);
+            data.put(name);
+        }
+        data.flip();
+        sendSubnegotiation(Option.MSDP, data);
+    }
+
+    /**
+     * Sends a GMCP message to talker.
+     *
+     * @param message package and message name, optionally followed by
+     *                a space and JSON data
+     *
+     * @throws IOException if message cannot be sent
+     */
+    void sendGMCP(String message)
+    throws IOException
+    {
+        logger.fine(() -> "Sending GMCP \"" + message + "\"");
+        sendSubnegotiation(Option.GMCP, StandardCharsets.UTF_8.encode(message));
+    }
+
+    /**
+     * Sends IAC SB option, data with each IAC doubled, and IAC SE.
+     */
+    private void sendSubnegotiation(int option,
+                                    ByteBuffer data)
+    throws IOException
+    {
+        synchronized (writeMonitor)
+        {
+            writeBuffer.clear();
+            ensureWriteCapacity(3);
+            writeBuffer.put((byte) IAC).put((byte) Command.SB)
+                .put((byte) option);
+            putEscaped(data);
+            ensureWriteCapacity(2);
+            writeBuffer.put((byte) IAC).put((byte) Command.SE);
+            writeBuffer.flip();
+            send(writeBuffer);
+        }
+    }
+
+    private void receiveGMCP(ByteBuffer data)
+    {
+        // GMCP is always UTF-8, regardless of charset of displayed text.
+        String payload = StandardCharsets.UTF_8.decode(data).toString();
+        try
+        {
+            deliver(OutOfBandMessage.fromGMCP(payload));
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.log(Level.WARNING,
+                "Ignoring invalid GMCP message \"" + payload + "\"", e);
+        }
+    }
+
+    private void receiveMSDP(ByteBuffer data)
+    {
+        List<OutOfBandMessage> messages;
+        try
+        {
+            messages = OutOfBandMessage.fromMSDP(data, StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.log(Level.WARNING, "Ignoring invalid MSDP data", e);
+            return;
+        }
+
+        for (OutOfBandMessage message : messages)
+        {
+            deliver(message);
+        }
+    }
+
+    private void deliver(OutOfBandMessage message)
+    {
+        logger.finer(() -> "Received " + message);
+
+        Consumer<OutOfBandMessage> listener = outOfBandListener;
+        if (listener != null)
+        {
+            listener.accept(message);
+        }
+    }
+
+    private void deleteByte(ByteBuffer buffer)
+    {
+        ByteBuffer remainder = buffer.slice();
+        remainder.get();
+        remainder.compact();
+        buffer.limit(buffer.limit() - 1);
+    }
+
+    private void notifyReadListener(ReadState state)
+    {
+        notifyReadListener(state.buffer, state.textStart);
+    }
+
+    private void notifyReadListener(ByteBuffer buffer,
+                                    int textStart)
+    {
+        logger.finest(() -> "textStart=" + textStart);
+        if (textStart < 0)
+        {
+            return;
+        }
+
+        // Decode bytes before buffer's position without copying them.
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(position).position(textStart);
+        CharSequence text = decodeText(buffer);
+        buffer.limit(limit).position(position);
+
+        logger.finest(() -> "Received \"" + Chat.escape(text.toString()) + "\"");
+
+        readListener.accept(text);
+    }
+
+    /**
+     * Decodes received bytes into a reused buffer.  Unlike
+     * {@link Charset#decode}, a multi-byte sequence split between two
+     * texts, such as a prompt conveyed before the rest of its line
+     * arrived, is decoded correctly:  its start is held back and
+     * completed by the next call.
+     *
+     * @param bytes received bytes;  all are consumed
+     *
+     * @return decoded text, valid only until the next call
+     */
+    private CharSequence decodeText(ByteBuffer bytes)
+    {
+        if (textDecoder == null || !textDecoder.charset().equals(charset))
+        {
+            textDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            undecodedBytes.clear();
+        }
+
+        int maxLength = (int) Math.ceil(textDecoder.maxCharsPerByte() *
+            (bytes.remaining() + undecodedBytes.position()));
+        if (decodedText == null || decodedText.capacity() < maxLength)
+        {
+            decodedText = CharBuffer.allocate(
+                Math.max(maxLength, state.buffer.capacity()));
+        }
+        decodedText.clear();
+
+        // Complete the held back sequence one byte at a time, so only
+        // bytes belonging to it are moved.
+        while (undecodedBytes.position() > 0 && bytes.hasRemaining())
+        {
+            undecodedBytes.put(bytes.get());
+            undecodedBytes.flip();
+            textDecoder.decode(undecodedBytes, decodedText, false);
+            undecodedBytes.compact();
+
+            if (!undecodedBytes.hasRemaining())
+            {
+                // Cannot be a valid sequence;  let decoder replace it.
+                undecodedBytes.flip();
+                textDecoder.decode(undecodedBytes, decodedText, true);
+                textDecoder.reset();
+                undecodedBytes.clear();
+            }
+        }
+
+        textDecoder.decode(bytes, decodedText, false);
+        if (bytes.remaining() > undecodedBytes.remaining())
+        {
+            // Not a partial sequence;  let decoder replace it.
+            textDecoder.decode(bytes, decodedText, true);
+            textDecoder.reset();
+        }
+        undecodedBytes.put(bytes);
+
+        decodedText.flip();
+        return decodedText;
+    }
+
+    private void acknowledge(int command,
+                             int opt)
+    throws IOException
+    {
+        switch (command)
+        {
+            case Command.WILL:
+                sendCommand(Command.DO, opt);
+                break;
+            case Command.WONT:
+                sendCommand(Command.DONT, opt);
                 break;
             case Command.DO:
                 sendCommand(Command.WILL, opt);
@@ -672,6 +2020,12 @@ implements Callable<Void>
         }
     }
 
+    /**
+     * Declines to use an option.  A WONT or DONT cannot be refused
+     * (RFC 854), so one is answered the same way as by
+     * {@link #acknowledge acknowledge};  answering with DO or WILL would
+     * ask for the very option the talker is disabling.
+     */
     private void refuse(int command,
                         int opt)
     throws IOException
@@ -679,16 +2033,12 @@ implements Callable<Void>
         switch (command)
         {
             case Command.WILL:
-                sendCommand(Command.DONT, opt);
-                break;
             case Command.WONT:
-                sendCommand(Command.DO, opt);
+                sendCommand(Command.DONT, opt);
                 break;
             case Command.DO:
-                sendCommand(Command.WONT, opt);
-                break;
             case Command.DONT:
-                sendCommand(Command.WILL, opt);
+                sendCommand(Command.WONT, opt);
                 break;
         }
     }
@@ -717,15 +2067,291 @@ implements Callable<Void>
     throws IOException
     {
         logger.finest(() -> "Sending \"" + Chat.escape(s) + "\"");
+        write(charset.encode(s));
+    }
+
+    /**
+     * Sends records of already encoded text, such as lines, each followed
+     * by an end-of-record marker if that option is in effect.  IAC bytes
+     * in the text are doubled, as telnet requires.
+     * <p>
+     * All records go to the socket in one gathering write where possible.
+     * Records which contain no IAC byte are written from the caller's
+     * buffers without copying;  others are escaped into a direct buffer
+     * kept by this connection.  Blocking sockets cannot gather, so for
+     * them everything is assembled in that buffer and written at once.
+     *
+     * @param records encoded text;  all of each buffer is consumed, so
+     *                caller may reuse buffers as soon as this method
+     *                returns
+     *
+     * @throws IOException if writing fails
+     */
+    void write(ByteBuffer... records)
+    throws IOException
+    {
+        wroteSincePartialLine = true;
+
         synchronized (writeMonitor)
         {
-            send(charset.encode(s));
-            if (endOfRecord)
+            writeBuffer.clear();
+
+            if (channel == null)
             {
-                sendCommand(Command.EOR);
+                for (ByteBuffer record : records)
+                {
+                    putEscaped(record);
+                    if (endOfRecord)
+                    {
+                        ensureWriteCapacity(EOR_TRAILER.remaining());
+                        writeBuffer.put(EOR_TRAILER.duplicate());
+                    }
+                }
+                writeBuffer.flip();
+                send(writeBuffer);
+                return;
+            }
+
+            ByteBuffer[] parts =
+                new ByteBuffer[records.length * (endOfRecord ? 2 : 1)];
+            int count = 0;
+            for (ByteBuffer record : records)
+            {
+                if (containsIAC(record))
+                {
+                    // If buffer grows, earlier parts still refer to the
+                    // old one, whose contents remain valid.
+                    int start = writeBuffer.position();
+                    putEscaped(record);
+                    parts[count++] = writeBuffer.duplicate()
+                        .limit(writeBuffer.position()).position(start);
+                }
+                else
+                {
+                    parts[count++] = record;
+                }
+
+                if (endOfRecord)
+                {
+                    parts[count++] = EOR_TRAILER.duplicate();
+                }
+            }
+            sendGathered(parts);
+        }
+    }
+
+    private static boolean containsIAC(ByteBuffer bytes)
+    {
+        int limit = bytes.limit();
+        for (int i = bytes.position(); i < limit; i++)
+        {
+            if (bytes.get(i) == (byte) IAC)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends bytes to {@link #writeBuffer}, doubling each IAC.
+     */
+    private void putEscaped(ByteBuffer bytes)
+    {
+        if (!containsIAC(bytes))
+        {
+            ensureWriteCapacity(bytes.remaining());
+            writeBuffer.put(bytes);
+            return;
+        }
+
+        ensureWriteCapacity(bytes.remaining() * 2);
+        while (bytes.hasRemaining())
+        {
+            byte b = bytes.get();
+            writeBuffer.put(b);
+            if (b == (byte) IAC)
+            {
+                writeBuffer.put(b);
             }
-            //channel.flush();
-            //sendCommand(Command.GA);
+        }
+    }
+
+    private void ensureWriteCapacity(int needed)
+    {
+        if (writeBuffer.remaining() < needed)
+        {
+            int capacity = Math.max(writeBuffer.capacity() * 2,
+                writeBuffer.position() + needed);
+            ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+    }
+
+    /**
+     * Agrees to compress everything this client sends (MCCP3).
+     * The talker is told compression starts before anything is compressed.
+     */
+    private void startOutputCompression()
+    throws IOException
+    {
+        synchronized (writeMonitor)
+        {
+            if (deflater != null)
+            {
+                return;
+            }
+
+            sendCommand(Command.DO, Option.COMPRESS3);
+            sendCommand(Command.SB, Option.COMPRESS3, IAC, Command.SE);
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            if (deflateBuffer == null)
+            {
+                deflateBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            }
+
+            logger.fine("Started compressing output.");
+        }
+    }
+
+    /**
+     * Ends MCCP3 compression, if in effect, by sending the end of the
+     * compressed stream.  Everything sent afterward is not compressed.
+     */
+    private void endOutputCompression()
+    throws IOException
+    {
+        synchronized (writeMonitor)
+        {
+            if (deflater == null)
+            {
+                return;
+            }
+
+            deflater.finish();
+            deflateBuffer.clear();
+            while (!deflater.finished())
+            {
+                if (!deflateBuffer.hasRemaining())
+                {
+                    growDeflateBuffer();
+                }
+                deflater.deflate(deflateBuffer);
+            }
+            deflateBuffer.flip();
+
+            Deflater finishedDeflater = deflater;
+            deflater = null;
+            send(deflateBuffer);
+
+            logger.fine(() -> String.format(
+                "Ended compressing output;  %,d bytes sent as %,d bytes.",
+                finishedDeflater.getBytesRead(),
+                finishedDeflater.getBytesWritten()));
+            finishedDeflater.end();
+        }
+    }
+
+    /**
+     * Compresses bytes to be sent, flushing the compressed stream so
+     * talker can decompress all of them as soon as they arrive.
+     * Must be called while holding {@link #writeMonitor}.
+     *
+     * @return {@link #deflateBuffer}, holding compressed bytes
+     */
+    private ByteBuffer deflate(ByteBuffer... parts)
+    {
+        deflateBuffer.clear();
+        for (ByteBuffer part : parts)
+        {
+            deflater.setInput(part);
+            while (!deflater.needsInput())
+            {
+                if (!deflateBuffer.hasRemaining())
+                {
+                    growDeflateBuffer();
+                }
+                deflater.deflate(deflateBuffer, Deflater.NO_FLUSH);
+            }
+        }
+
+        // Flush is complete once deflater leaves room in output.
+        int space;
+        do
+        {
+            if (!deflateBuffer.hasRemaining())
+            {
+                growDeflateBuffer();
+            }
+            space = deflateBuffer.remaining();
+        }
+        while (deflater.deflate(deflateBuffer, Deflater.SYNC_FLUSH) == space);
+
+        deflateBuffer.flip();
+        return deflateBuffer;
+    }
+
+    private void growDeflateBuffer()
+    {
+        ByteBuffer larger =
+            ByteBuffer.allocateDirect(deflateBuffer.capacity() * 2);
+        deflateBuffer.flip();
+        larger.put(deflateBuffer);
+        deflateBuffer = larger;
+    }
+
+    /**
+     * Writes buffers to non-blocking channel in one call, queuing
+     * whatever the socket does not accept.
+     */
+    private void sendGathered(ByteBuffer[] parts)
+    throws IOException
+    {
+        if (deflater != null)
+        {
+            parts = new ByteBuffer[] { deflate(parts) };
+        }
+
+        if (pendingOutput.isEmpty())
+        {
+            gatheringOutput.write(parts);
+        }
+
+        int remaining = 0;
+        for (ByteBuffer part : parts)
+        {
+            remaining += part.remaining();
+        }
+        if (remaining > 0)
+        {
+            // Socket's send buffer is full;  multiplexer thread
+            // will write the rest when the socket is ready.
+            ByteBuffer remainder = ByteBuffer.allocate(remaining);
+            for (ByteBuffer part : parts)
+            {
+                remainder.put(part);
+            }
+            remainder.flip();
+            pendingOutput.add(remainder);
+            ConnectionMultiplexer.getInstance().requestWrite(this);
+
+            logger.finest("Bytes queued.");
+        }
+        requestEncryptedWrite();
+    }
+
+    /**
+     * Has {@link ConnectionMultiplexer} write encrypted data which the
+     * socket did not accept immediately, if there is any.
+     */
+    private void requestEncryptedWrite()
+    throws IOException
+    {
+        if (sslChannel != null && sslChannel.hasPendingOutput())
+        {
+            ConnectionMultiplexer.getInstance().requestWrite(this);
         }
     }
 
@@ -737,19 +2363,93 @@ implements Callable<Void>
 
         synchronized (writeMonitor)
         {
-            while (bytes.hasRemaining())
+            ByteBuffer data = (deflater != null ? deflate(bytes) : bytes);
+
+            if (channel == null)
             {
-                output.write(bytes);
+                while (data.hasRemaining())
+                {
+                    output.write(data);
+                }
+                //output.flush();
+            }
+            else
+            {
+                if (pendingOutput.isEmpty())
+                {
+                    output.write(data);
+                }
+                if (data.hasRemaining())
+                {
+                    // Socket's send buffer is full;  multiplexer thread
+                    // will write the rest when the socket is ready.
+                    ByteBuffer remainder = ByteBuffer.allocate(
+                        data.remaining());
+                    remainder.put(data).flip();
+                    pendingOutput.add(remainder);
+                    ConnectionMultiplexer.getInstance().requestWrite(this);
+
+                    logger.finest("Bytes queued.");
+                    return;
+                }
+                requestEncryptedWrite();
             }
-            //output.flush();
         }
 
         logger.finest("Bytes sent.");
     }
 
+    /**
+     * Writes as much queued output as the non-blocking channel will accept.
+     * Called by {@link ConnectionMultiplexer} when channel is writable.
+     *
+     * @return {@code true} if all queued output has been written
+     *
+     * @throws IOException if channel cannot be written
+     */
+    boolean writePending()
+    throws IOException
+    {
+        synchronized (writeMonitor)
+        {
+            if (sslChannel != null && !sslChannel.flush())
+            {
+                return false;
+            }
+
+            ByteBuffer bytes;
+            while ((bytes = pendingOutput.peek()) != null)
+            {
+                output.write(bytes);
+                if (bytes.hasRemaining())
+                {
+                    return false;
+                }
+                pendingOutput.remove();
+            }
+            return true;
+        }
+    }
+
     void close()
     throws IOException
     {
+        closed = true;
         connection.close();
+        finish(null);
+
+        synchronized (writeMonitor)
+        {
+            if (deflater != null)
+            {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    boolean isClosed()
+    {
+        return closed;
     }
 }
@@ -0,0 +1,100 @@
+package net.pan.textend;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Temporary file of strings, each stored as a length followed by UTF-8
+ * text, which can be read back by index.  The file is deleted when the
+ * archive is closed, or when the application exits.
+ * <p>
+ * Instances are not thread-safe.
+ */
+class TextArchive
+{
+    private static final Logger logger =
+        Logger.getLogger(TextArchive.class.getName());
+
+    private final Path file;
+
+    private final RandomAccessFile data;
+
+    private long[] offsets = new long[1024];
+
+    private int size;
+
+    /**
+     * Creates a new, empty archive in the application's cache directory.
+     *
+     * @param prefix start of temporary file's name
+     *
+     * @throws IOException if file cannot be created
+     */
+    TextArchive(String prefix)
+    throws IOException
+    {
+        Path dir = SystemDirectories.cacheDir("Textend");
+        Files.createDirectories(dir);
+        file = Files.createTempFile(dir, prefix, ".txt");
+        file.toFile().deleteOnExit();
+        data = new RandomAccessFile(file.toFile(), "rw");
+
+        logger.fine(() -> "Archiving " + prefix + " to \"" + file + "\"");
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void add(String text)
+    throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+        record.putInt(bytes.length).put(bytes);
+
+        long offset = data.length();
+        data.seek(offset);
+        data.write(record.array());
+
+        if (size == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = offset;
+    }
+
+    String get(int index)
+    throws IOException
+    {
+        data.seek(offsets[index]);
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void close()
+    {
+        try
+        {
+            data.close();
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Couldn't delete \"" + file + "\"", e);
+        }
+    }
+}
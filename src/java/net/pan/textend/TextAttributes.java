@@ -1,91 +1,80 @@
 package net.pan.textend;
 
-import java.text.AttributedString;
-import java.text.AttributedCharacterIterator;
-
-import java.awt.font.TextAttribute;
-
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Formatter;
 
+import java.util.function.Consumer;
+
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 import java.util.logging.Logger;
-import java.util.logging.Level;
 
 import javafx.scene.paint.Color;
 
 /**
- * Essentially an {@code AttributedString} with mutable text.
- * Maintains "current" attributes for appending new text
+ * Mutable text with runs of display attributes, much like an
+ * {@code AttributedString} whose text can be replaced.
+ * Maintains "current" attributes for appending new text.
+ * <p>
+ * Runs are kept in packed form:  an {@code int} array of run boundaries,
+ * and a {@code long} array holding each run's style, which is made of flag
+ * bits and indices of interned colors.  Style strings are created once
+ * for each distinct style, and then reused.
  */
 class TextAttributes
 {
     private static final Logger logger =
         Logger.getLogger(TextAttributes.class.getName());
 
-    private static final class Attribute
-    extends AttributedCharacterIterator.Attribute
-    {
-        private static final long serialVersionUID = 1;
-
-        private Attribute(String name)
-        {
-            super(name);
-        }
-    }
-
     private enum Enclosure
     {
         FRAMED,
         CIRCLED
     }
 
-    static final AttributedCharacterIterator.Attribute HYPERLINK =
-        new Attribute("HYPERLINK");
+    // Layout of a packed style:  flags in the low 16 bits,
+    // foreground color index in the next 24, background in the top 24.
 
-    private static final AttributedCharacterIterator.Attribute OVERLINE =
-        new Attribute("OVERLINE");
+    private static final long UNDERLINE = 1 << 0;
 
-    private static final AttributedCharacterIterator.Attribute BLINK =
-        new Attribute("BLINK");
+    private static final long BOLD = 1 << 1;
 
-    private static final AttributedCharacterIterator.Attribute HIDDEN =
-        new Attribute("HIDDEN");
+    private static final long ITALIC = 1 << 2;
 
-    private static final AttributedCharacterIterator.Attribute ENCLOSURE =
-        new Attribute("ENCLOSURE");
+    private static final long INVERSE = 1 << 3;
 
-    private static final ANSIPalette colors =
-        ANSIPalette.get(ANSIPalette.StandardPalette.DEFAULT);
+    private static final long STRIKETHROUGH = 1 << 4;
 
-    private static class TextRun
-    {
-        final int start;
-        final int end;
-        final Map<AttributedCharacterIterator.Attribute, Object> attributes;
+    private static final long OVERLINE = 1 << 5;
 
-        TextRun(int start,
-                int end,
-                Map<AttributedCharacterIterator.Attribute, Object> attributes)
-        {
-            this.start = start;
-            this.end = end;
-            this.attributes = attributes;
-        }
-    }
+    private static final long HIDDEN = 1 << 6;
+
+    private static final long BLINK = 1 << 7;
+
+    private static final long FRAMED = 1 << 8;
+
+    private static final long CIRCLED = 1 << 9;
 
-    private static final Pattern rgbCSI = Pattern.compile(
-        "(?:" +
-            "2;([0-9]{1,3});([0-9]{1,3});([0-9]{1,3})" +
-            "|" +
-            "5;([0-9]{1,3})" +
-        ")" +
-        "(;|$)");
+    private static final int FOREGROUND_SHIFT = 16;
+
+    private static final int BACKGROUND_SHIFT = 40;
+
+    private static final long COLOR_MASK = (1 << 24) - 1;
+
+    /**
+     * Number of interned colors above which the color table and style
+     * caches are discarded, so 24-bit color output can't make them grow
+     * without limit.
+     */
+    private static final int MAX_INTERNED_COLORS = 4096;
+
+    private static final ANSIPalette colors =
+        ANSIPalette.get(ANSIPalette.StandardPalette.DEFAULT);
 
     private final Matcher uriMatcher =
         Pattern.compile("(https?|s?ftp)://["
@@ -96,10 +85,48 @@ class TextAttributes
             + "%"
             + "]+").matcher("");
 
-    private final List<TextRun> runs = new ArrayList<>();
-
     private final StringBuilder text = new StringBuilder();
 
+    /**
+     * End of each run in {@link #text}.  Runs are contiguous, so each
+     * run starts where the previous one ends.
+     */
+    private int[] runLimits = new int[16];
+
+    /** Packed style of each run. */
+    private long[] runStyles = new long[16];
+
+    /** URI of each run which is part of a hyperlink, or {@code null}. */
+    private String[] runLinks = new String[16];
+
+    private int runCount;
+
+    /** Whether runs have been split at hyperlink boundaries. */
+    private boolean linksFound;
+
+    /**
+     * Colors used by styles.  Index 0 means "no color," and is never
+     * looked up.
+     */
+    private final List<Color> colorTable = new ArrayList<>();
+    {
+        colorTable.add(null);
+    }
+
+    private final Map<Color, Integer> colorIndices = new HashMap<>();
+
+    /** HTML styles already created, keyed by packed style. */
+    private final Map<Long, String> htmlStyles = new HashMap<>();
+
+    /** HTML styles for hyperlinks already created, keyed by packed style. */
+    private final Map<Long, String> htmlLinkStyles = new HashMap<>();
+
+    /** JavaFX styles already created, keyed by packed style. */
+    private final Map<Long, String> fxStyles = new HashMap<>();
+
+    /** JavaFX styles for hyperlinks already created, keyed by packed style. */
+    private final Map<Long, String> fxLinkStyles = new HashMap<>();
+
     private Color color;
 
     private Color background;
@@ -143,83 +170,88 @@ class TextAttributes
         blink = false;
     }
 
-    static TextAttributes from(
-        Map<AttributedCharacterIterator.Attribute, ?> attributes)
+    private int intern(Color c)
     {
-        TextAttributes t = new TextAttributes();
-
-        java.awt.Color color;
-        float[] rgba = new float[4];
-
-        color = (java.awt.Color) attributes.get(TextAttribute.FOREGROUND);
-        if (color != null)
+        if (c == null)
         {
-            color.getRGBComponents(rgba);
-            t.color = Color.color(rgba[0], rgba[1], rgba[2], rgba[3]);
+            return 0;
         }
 
-        color = (java.awt.Color) attributes.get(TextAttribute.BACKGROUND);
-        if (color != null)
+        Integer index = colorIndices.get(c);
+        if (index == null)
         {
-            color.getRGBComponents(rgba);
-            t.background = Color.color(rgba[0], rgba[1], rgba[2], rgba[3]);
+            index = colorTable.size();
+            colorTable.add(c);
+            colorIndices.put(c, index);
         }
-
-        Object underline = attributes.get(TextAttribute.UNDERLINE);
-        t.underline = TextAttribute.UNDERLINE_ON.equals(underline);
-
-        Object bold = attributes.get(TextAttribute.WEIGHT);
-        t.bold = (bold instanceof Number &&
-            ((Number) bold).floatValue() >= TextAttribute.WEIGHT_BOLD);
-
-        Object italic = attributes.get(TextAttribute.POSTURE);
-        t.italic = TextAttribute.POSTURE_OBLIQUE.equals(italic);
-
-        Object inverse = attributes.get(TextAttribute.SWAP_COLORS);
-        t.inverse = Boolean.TRUE.equals(inverse);
-
-        Object strikethrough = attributes.get(TextAttribute.STRIKETHROUGH);
-        t.strikethrough = Boolean.TRUE.equals(strikethrough);
-
-        Object enclosure = attributes.get(ENCLOSURE);
-        if (enclosure instanceof Enclosure)
-        {
-            t.enclosure = (Enclosure) enclosure;
-        }
-
-        Object overline = attributes.get(OVERLINE);
-        t.overline = Boolean.TRUE.equals(overline);
-
-        Object hidden = attributes.get(HIDDEN);
-        t.hidden = Boolean.TRUE.equals(hidden);
-
-        Object blink = attributes.get(BLINK);
-        t.blink = Boolean.TRUE.equals(blink);
-
-        //t.blinkEnabled = ;
-
-        return t;
+        return index;
     }
 
-    AttributedCharacterIterator iterator()
+    /**
+     * Packs current attributes into a style value.
+     */
+    private long currentStyle()
     {
-        logger.finest(() -> "Iterating over \"" + text + "\"");
-
-        AttributedString s = new AttributedString(text.toString());
-        for (TextRun run : runs)
+        long style = 0;
+        if (underline)
         {
-            s.addAttributes(run.attributes, run.start, run.end);
+            style |= UNDERLINE;
         }
-
-        uriMatcher.reset(text);
-        while (uriMatcher.find())
+        if (bold)
         {
-            String uri = uriMatcher.group();
-            s.addAttribute(HYPERLINK, uri,
-                uriMatcher.start(), uriMatcher.end());
+            style |= BOLD;
+        }
+        if (italic)
+        {
+            style |= ITALIC;
+        }
+        if (inverse)
+        {
+            style |= INVERSE;
+        }
+        if (strikethrough)
+        {
+            style |= STRIKETHROUGH;
+        }
+        if (overline)
+        {
+            style |= OVERLINE;
+        }
+        if (hidden)
+        {
+            style |= HIDDEN;
+        }
+        if (blink)
+        {
+            style |= BLINK;
+        }
+        if (enclosure == Enclosure.FRAMED)
+        {
+            style |= FRAMED;
         }
+        if (enclosure == Enclosure.CIRCLED)
+        {
+            style |= CIRCLED;
+        }
+        style |= (long) intern(color) << FOREGROUND_SHIFT;
+        style |= (long) intern(background) << BACKGROUND_SHIFT;
+        return style;
+    }
 
-        return s.getIterator();
+    private Color foregroundOf(long style)
+    {
+        return colorTable.get((int) ((style >>> FOREGROUND_SHIFT) & COLOR_MASK));
+    }
+
+    private Color backgroundOf(long style)
+    {
+        return colorTable.get((int) ((style >>> BACKGROUND_SHIFT) & COLOR_MASK));
+    }
+
+    private static boolean has(long style,
+                               long flag)
+    {
+        return (style & flag) != 0;
     }
 
     String getText(int start,
@@ -228,123 +260,214 @@ class TextAttributes
         return text.substring(start, end);
     }
 
+    /**
+     * Returns all text, without attributes.
+     *
+     * @return current text
+     */
+    String getText()
+    {
+        return text.toString();
+    }
+
     void clearText()
     {
         text.setLength(0);
-        runs.clear();
+        runCount = 0;
+        linksFound = false;
+
+        // No runs refer to colors now, so this is a safe time to start over.
+        if (colorTable.size() > MAX_INTERNED_COLORS)
+        {
+            logger.fine("Discarding interned colors and styles");
+            colorTable.subList(1, colorTable.size()).clear();
+            colorIndices.clear();
+            htmlStyles.clear();
+            htmlLinkStyles.clear();
+            fxStyles.clear();
+            fxLinkStyles.clear();
+        }
+    }
+
+    private void ensureCapacity(int count)
+    {
+        if (count > runLimits.length)
+        {
+            int size = Math.max(count, runLimits.length * 2);
+            runLimits = Arrays.copyOf(runLimits, size);
+            runStyles = Arrays.copyOf(runStyles, size);
+            runLinks = Arrays.copyOf(runLinks, size);
+        }
     }
 
     /**
-     * Appends with current attributes.
+     * Appends text with current attributes.
      *
-     * @param csi ANSI escape sequence, not including the
-     *            initial "ESC {@code [}"
-     * @param newText text to append using the attributes
-     *            specified by {@code csi}
+     * @param newText source of text to append
+     * @param start index in {@code newText} of first character to append
+     * @param end index in {@code newText} after last character to append
+     *
+     * @see #applySGR(int[], int)
      */
-    void append(String csi,
-                Object newText)
+    void append(CharSequence newText,
+                int start,
+                int end)
     {
-        if (csi != null)
+        if (end <= start)
         {
-            updateFromCSI(csi);
+            return;
         }
 
-        if (newText.toString().isEmpty())
+        text.append(newText, start, end);
+        linksFound = false;
+
+        long style = currentStyle();
+        if (runCount > 0 && runStyles[runCount - 1] == style)
         {
+            runLimits[runCount - 1] = text.length();
             return;
         }
 
-        int oldLength = text.length();
-        text.append(newText);
-        runs.add(new TextRun(oldLength, text.length(), toAttributes()));
+        ensureCapacity(runCount + 1);
+        runLimits[runCount] = text.length();
+        runStyles[runCount] = style;
+        runLinks[runCount] = null;
+        runCount++;
     }
 
+    /**
+     * Splits a run, so a run boundary exists at a position.
+     *
+     * @return index of run which starts at position
+     */
+    private int splitAt(int position)
+    {
+        int start = 0;
+        for (int i = 0; i < runCount; i++)
+        {
+            if (position == start)
+            {
+                return i;
+            }
+            if (position < runLimits[i])
+            {
+                ensureCapacity(runCount + 1);
+                System.arraycopy(runLimits, i, runLimits, i + 1, runCount - i);
+                System.arraycopy(runStyles, i, runStyles, i + 1, runCount - i);
+                System.arraycopy(runLinks, i, runLinks, i + 1, runCount - i);
+                runLimits[i] = position;
+                runCount++;
+                return i + 1;
+            }
+            start = runLimits[i];
+        }
+        return runCount;
+    }
+
+    /**
+     * Colors part of the text, in addition to its other attributes.
+     * The colors also become the current colors.
+     *
+     * @param foreground new text color, or {@code null} to leave
+     *                   text color unchanged
+     * @param background new background color, or {@code null} to leave
+     *                   background unchanged
+     * @param start index of first character to color
+     * @param end index after last character to color
+     */
     void setColors(Color foreground,
                    Color background,
                    int start,
                    int end)
     {
-        Map<AttributedCharacterIterator.Attribute, Object> attr =
-            new HashMap<>();
-
+        long mask = 0;
+        long colorBits = 0;
         if (foreground != null)
         {
             this.color = foreground;
-            attr.put(TextAttribute.FOREGROUND, toAWTColor(foreground));
+            mask |= COLOR_MASK << FOREGROUND_SHIFT;
+            colorBits |= (long) intern(foreground) << FOREGROUND_SHIFT;
         }
         if (background != null)
         {
             this.background = background;
-            attr.put(TextAttribute.BACKGROUND, toAWTColor(background));
+            mask |= COLOR_MASK << BACKGROUND_SHIFT;
+            colorBits |= (long) intern(background) << BACKGROUND_SHIFT;
         }
 
-        if (end > start)
+        end = Math.min(end, text.length());
+        if (end <= start || mask == 0)
         {
-            runs.add(new TextRun(start, end, attr));
+            return;
         }
-    }
 
-    private static java.awt.Color toAWTColor(Color color)
-    {
-        return new java.awt.Color(
-            (float) color.getRed(),
-            (float) color.getGreen(),
-            (float) color.getBlue(),
-            (float) color.getOpacity());
+        int first = splitAt(start);
+        int last = splitAt(end);
+        for (int i = first; i < last; i++)
+        {
+            runStyles[i] = (runStyles[i] & ~mask) | colorBits;
+        }
     }
 
-    private Map<AttributedCharacterIterator.Attribute, Object> toAttributes()
+    /**
+     * Splits runs at the boundaries of URIs in the text, and marks runs
+     * within URIs as hyperlinks.
+     */
+    private void findLinks()
     {
-        Map<AttributedCharacterIterator.Attribute, Object> attr =
-            new HashMap<>();
-
-        if (color != null)
+        if (linksFound)
         {
-            attr.put(TextAttribute.FOREGROUND, toAWTColor(color));
-        }
-        if (background != null)
-        {
-            attr.put(TextAttribute.BACKGROUND, toAWTColor(background));
-        }
-        if (underline)
-        {
-            attr.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
-        }
-        if (bold)
-        {
-            attr.put(TextAttribute.WEIGHT, TextAttribute.WEIGHT_BOLD);
-        }
-        if (italic)
-        {
-            attr.put(TextAttribute.POSTURE, TextAttribute.POSTURE_OBLIQUE);
-        }
-        if (strikethrough)
-        {
-            attr.put(TextAttribute.STRIKETHROUGH, true);
-        }
-        if (inverse)
-        {
-            attr.put(TextAttribute.SWAP_COLORS, true);
-        }
-        if (enclosure != null)
-        {
-            attr.put(ENCLOSURE, enclosure);
-        }
-        if (overline)
-        {
-            attr.put(OVERLINE, true);
-        }
-        if (hidden)
-        {
-            attr.put(HIDDEN, true);
+            return;
         }
-        if (blink)
+        linksFound = true;
+
+        uriMatcher.reset(text);
+        while (uriMatcher.find())
         {
-            attr.put(BLINK, true);
+            String uri = uriMatcher.group();
+            int first = splitAt(uriMatcher.start());
+            int last = splitAt(uriMatcher.end());
+            for (int i = first; i < last; i++)
+            {
+                runLinks[i] = uri;
+            }
         }
+    }
 
-        return attr;
+    /**
+     * Returns the number of runs of text with the same attributes.
+     * Parts of a hyperlink are separate runs.
+     *
+     * @return number of runs
+     */
+    int getRunCount()
+    {
+        findLinks();
+        return runCount;
+    }
+
+    int getRunStart(int run)
+    {
+        return (run > 0 ? runLimits[run - 1] : 0);
+    }
+
+    int getRunLimit(int run)
+    {
+        return runLimits[run];
+    }
+
+    /**
+     * Returns the URI of the hyperlink containing a run.
+     *
+     * @param run index of run
+     *
+     * @return URI of hyperlink, or {@code null} if run is not
+     *         part of a hyperlink
+     */
+    String getRunLink(int run)
+    {
+        findLinks();
+        return runLinks[run];
     }
 
     private static void addStyle(Color color,
@@ -362,10 +485,36 @@ class TextAttributes
             property, red, green, blue, alpha);
     }
 
-    String toStyle(boolean isLink)
+    /**
+     * Returns an HTML style for a run.
+     *
+     * @param run index of run
+     * @param isLink whether style is for a hyperlink, which keeps
+     *               its own text color
+     *
+     * @return CSS style, possibly empty
+     */
+    String toStyle(int run,
+                   boolean isLink)
+    {
+        long style = runStyles[run];
+        return (isLink ? htmlLinkStyles : htmlStyles).computeIfAbsent(style,
+            s -> toStyle(s, isLink));
+    }
+
+    private String toStyle(long packedStyle,
+                           boolean isLink)
     {
         Formatter style = new Formatter();
 
+        Color color = foregroundOf(packedStyle);
+        Color background = backgroundOf(packedStyle);
+        boolean inverse = has(packedStyle, INVERSE);
+        boolean underline = has(packedStyle, UNDERLINE);
+        boolean overline = has(packedStyle, OVERLINE);
+        boolean strikethrough = has(packedStyle, STRIKETHROUGH);
+        boolean blink = has(packedStyle, BLINK);
+
         if (!isLink && color != null)
         {
             addStyle(color,
@@ -399,77 +548,137 @@ class TextAttributes
             }
             style.format(";");
         }
-        if (bold)
+        if (has(packedStyle, BOLD))
         {
             style.format("font-weight: bolder;");
         }
-        if (italic)
+        if (has(packedStyle, ITALIC))
         {
             style.format("font-style: italic;");
         }
-        if (enclosure != null)
+        if (has(packedStyle, FRAMED))
         {
-            switch (enclosure)
-            {
-                case FRAMED:
-                    style.format("border: solid thin;");
-                    break;
-                case CIRCLED:
-                    style.format("border: solid thin;border-radius: 0.4em;");
-                    break;
-                default:
-                    logger.warning(
-                        () -> "Ignoring unknown enclosure value " + enclosure);
-                    break;
-            }
+            style.format("border: solid thin;");
         }
-        if (hidden)
+        if (has(packedStyle, CIRCLED))
+        {
+            style.format("border: solid thin;border-radius: 0.4em;");
+        }
+        if (has(packedStyle, HIDDEN))
         {
             style.format("display: none;");
         }
         return style.toString();
     }
 
-    @SuppressWarnings("fallthrough")
-    private void updateFromCSI(String csi)
+    private static void addFXColor(Color color,
+                                   String property,
+                                   Formatter style)
     {
-        if (!csi.endsWith("m"))
-        {
-            return;
-        }
+        style.format("%s: rgba(%d,%d,%d,%s);", property,
+            Math.round(color.getRed() * 255),
+            Math.round(color.getGreen() * 255),
+            Math.round(color.getBlue() * 255),
+            color.getOpacity());
+    }
 
-        // Add ';' to make parsing easier.
-        csi = csi.substring(0, csi.length() - 1) + ";";
+    /**
+     * Returns a JavaFX CSS style for a run, equivalent to
+     * {@link #toStyle(int, boolean)} as far as JavaFX text allows.
+     * Backgrounds, overlines, blinking and enclosures have no JavaFX
+     * equivalent and are omitted, though an inverse background still
+     * colors the text.
+     *
+     * @param run index of run
+     * @param isLink whether style is for a hyperlink, which keeps
+     *               its own text color
+     *
+     * @return JavaFX CSS style, possibly empty
+     */
+    String toFXStyle(int run,
+                     boolean isLink)
+    {
+        long style = runStyles[run];
+        return (isLink ? fxLinkStyles : fxStyles).computeIfAbsent(style,
+            s -> toFXStyle(s, isLink));
+    }
 
-        Matcher rgbMatcher = rgbCSI.matcher(csi);
+    private String toFXStyle(long packedStyle,
+                             boolean isLink)
+    {
+        Formatter style = new Formatter();
 
-        int len = csi.length();
-        int start = 0;
-        int end;
-        while ((end = csi.indexOf(';', start)) > start)
+        Color fill = (has(packedStyle, INVERSE) ?
+            backgroundOf(packedStyle) : foregroundOf(packedStyle));
+        if (!isLink && fill != null)
+        {
+            addFXColor(fill, "-fx-fill", style);
+        }
+        if (has(packedStyle, UNDERLINE))
+        {
+            style.format("-fx-underline: true;");
+        }
+        if (has(packedStyle, STRIKETHROUGH))
         {
-            String code = csi.substring(start, end);
-            start = end + 1;
+            style.format("-fx-strikethrough: true;");
+        }
+        if (has(packedStyle, BOLD))
+        {
+            style.format("-fx-font-weight: bold;");
+        }
+        if (has(packedStyle, ITALIC))
+        {
+            style.format("-fx-font-style: italic;");
+        }
+        if (has(packedStyle, HIDDEN))
+        {
+            style.format("visibility: hidden;");
+        }
+        return style.toString();
+    }
 
-            if (code.isEmpty() || code.equals("0"))
-            {
-                reset();
-                continue;
-            }
-            int c;
-            try
-            {
-                c = Integer.parseInt(code);
-            }
-            catch (NumberFormatException e)
-            {
-                logger.log(Level.FINE,
-                    "Ignoring invalid CSI command \"" + code + "\"", e);
-                continue;
-            }
+    /**
+     * Creates a JavaFX CSS style which colors text.
+     *
+     * @param foreground text color, or {@code null}
+     *
+     * @return JavaFX CSS style, possibly empty
+     */
+    static String toFXStyle(Color foreground)
+    {
+        Formatter style = new Formatter();
+        if (foreground != null)
+        {
+            addFXColor(foreground, "-fx-fill", style);
+        }
+        return style.toString();
+    }
+
+    /**
+     * Updates current attributes from the parameters of an SGR
+     * ("select graphic rendition") control sequence, {@code ESC [ ... m}.
+     *
+     * @param params numeric parameters of sequence
+     * @param count number of parameters;  zero is the same as a single
+     *              zero parameter, which resets all attributes
+     */
+    void applySGR(int[] params,
+                  int count)
+    {
+        if (count == 0)
+        {
+            reset();
+            return;
+        }
 
+        for (int i = 0; i < count; i++)
+        {
+            int c = params[i];
             switch (c)
             {
+                case 0:
+                    reset();
+                    break;
                 case 1:
                     bold = true;
                     break;
@@ -540,16 +749,8 @@ class TextAttributes
                     color = colors.get(c, bold);
                     break;
                 case 38:
-                    if (rgbMatcher.region(start, len).lookingAt())
-                    {
-                        color = parseRGB(rgbMatcher);
-
-                        start = rgbMatcher.end();
-                        if (start < len)
-                        {
-                            start++;
-                        }
-                    }
+                    i = parseExtendedColor(params, i + 1, count,
+                        value -> color = value);
                     break;
                 case 39:
                     color = null;
@@ -573,16 +774,8 @@ class TextAttributes
                     background = colors.get(c - 10, bold);
                     break;
                 case 48:
-                    if (rgbMatcher.region(start, len).lookingAt())
-                    {
-                        background = parseRGB(rgbMatcher);
-
-                        start = rgbMatcher.end();
-                        if (start < len)
-                        {
-                            start++;
-                        }
-                    }
+                    i = parseExtendedColor(params, i + 1, count,
+                        value -> background = value);
                     break;
                 case 49:
                     background = null;
@@ -608,6 +801,55 @@ class TextAttributes
         }
     }
 
+    /**
+     * Parses the color specification following an SGR 38 or 48 parameter,
+     * either {@code 5;}<var>index</var> or
+     * {@code 2;}<var>red</var>{@code ;}<var>green</var>{@code ;}<var>blue</var>.
+     *
+     * @param params SGR parameters
+     * @param start index of first parameter after 38 or 48
+     * @param count number of parameters
+     * @param setter receives color, if specification is valid
+     *
+     * @return index of last parameter consumed
+     */
+    private int parseExtendedColor(int[] params,
+                                   int start,
+                                   int count,
+                                   Consumer<Color> setter)
+    {
+        if (start >= count)
+        {
+            return start - 1;
+        }
+
+        switch (params[start])
+        {
+            case 5:
+                if (start + 1 < count)
+                {
+                    setter.accept(lookupCSIColorTable(params[start + 1]));
+                    return start + 1;
+                }
+                break;
+            case 2:
+                if (start + 3 < count)
+                {
+                    setter.accept(Color.rgb(
+                        params[start + 1] & 255,
+                        params[start + 2] & 255,
+                        params[start + 3] & 255));
+                    return start + 3;
+                }
+                break;
+            default:
+                break;
+        }
+
+        logger.fine(() -> "Ignoring invalid extended color");
+        return count - 1;
+    }
+
     /**
      * Translates 8-bit color table value to a Color instance.
      *
@@ -640,20 +882,4 @@ class TextAttributes
 
         return value;
     }
-
-    private Color parseRGB(Matcher rgbMatcher)
-    {
-        if (rgbMatcher.group().startsWith("2"))
-        {
-            int red =   Integer.parseInt(rgbMatcher.group(1)) & 255;
-            int green = Integer.parseInt(rgbMatcher.group(2)) & 255;
-            int blue =  Integer.parseInt(rgbMatcher.group(3)) & 255;
-            return Color.rgb(red, green, blue);
-        }
-        else
-        {
-            int index = Integer.parseInt(rgbMatcher.group(4));
-            return lookupCSIColorTable(index);
-        }
-    }
 }
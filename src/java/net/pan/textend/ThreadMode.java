@@ -0,0 +1,182 @@
+package net.pan.textend;
+
+import java.lang.reflect.Method;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import java.util.concurrent.ThreadFactory;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Kind of threads backing every executor Textend creates.  The mode is
+ * chosen once, at startup, with the {@code --threads} command-line option
+ * or the {@code net.pan.textend.threads} system property;  the option
+ * takes precedence.  Either accepts {@code platform} (the default) or
+ * {@code virtual}.
+ * <p>
+ * In {@link #PLATFORM} mode, all connections, plain and SSL, are serviced by
+ * {@link ConnectionMultiplexer}.  In {@link #VIRTUAL} mode, each connection
+ * reads from a blocking socket on its own virtual thread instead.
+ */
+enum ThreadMode
+{
+    /** Daemon platform threads. */
+    PLATFORM,
+    /**
+     * Virtual threads.  If the runtime does not support them,
+     * {@link #PLATFORM} is used instead.
+     */
+    VIRTUAL;
+
+    private static final Logger logger =
+        Logger.getLogger(ThreadMode.class.getName());
+
+    private static final String PROPERTY =
+        ThreadMode.class.getPackageName() + ".threads";
+
+    private static ThreadMode current;
+
+    /**
+     * Returns the mode chosen at startup.
+     *
+     * @return current thread mode, never {@code null}
+     */
+    static synchronized ThreadMode current()
+    {
+        if (current == null)
+        {
+            current = select(System.getProperty(PROPERTY, "platform"));
+        }
+        return current;
+    }
+
+    /**
+     * Removes a {@code --threads} option from program arguments, and
+     * makes it the current mode.  Must be called before any connection
+     * is created.
+     *
+     * @param args program arguments
+     *
+     * @return remaining arguments
+     */
+    static List<String> parseThreadModeOption(List<String> args)
+    {
+        Iterator<String> i = args.iterator();
+        while (i.hasNext())
+        {
+            String arg = i.next();
+            if (arg.matches("--?(?i:threads)(=.*)?"))
+            {
+                i.remove();
+
+                String value;
+                int equals = arg.indexOf('=');
+                if (equals > 0)
+                {
+                    value = arg.substring(equals + 1);
+                }
+                else if (i.hasNext())
+                {
+                    value = i.next();
+                    i.remove();
+                }
+                else
+                {
+                    value = "";
+                }
+
+                ThreadMode mode = select(value);
+                synchronized (ThreadMode.class)
+                {
+                    current = mode;
+                }
+            }
+        }
+
+        return args;
+    }
+
+    private static ThreadMode select(String name)
+    {
+        ThreadMode mode;
+        try
+        {
+            mode = valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.warning(() -> "Unknown thread mode \"" + name + "\""
+                + ", using " + PLATFORM);
+            return PLATFORM;
+        }
+
+        if (mode == VIRTUAL)
+        {
+            try
+            {
+                virtualThreadFactory("Textend");
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                logger.log(Level.WARNING, "Virtual threads are not"
+                    + " available in this runtime, using " + PLATFORM, e);
+                return PLATFORM;
+            }
+        }
+
+        logger.config(() -> "Thread mode is " + mode);
+        return mode;
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().name(name).factory()}
+     * reflectively, so Textend still runs on releases which lack
+     * virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory(String name)
+    throws ReflectiveOperationException
+    {
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        Method setName = builderType.getMethod("name", String.class);
+        Method factory = builderType.getMethod("factory");
+
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = setName.invoke(builder, name);
+        return (ThreadFactory) factory.invoke(builder);
+    }
+
+    /**
+     * Creates a factory for threads of this mode.  Platform threads
+     * are daemon threads, so they never keep the application running;
+     * virtual threads are always daemon threads.
+     *
+     * @param name name given to each created thread
+     *
+     * @return new thread factory
+     */
+    ThreadFactory newThreadFactory(String name)
+    {
+        if (this == VIRTUAL)
+        {
+            try
+            {
+                return virtualThreadFactory(name);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                // Already checked by select().
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -56,6 +56,14 @@ public class Trigger
     private final ObjectProperty<ObservableList<Action>> actions =
         new SimpleObjectProperty<>(FXCollections.observableArrayList());
 
+    /**
+     * Compiled form of {@link #pattern} and {@link #patternType}, or
+     * {@code null} if it has not been compiled since they last changed.
+     * Since a Trigger belongs to a {@link ConnectionInfo}, every
+     * {@link Chat} using that ConnectionInfo shares this value.
+     */
+    private volatile Pattern regex;
+
     public Trigger()
     {
         name = new SimpleStringProperty(this, "name");
@@ -64,6 +72,9 @@ public class Trigger
             PatternType.TEXT_CASELESS);
         comments = new SimpleStringProperty(this, "comments");
         oneTime = new SimpleBooleanProperty(this, "oneTime");
+
+        pattern.addListener(obs -> regex = null);
+        patternType.addListener(obs -> regex = null);
     }
 
     @Override
@@ -145,11 +156,27 @@ public class Trigger
         this.patternType.set(type);
     }
 
+    /**
+     * Returns this trigger's pattern as a regular expression.  The result is
+     * compiled only once, and is recompiled only when the
+     * {@linkplain #patternProperty() pattern} or
+     * {@linkplain #patternTypeProperty() pattern type} changes.
+     *
+     * @return compiled form of this trigger's pattern
+     *
+     * @throws PatternSyntaxException if pattern is not valid for its type
+     */
     Pattern toRegex()
     throws PatternSyntaxException
     {
-        return patternToRegex(getPattern(), getPatternType(),
-            unclosedGlobClassFormat);
+        Pattern compiled = regex;
+        if (compiled == null)
+        {
+            compiled = patternToRegex(getPattern(), getPatternType(),
+                unclosedGlobClassFormat);
+            regex = compiled;
+        }
+        return compiled;
     }
 
     @SuppressWarnings("fallthrough")
@@ -266,8 +293,9 @@ public class Trigger
 
     public boolean matches(CharSequence text)
     {
-        logger.finer(() -> "regex=\"" + toRegex() + "\"");
-        return toRegex().matcher(text).find();
+        Pattern compiled = toRegex();
+        logger.finer(() -> "regex=\"" + compiled + "\"");
+        return compiled.matcher(text).find();
     }
 
     public StringProperty commentsProperty()
@@ -0,0 +1,934 @@
+package net.pan.textend;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+
+import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
+import java.util.regex.PatternSyntaxException;
+
+import java.util.logging.Logger;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.WeakInvalidationListener;
+import javafx.collections.ObservableList;
+
+/**
+ * Matches an entire list of triggers against a line in one pass.
+ * <p>
+ * Literal ({@link PatternType#TEXT TEXT} and
+ * {@link PatternType#TEXT_CASELESS TEXT_CASELESS}) patterns are placed in
+ * an Aho-Corasick automaton, so their matches are found by a single scan of
+ * the line, regardless of how many there are.  The same automaton also
+ * holds one literal substring required by each glob and regular expression
+ * pattern, when such a substring can be determined;  those triggers' regular
+ * expressions are only run if the scan found their required substring.
+ * <p>
+ * Automaton keys are always ASCII, but lines may contain any characters.
+ * A character outside ASCII cannot be part of a key, so it simply returns
+ * the scan to its start state.  The exceptions are the few characters
+ * which Unicode case folding makes equal to ASCII letters, such as
+ * U+212A KELVIN SIGN;  they are scanned as those letters, so caseless
+ * patterns find them just as their regular expressions do.
+ * <p>
+ * Glob patterns are compiled with canonical equivalence, so an ASCII
+ * letter followed by a combining mark, such as {@code e} followed by
+ * U+0301 COMBINING ACUTE ACCENT, matches a precomposed character, such as
+ * U+00E9 LATIN SMALL LETTER E WITH ACUTE, in which the letter does not
+ * appear.  An ASCII character followed in a glob by a non-ASCII character
+ * is therefore never part of that glob's required text.  An ASCII
+ * character in a line followed by combining marks needs no such care;
+ * it is still matched by patterns which contain it.
+ * <p>
+ * The automaton is rebuilt lazily whenever the trigger list changes or
+ * any trigger's pattern or pattern type changes.
+ * <p>
+ * Instances are not thread-safe;  they are intended to be used only
+ * on the JavaFX application thread.
+ */
+class TriggerMatcher
+{
+    private static final Logger logger =
+        Logger.getLogger(TriggerMatcher.class.getName());
+
+    /** Number of characters the automaton understands. */
+    private static final int ALPHABET_SIZE = 128;
+
+    /** Regular expression characters which are never literal. */
+    private static final String REGEX_SPECIAL_CHARS = ".\\[](){}*+?^$|";
+
+    /** Glob characters which are never literal. */
+    private static final String GLOB_SPECIAL_CHARS = "\\?*[";
+
+    /** How a trigger's matches are found. */
+    private enum Strategy
+    {
+        /** Pattern is a literal;  automaton finds all matches. */
+        LITERAL,
+        /** Regex is run only if automaton finds a required substring. */
+        FILTERED,
+        /** Regex is always run. */
+        ALWAYS
+    }
+
+    /**
+     * All matches of a single trigger in a line.
+     */
+    static final class Result
+    {
+        final Trigger trigger;
+
+        /** Matches in the order they occur in the line;  never empty. */
+        final List<MatchResult> matches;
+
+        Result(Trigger trigger,
+               List<MatchResult> matches)
+        {
+            this.trigger = trigger;
+            this.matches = matches;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getClass().getSimpleName()
+                + "[" + trigger + ", " + matches.size() + " matches]";
+        }
+    }
+
+    /**
+     * Match of a literal pattern, which never has capturing groups.
+     */
+    private static final class LiteralMatch
+    implements MatchResult
+    {
+        private final String text;
+        private final int start;
+        private final int end;
+
+        LiteralMatch(String text,
+                     int start,
+                     int end)
+        {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int start()
+        {
+            return start;
+        }
+
+        @Override
+        public int start(int group)
+        {
+            checkGroup(group);
+            return start;
+        }
+
+        @Override
+        public int end()
+        {
+            return end;
+        }
+
+        @Override
+        public int end(int group)
+        {
+            checkGroup(group);
+            return end;
+        }
+
+        @Override
+        public String group()
+        {
+            return text.substring(start, end);
+        }
+
+        @Override
+        public String group(int group)
+        {
+            checkGroup(group);
+            return group();
+        }
+
+        @Override
+        public int groupCount()
+        {
+            return 0;
+        }
+
+        private static void checkGroup(int group)
+        {
+            if (group != 0)
+            {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+        }
+    }
+
+    private final ObservableList<Trigger> triggers;
+
+    private final InvalidationListener invalidator = obs -> invalidate();
+
+    private final InvalidationListener weakInvalidator =
+        new WeakInvalidationListener(invalidator);
+
+    /** Triggers the current automaton was built from. */
+    private Trigger[] builtTriggers;
+
+    /**
+     * Triggers whose pattern and pattern type properties have
+     * {@link #weakInvalidator} as a listener.  Kept apart from
+     * {@link #builtTriggers}, since a build which fails has added
+     * listeners but produced no automaton.
+     */
+    private Trigger[] listenedTriggers = new Trigger[0];
+
+    private Strategy[] strategies;
+
+    /**
+     * Literal text each trigger's automaton key must match, including case,
+     * or {@code null} if key is caseless or trigger has no key.
+     */
+    private String[] caseSensitiveKeys;
+
+    /** Length of each trigger's automaton key. */
+    private int[] keyLengths;
+
+    /** Transition table:  {@code delta[state * ALPHABET_SIZE + c]}. */
+    private int[] delta;
+
+    /** Indices of triggers whose keys end at each state. */
+    private int[][] outputs;
+
+    // Scratch space for match(), reused to avoid allocation per line.
+
+    private boolean[] keyFound;
+
+    private int[] lastLiteralEnd;
+
+    private List<List<MatchResult>> literalMatches;
+
+    TriggerMatcher(ObservableList<Trigger> triggers)
+    {
+        this.triggers = Objects.requireNonNull(triggers,
+            "Trigger list cannot be null");
+        triggers.addListener(weakInvalidator);
+    }
+
+    private void invalidate()
+    {
+        if (builtTriggers != null)
+        {
+            logger.fine("Triggers changed;  automaton will be rebuilt.");
+            builtTriggers = null;
+        }
+    }
+
+    /**
+     * Finds all matches of all triggers in a line.  For each trigger, the
+     * matches are the same ones its {@linkplain Trigger#toRegex() regex}
+     * would find with repeated calls to {@code Matcher.find()}.
+     *
+     * @param line text to match
+     *
+     * @return list of triggers which matched, in their original order,
+     *         with their matches
+     *
+     * @throws PatternSyntaxException if any trigger has an invalid pattern
+     */
+    List<Result> match(String line)
+    throws PatternSyntaxException
+    {
+        if (builtTriggers == null)
+        {
+            build();
+        }
+
+        int count = builtTriggers.length;
+        if (count == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        scan(line);
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            Trigger trigger = builtTriggers[i];
+
+            List<MatchResult> matches;
+            if (strategies[i] == Strategy.ALWAYS)
+            {
+                matches = findAll(trigger, line);
+            }
+            else if (strategies[i] == Strategy.FILTERED)
+            {
+                matches = (keyFound[i] ? findAll(trigger, line) : null);
+            }
+            else
+            {
+                matches = literalMatches.get(i);
+            }
+
+            if (matches != null && !matches.isEmpty())
+            {
+                results.add(new Result(trigger, matches));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs automaton over line, recording literal matches and
+     * required substrings found.
+     *
+     * @param line text to scan
+     */
+    private void scan(String line)
+    {
+        Arrays.fill(keyFound, false);
+        Arrays.fill(lastLiteralEnd, 0);
+        Collections.fill(literalMatches, null);
+
+        int state = 0;
+        int len = line.length();
+        for (int i = 0; i < len; i++)
+        {
+            int c = line.charAt(i);
+            if (c >= ALPHABET_SIZE)
+            {
+                c = caselessASCIIEquivalent(c);
+                if (c < 0)
+                {
+                    // No key contains this character.
+                    state = 0;
+                    continue;
+                }
+            }
+            else if (c >= 'A' && c <= 'Z')
+            {
+                c += 'a' - 'A';
+            }
+
+            state = delta[state * ALPHABET_SIZE + c];
+            for (int t : outputs[state])
+            {
+                int end = i + 1;
+                int start = end - keyLengths[t];
+
+                String key = caseSensitiveKeys[t];
+                if (key != null &&
+                    !line.regionMatches(start, key, 0, key.length()))
+                {
+                    continue;
+                }
+
+                keyFound[t] = true;
+
+                // Same as Matcher.find:  each search starts where
+                // the previous match ended.
+                if (strategies[t] == Strategy.LITERAL &&
+                    start >= lastLiteralEnd[t])
+                {
+                    lastLiteralEnd[t] = end;
+
+                    List<MatchResult> matches = literalMatches.get(t);
+                    if (matches == null)
+                    {
+                        matches = new ArrayList<>(1);
+                        literalMatches.set(t, matches);
+                    }
+                    matches.add(new LiteralMatch(line, start, end));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ASCII letter which case insensitive patterns consider
+     * equal to a character outside ASCII.  Case sensitive keys never match
+     * such a character, since their text is compared exactly.
+     *
+     * @param c character which is not ASCII
+     *
+     * @return lowercase ASCII letter, or -1 if no ASCII character is
+     *         equal to {@code c}, ignoring case
+     */
+    private static int caselessASCIIEquivalent(int c)
+    {
+        switch (c)
+        {
+            case '\u0130':     // LATIN CAPITAL LETTER I WITH DOT ABOVE
+            case '\u0131':     // LATIN SMALL LETTER DOTLESS I
+                return 'i';
+            case '\u017f':     // LATIN SMALL LETTER LONG S
+                return 's';
+            case '\u212a':     // KELVIN SIGN
+                return 'k';
+            default:
+                return -1;
+        }
+    }
+
+    private static List<MatchResult> findAll(Trigger trigger,
+                                             String line)
+    {
+        List<MatchResult> matches = null;
+
+        Matcher matcher = trigger.toRegex().matcher(line);
+        while (matcher.find())
+        {
+            if (matches == null)
+            {
+                matches = new ArrayList<>(1);
+            }
+            matches.add(matcher.toMatchResult());
+        }
+
+        return matches;
+    }
+
+    private void build()
+    throws PatternSyntaxException
+    {
+        Trigger[] triggerArray = triggers.toArray(new Trigger[0]);
+        int count = triggerArray.length;
+
+        // Listen to each trigger exactly once, even if the trigger was in
+        // the list before, or an earlier build failed.
+        for (Trigger trigger : listenedTriggers)
+        {
+            trigger.patternProperty().removeListener(weakInvalidator);
+            trigger.patternTypeProperty().removeListener(weakInvalidator);
+        }
+        for (Trigger trigger : triggerArray)
+        {
+            trigger.patternProperty().addListener(weakInvalidator);
+            trigger.patternTypeProperty().addListener(weakInvalidator);
+        }
+        listenedTriggers = triggerArray;
+
+        strategies = new Strategy[count];
+        caseSensitiveKeys = new String[count];
+        keyLengths = new int[count];
+        keyFound = new boolean[count];
+        lastLiteralEnd = new int[count];
+        literalMatches = new ArrayList<>(Collections.nCopies(count, null));
+
+        String[] foldedKeys = new String[count];
+        int maxStates = 1;
+
+        for (int i = 0; i < count; i++)
+        {
+            Trigger trigger = triggerArray[i];
+
+            String pattern = trigger.getPattern();
+            PatternType type = trigger.getPatternType();
+
+            String key;
+            switch (type)
+            {
+                case TEXT:
+                case TEXT_CASELESS:
+                    key = (isASCII(pattern) ? pattern : null);
+                    strategies[i] = Strategy.LITERAL;
+                    break;
+                case GLOB:
+                case GLOB_CASELESS:
+                    key = requiredGlobText(pattern);
+                    strategies[i] = Strategy.FILTERED;
+                    break;
+                case REGEX:
+                    key = requiredRegexText(pattern);
+                    strategies[i] = Strategy.FILTERED;
+                    break;
+                default:
+                    key = null;
+                    break;
+            }
+
+            if (key == null || key.isEmpty())
+            {
+                strategies[i] = Strategy.ALWAYS;
+            }
+
+            if (strategies[i] != Strategy.LITERAL)
+            {
+                // Compile now, so pattern errors are reported right away,
+                // even if the trigger's regex is never run.
+                trigger.toRegex();
+            }
+
+            if (strategies[i] != Strategy.ALWAYS)
+            {
+                keyLengths[i] = key.length();
+                foldedKeys[i] = foldCase(key);
+                maxStates += key.length();
+                if (type.isCaseSensitive())
+                {
+                    caseSensitiveKeys[i] = key;
+                }
+            }
+        }
+
+        buildAutomaton(foldedKeys, maxStates);
+
+        builtTriggers = triggerArray;
+
+        logger.fine(() -> "Built automaton for " + count + " triggers: "
+            + Arrays.toString(strategies));
+    }
+
+    private void buildAutomaton(String[] keys,
+                                int maxStates)
+    {
+        delta = new int[maxStates * ALPHABET_SIZE];
+        Arrays.fill(delta, -1);
+
+        List<List<Integer>> ownOutputs = new ArrayList<>(maxStates);
+        ownOutputs.add(Collections.emptyList());
+
+        // Build trie.
+        int stateCount = 1;
+        for (int k = 0; k < keys.length; k++)
+        {
+            String key = keys[k];
+            if (key == null)
+            {
+                continue;
+            }
+
+            int state = 0;
+            int len = key.length();
+            for (int i = 0; i < len; i++)
+            {
+                int index = state * ALPHABET_SIZE + key.charAt(i);
+                if (delta[index] < 0)
+                {
+                    delta[index] = stateCount++;
+                    ownOutputs.add(Collections.emptyList());
+                }
+                state = delta[index];
+            }
+
+            List<Integer> own = ownOutputs.get(state);
+            if (own.isEmpty())
+            {
+                own = new ArrayList<>(1);
+                ownOutputs.set(state, own);
+            }
+            own.add(k);
+        }
+
+        // Add failure transitions, breadth first, so every state's
+        // failure state is complete before the state itself is visited.
+        int[] fail = new int[stateCount];
+        outputs = new int[stateCount][];
+        outputs[0] = new int[0];
+
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET_SIZE; c++)
+        {
+            int next = delta[c];
+            if (next < 0)
+            {
+                delta[c] = 0;
+            }
+            else
+            {
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+
+        while (!queue.isEmpty())
+        {
+            int state = queue.remove();
+
+            List<Integer> own = ownOutputs.get(state);
+            int[] inherited = outputs[fail[state]];
+            int[] all = Arrays.copyOf(inherited,
+                inherited.length + own.size());
+            for (int i = 0; i < own.size(); i++)
+            {
+                all[inherited.length + i] = own.get(i);
+            }
+            outputs[state] = all;
+
+            int base = state * ALPHABET_SIZE;
+            int failBase = fail[state] * ALPHABET_SIZE;
+            for (int c = 0; c < ALPHABET_SIZE; c++)
+            {
+                int next = delta[base + c];
+                if (next < 0)
+                {
+                    delta[base + c] = delta[failBase + c];
+                }
+                else
+                {
+                    fail[next] = delta[failBase + c];
+                    queue.add(next);
+                }
+            }
+        }
+
+        if (stateCount < maxStates)
+        {
+            delta = Arrays.copyOf(delta, stateCount * ALPHABET_SIZE);
+        }
+    }
+
+    private static boolean isASCII(String text)
+    {
+        if (text == null)
+        {
+            return false;
+        }
+
+        int len = text.length();
+        for (int i = 0; i < len; i++)
+        {
+            if (text.charAt(i) >= ALPHABET_SIZE)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String foldCase(String text)
+    {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+        {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z')
+            {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the longer of the current run and the longest run so far.
+     */
+    private static String longer(StringBuilder run,
+                                 String longest)
+    {
+        if (run.length() > longest.length())
+        {
+            longest = run.toString();
+        }
+        run.setLength(0);
+        return longest;
+    }
+
+    private static void dropLast(StringBuilder run)
+    {
+        if (run.length() > 0)
+        {
+            run.setLength(run.length() - 1);
+        }
+    }
+
+    /**
+     * Finds the longest ASCII text which any match of a glob pattern
+     * must contain.
+     *
+     * @param glob glob pattern, as understood by
+     *             {@link Trigger#patternToRegex Trigger.patternToRegex}
+     *
+     * @return required literal text, or {@code null} if none was found
+     */
+    static String requiredGlobText(String glob)
+    {
+        if (glob == null)
+        {
+            return null;
+        }
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+
+        int len = glob.length();
+        for (int i = 0; i < len; i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '\\' && i + 1 < len)
+            {
+                c = glob.charAt(++i);
+            }
+            else if (GLOB_SPECIAL_CHARS.indexOf(c) >= 0)
+            {
+                if (c == '[')
+                {
+                    // Skip character class.  Like patternToRegex,
+                    // a ']' immediately after '[' or "[!" is literal.
+                    int classStart = i + 1;
+                    if (classStart < len && glob.charAt(classStart) == '!')
+                    {
+                        classStart++;
+                    }
+                    int close = glob.indexOf(']', classStart + 1);
+                    if (close < 0)
+                    {
+                        return null;
+                    }
+                    if (!isASCII(glob.substring(classStart, close)))
+                    {
+                        // Class may match a combining mark.
+                        dropLast(run);
+                    }
+                    i = close;
+                }
+                longest = longer(run, longest);
+                continue;
+            }
+
+            if (c >= ALPHABET_SIZE)
+            {
+                // Preceding character may combine with this one, under
+                // canonical equivalence, into a character not in ASCII.
+                dropLast(run);
+                longest = longer(run, longest);
+            }
+            else
+            {
+                run.append(c);
+            }
+        }
+        longest = longer(run, longest);
+
+        return (longest.isEmpty() ? null : longest);
+    }
+
+    /**
+     * Skips over a bracketed portion of a regular expression.
+     *
+     * @return index of closing character, or -1 if not found
+     */
+    private static int skipTo(String regex,
+                              int start,
+                              char close)
+    {
+        return regex.indexOf(close, start);
+    }
+
+    /**
+     * Finds the longest ASCII text which any match of a regular expression
+     * must contain.  Only top-level literal characters are considered, and
+     * any construct which might make the analysis unreliable (alternation,
+     * inline flags, quoting) causes no text to be returned.
+     *
+     * @param regex regular expression, compiled without flags
+     *
+     * @return required literal text, or {@code null} if none was found
+     */
+    static String requiredRegexText(String regex)
+    {
+        if (regex == null || regex.indexOf('|') >= 0 ||
+            regex.contains("(?") || regex.contains("\\Q"))
+        {
+            return null;
+        }
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+
+        int len = regex.length();
+        for (int i = 0; i < len; i++)
+        {
+            char c = regex.charAt(i);
+
+            if (c == '\\')
+            {
+                if (++i >= len)
+                {
+                    return null;
+                }
+                c = regex.charAt(i);
+
+                if (!Character.isLetterOrDigit(c))
+                {
+                    // Escaped punctuation is a literal character.
+                    if (depth == 0 && c < ALPHABET_SIZE)
+                    {
+                        run.append(c);
+                    }
+                    else
+                    {
+                        longest = longer(run, longest);
+                    }
+                    continue;
+                }
+
+                longest = longer(run, longest);
+
+                // Skip escape's argument, if any.
+                switch (c)
+                {
+                    case 'u':
+                        i += 4;
+                        break;
+                    case 'x':
+                        if (i + 1 < len && regex.charAt(i + 1) == '{')
+                        {
+                            i = skipTo(regex, i, '}');
+                        }
+                        else
+                        {
+                            i += 2;
+                        }
+                        break;
+                    case 'p':
+                    case 'P':
+                    case 'N':
+                        if (i + 1 < len && regex.charAt(i + 1) == '{')
+                        {
+                            i = skipTo(regex, i, '}');
+                        }
+                        else
+                        {
+                            i++;
+                        }
+                        break;
+                    case 'k':
+                        i = skipTo(regex, i, '>');
+                        break;
+                    case 'c':
+                        i++;
+                        break;
+                    default:
+                        // Octal escapes and back references.
+                        if (Character.isDigit(c))
+                        {
+                            while (i + 1 < len &&
+                                   Character.isDigit(regex.charAt(i + 1)))
+                            {
+                                i++;
+                            }
+                        }
+                        break;
+                }
+
+                if (i < 0 || i >= len)
+                {
+                    return null;
+                }
+                continue;
+            }
+
+            switch (c)
+            {
+                case '[':
+                    longest = longer(run, longest);
+                    i = skipCharClass(regex, i);
+                    if (i < 0)
+                    {
+                        return null;
+                    }
+                    break;
+                case '(':
+                    longest = longer(run, longest);
+                    depth++;
+                    break;
+                case ')':
+                    longest = longer(run, longest);
+                    depth--;
+                    break;
+                case '?':
+                case '*':
+                case '{':
+                    // Preceding character is optional.
+                    if (run.length() > 0)
+                    {
+                        run.setLength(run.length() - 1);
+                    }
+                    longest = longer(run, longest);
+                    if (c == '{')
+                    {
+                        i = skipTo(regex, i, '}');
+                        if (i < 0)
+                        {
+                            return null;
+                        }
+                    }
+                    break;
+                default:
+                    if (REGEX_SPECIAL_CHARS.indexOf(c) >= 0 ||
+                        c >= ALPHABET_SIZE || depth > 0)
+                    {
+                        // '+' ends run, but preceding character is
+                        // still required.
+                        longest = longer(run, longest);
+                    }
+                    else
+                    {
+                        run.append(c);
+                    }
+                    break;
+            }
+        }
+        longest = longer(run, longest);
+
+        return (longest.isEmpty() ? null : longest);
+    }
+
+    /**
+     * Skips over a regular expression character class, including
+     * nested classes.
+     *
+     * @param regex regular expression
+     * @param start index of opening '['
+     *
+     * @return index of closing ']', or -1 if class cannot be parsed
+     */
+    private static int skipCharClass(String regex,
+                                     int start)
+    {
+        int i = start + 1;
+        int len = regex.length();
+        if (i < len && regex.charAt(i) == '^')
+        {
+            i++;
+        }
+        if (i < len && regex.charAt(i) == ']')
+        {
+            // Not worth trying to interpret.
+            return -1;
+        }
+
+        int depth = 1;
+        for (; i < len; i++)
+        {
+            char c = regex.charAt(i);
+            if (c == '\\')
+            {
+                i++;
+            }
+            else if (c == '[')
+            {
+                depth++;
+            }
+            else if (c == ']' && --depth == 0)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -3,5 +3,7 @@ package net.pan.textend;
 public enum TriggerType
 {
     RECEIVE,
-    SEND
+    SEND,
+    /** GMCP or MSDP data is received;  see {@link OutOfBandMessage}. */
+    DATA
 }
@@ -0,0 +1,214 @@
+package net.pan.textend;
+
+import java.util.Objects;
+
+/**
+ * Replaces codepoint escapes in received text, such as {@code {U+221e}},
+ * with the characters they represent.  Escapes are found with
+ * {@code indexOf} and their hexadecimal digits are parsed directly, so
+ * text without escapes is returned as is, without copying.
+ * <p>
+ * An escape can be split between two reads from the network, when a
+ * partial line is conveyed as a prompt.  When told more text will follow,
+ * this decoder holds back a trailing partial escape and prepends it to
+ * the next text it decodes.
+ * <p>
+ * Instances are not thread safe;  each connection needs its own.
+ */
+class UnicodeEscapeDecoder
+{
+    /** Text between an escape's start and its hexadecimal digits. */
+    private static final String CODEPOINT_PREFIX = "U+";
+
+    /** Character shown for an escape which is not a valid codepoint. */
+    private static final int REPLACEMENT_CHARACTER = 0xfffd;
+
+    private final String unicodeStart;
+
+    private final String unicodeEnd;
+
+    /** Partial escape held back from end of previously decoded text. */
+    private String pending = "";
+
+    /**
+     * Creates a decoder.
+     *
+     * @param unicodeStart text which starts an escape
+     * @param unicodeEnd text which ends an escape
+     *
+     * @throws IllegalArgumentException if either argument is empty
+     */
+    UnicodeEscapeDecoder(String unicodeStart,
+                         String unicodeEnd)
+    {
+        this.unicodeStart = Objects.requireNonNull(unicodeStart,
+            "Start cannot be null");
+        this.unicodeEnd = Objects.requireNonNull(unicodeEnd,
+            "End cannot be null");
+
+        if (unicodeStart.isEmpty())
+        {
+            throw new IllegalArgumentException("Start cannot be empty");
+        }
+        if (unicodeEnd.isEmpty())
+        {
+            throw new IllegalArgumentException("End cannot be empty");
+        }
+    }
+
+    /**
+     * Replaces each escape in text which is known to be complete.
+     *
+     * @param text received text
+     *
+     * @return text with escapes replaced
+     */
+    String decode(String text)
+    {
+        return decode(text, true);
+    }
+
+    /**
+     * Replaces each escape in text, after any partial escape held back
+     * from the previous call.
+     *
+     * @param text received text
+     * @param complete whether text ends at a point where an escape cannot
+     *                 continue, such as the end of a line;  if false, a
+     *                 trailing partial escape is held back
+     *
+     * @return text with escapes replaced, without any held back text
+     */
+    String decode(String text,
+                  boolean complete)
+    {
+        if (!pending.isEmpty())
+        {
+            text = pending + text;
+            pending = "";
+        }
+
+        int length = text.length();
+        int limit = length;
+
+        StringBuilder decoded = null;
+        int copied = 0;
+
+        int escape = text.indexOf(unicodeStart);
+        while (escape >= 0)
+        {
+            int i = escape + unicodeStart.length();
+            boolean truncated = false;
+            int escapeEnd = -1;
+            int codepoint = 0;
+
+            int prefixLength =
+                Math.min(CODEPOINT_PREFIX.length(), length - i);
+            if (text.regionMatches(i, CODEPOINT_PREFIX, 0, prefixLength))
+            {
+                i += prefixLength;
+
+                int digits = 0;
+                int digit;
+                while (i < length && (digit = hexValue(text.charAt(i))) >= 0)
+                {
+                    // Stop accumulating once too large, so int cannot
+                    // overflow;  value is then treated as invalid.
+                    if (codepoint <= Character.MAX_CODE_POINT)
+                    {
+                        codepoint = codepoint * 16 + digit;
+                    }
+                    digits++;
+                    i++;
+                }
+
+                if (i == length)
+                {
+                    truncated = true;
+                }
+                else if (digits > 0)
+                {
+                    int endLength = Math.min(unicodeEnd.length(), length - i);
+                    if (text.regionMatches(i, unicodeEnd, 0, endLength))
+                    {
+                        if (endLength < unicodeEnd.length())
+                        {
+                            truncated = true;
+                        }
+                        else
+                        {
+                            escapeEnd = i + endLength;
+                        }
+                    }
+                }
+            }
+
+            if (truncated && !complete)
+            {
+                limit = escape;
+                break;
+            }
+
+            if (escapeEnd < 0)
+            {
+                escape = text.indexOf(unicodeStart, escape + 1);
+                continue;
+            }
+
+            if (decoded == null)
+            {
+                decoded = new StringBuilder(length);
+            }
+            decoded.append(text, copied, escape);
+            decoded.appendCodePoint(Character.isValidCodePoint(codepoint) ?
+                codepoint : REPLACEMENT_CHARACTER);
+            copied = escapeEnd;
+
+            escape = text.indexOf(unicodeStart, escapeEnd);
+        }
+
+        if (!complete && limit == length)
+        {
+            // Text may end with only part of a multi-character start.
+            for (int n = Math.min(unicodeStart.length() - 1, length);
+                 n > 0; n--)
+            {
+                if (text.regionMatches(length - n, unicodeStart, 0, n))
+                {
+                    limit = length - n;
+                    break;
+                }
+            }
+        }
+
+        if (limit < length)
+        {
+            pending = text.substring(limit);
+        }
+
+        if (decoded == null)
+        {
+            return (limit == length ? text : text.substring(0, limit));
+        }
+
+        decoded.append(text, copied, limit);
+        return decoded.toString();
+    }
+
+    private static int hexValue(char c)
+    {
+        if (c >= '0' && c <= '9')
+        {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f')
+        {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F')
+        {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
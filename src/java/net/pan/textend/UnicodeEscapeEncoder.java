@@ -0,0 +1,192 @@
+package net.pan.textend;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Encodes lines of text to be sent, in a single pass of a
+ * {@link CharsetEncoder}.  Each character the charset cannot represent
+ * is written as a codepoint escape, such as {@code {U+221e}}, in its
+ * place.  Lines are encoded into one reusable buffer.
+ * <p>
+ * Instances are not thread safe, and do no locking of their own;  each
+ * must be used by only one thread at a time.  {@link Chat} confines each
+ * of its encoders to its sender thread.
+ */
+class UnicodeEscapeEncoder
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Text between an escape's start and its hexadecimal digits. */
+    private static final String CODEPOINT_PREFIX = "U+";
+
+    /** Minimum number of hexadecimal digits in an escape. */
+    private static final int MIN_DIGITS = 4;
+
+    private static final String LINE_TERMINATOR = "\r\n";
+
+    private final CharsetEncoder encoder;
+
+    private final String unicodeStart;
+
+    private final String unicodeEnd;
+
+    private final StringBuilder escape = new StringBuilder();
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+    /**
+     * Creates an encoder.
+     *
+     * @param charset charset of connection
+     * @param unicodeStart text which starts an escape
+     * @param unicodeEnd text which ends an escape
+     *
+     * @throws IllegalArgumentException if charset cannot encode escapes
+     */
+    UnicodeEscapeEncoder(Charset charset,
+                         String unicodeStart,
+                         String unicodeEnd)
+    {
+        Objects.requireNonNull(charset, "Charset cannot be null");
+        this.unicodeStart = Objects.requireNonNull(unicodeStart,
+            "Start cannot be null");
+        this.unicodeEnd = Objects.requireNonNull(unicodeEnd,
+            "End cannot be null");
+
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        if (!encoder.canEncode(unicodeStart + CODEPOINT_PREFIX
+            + "0123456789abcdef" + unicodeEnd + LINE_TERMINATOR))
+        {
+            throw new IllegalArgumentException(
+                "Escapes cannot be encoded in " + charset);
+        }
+    }
+
+    /**
+     * Encodes a line of text, followed by CR LF.
+     *
+     * @param text text to encode, without line terminator
+     *
+     * @return buffer holding encoded line, ready to be read;  valid only
+     *         until this encoder is used again
+     */
+    ByteBuffer encodeLine(CharSequence text)
+    {
+        buffer.clear();
+        appendLine(text);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes lines of text, each followed by CR LF, into consecutive
+     * parts of one buffer.
+     *
+     * @param lines lines to encode, without line terminators
+     *
+     * @return one buffer per line, ready to be read;  valid only until
+     *         this encoder is used again
+     */
+    ByteBuffer[] encodeLines(List<? extends CharSequence> lines)
+    {
+        buffer.clear();
+
+        int[] ends = new int[lines.size()];
+        for (int i = 0; i < ends.length; i++)
+        {
+            appendLine(lines.get(i));
+            ends[i] = buffer.position();
+        }
+
+        // Views are created last, since buffer may have been replaced.
+        ByteBuffer[] encoded = new ByteBuffer[ends.length];
+        int start = 0;
+        for (int i = 0; i < ends.length; i++)
+        {
+            encoded[i] = buffer.duplicate().limit(ends[i]).position(start);
+            start = ends[i];
+        }
+        return encoded;
+    }
+
+    private void appendLine(CharSequence text)
+    {
+        encoder.reset();
+
+        CharBuffer in = CharBuffer.wrap(text);
+        while (true)
+        {
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isUnderflow())
+            {
+                break;
+            }
+            if (result.isOverflow())
+            {
+                grow();
+                continue;
+            }
+
+            // Unmappable character, or a lone surrogate.
+            int length = result.length();
+            int codepoint = (length == 2 ?
+                Character.toCodePoint(in.charAt(0), in.charAt(1)) :
+                in.charAt(0));
+            in.position(in.position() + length);
+            putEscape(codepoint);
+        }
+
+        put(CharBuffer.wrap(LINE_TERMINATOR));
+        while (encoder.flush(buffer).isOverflow())
+        {
+            grow();
+        }
+    }
+
+    private void putEscape(int codepoint)
+    {
+        int digits = Math.max(MIN_DIGITS,
+            (Integer.SIZE - Integer.numberOfLeadingZeros(codepoint) + 3) / 4);
+
+        escape.setLength(0);
+        escape.append(unicodeStart).append(CODEPOINT_PREFIX);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+        {
+            escape.append(Character.forDigit((codepoint >> shift) & 0xf, 16));
+        }
+        escape.append(unicodeEnd);
+
+        put(CharBuffer.wrap(escape));
+    }
+
+    /**
+     * Encodes text known to be representable in the charset.
+     */
+    private void put(CharBuffer text)
+    {
+        while (encoder.encode(text, buffer, true).isOverflow())
+        {
+            grow();
+        }
+    }
+
+    private void grow()
+    {
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
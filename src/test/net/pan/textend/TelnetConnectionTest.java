@@ -0,0 +1,189 @@
+package net.pan.textend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regression checks for {@link TelnetConnection}'s handling of received
+ * bytes, run against a local socket.  Each check throws
+ * {@code AssertionError} on failure, so the program's exit status
+ * reports the result.
+ */
+public class TelnetConnectionTest
+{
+    private static final int IAC = 255;
+
+    private static final int GA = 249;
+
+    private static final int WILL = 251;
+
+    private static final int WONT = 252;
+
+    private static final int DO = 253;
+
+    private static final int DONT = 254;
+
+    private static final int MSDP = 69;
+
+    private static final int COMPRESS3 = 87;
+
+    private static final int GMCP = 201;
+
+    /** Option which TelnetConnection does not support. */
+    private static final int TERMINAL_TYPE = 24;
+
+    /** Longest time to wait for expected text. */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args)
+    throws IOException,
+           InterruptedException
+    {
+        fullBufferEndingInIAC();
+        checkReply(DONT, COMPRESS3, WONT);
+        checkReply(WONT, COMPRESS3, DONT);
+        checkReply(DONT, GMCP, WONT);
+        checkReply(DONT, MSDP, WONT);
+        checkReply(DO, GMCP, WONT);
+        checkReply(DONT, TERMINAL_TYPE, WONT);
+        checkReply(WONT, TERMINAL_TYPE, DONT);
+        checkReply(DO, TERMINAL_TYPE, WONT);
+        System.out.println("All checks passed.");
+    }
+
+    /**
+     * Fills the read buffer with a partial line whose last byte is a lone
+     * IAC.  The text before the IAC must be conveyed, so the buffer can
+     * be compacted and the byte after the IAC read;  otherwise reading
+     * stalls forever.
+     */
+    private static void fullBufferEndingInIAC()
+    throws IOException,
+           InterruptedException
+    {
+        StringBuffer received = new StringBuffer();
+
+        try (ServerSocket server = new ServerSocket(0))
+        {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost",
+                server.getLocalPort()));
+
+            // TelnetConnection's buffer is twice the receive buffer size.
+            int capacity =
+                socket.getOption(StandardSocketOptions.SO_RCVBUF) * 2;
+
+            TelnetConnection connection = TelnetConnection.create(socket,
+                StandardCharsets.ISO_8859_1, received::append);
+
+            try (Socket talker = server.accept())
+            {
+                connection.start();
+
+                byte[] text = new byte[capacity];
+                Arrays.fill(text, (byte) 'a');
+                text[capacity - 1] = (byte) IAC;
+
+                OutputStream out = talker.getOutputStream();
+                out.write(text);
+                out.flush();
+                Thread.sleep(200);
+                out.write(GA);
+                out.write("done\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+                while (received.indexOf("done") < 0)
+                {
+                    if (System.nanoTime() - deadline > 0)
+                    {
+                        throw new AssertionError("Reading stalled after "
+                            + received.length() + " characters");
+                    }
+                    Thread.sleep(10);
+                }
+            }
+            finally
+            {
+                connection.close();
+            }
+
+            String expected = "a".repeat(capacity - 1) + "done\r\n";
+            if (!received.toString().equals(expected))
+            {
+                throw new AssertionError("Expected " + expected.length()
+                    + " characters, but received " + received.length());
+            }
+        }
+    }
+
+    /**
+     * Sends a negotiation command, and checks the command in the reply.
+     * The reply must be the first negotiation of the option that
+     * TelnetConnection sends.
+     */
+    private static void checkReply(int command,
+                                   int opt,
+                                   int expectedReply)
+    throws IOException
+    {
+        try (ServerSocket server = new ServerSocket(0))
+        {
+            Socket socket = new Socket("localhost", server.getLocalPort());
+            TelnetConnection connection = TelnetConnection.create(socket,
+                StandardCharsets.ISO_8859_1, text -> { });
+
+            try (Socket talker = server.accept())
+            {
+                talker.setSoTimeout(
+                    (int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                connection.start();
+
+                OutputStream out = talker.getOutputStream();
+                out.write(new byte[] { (byte) IAC, (byte) command, (byte) opt });
+                out.flush();
+
+                InputStream in = talker.getInputStream();
+                int previous = -1;
+                int beforePrevious = -1;
+                int b;
+                while ((b = in.read()) >= 0)
+                {
+                    if (beforePrevious == IAC && b == opt &&
+                        previous >= WILL && previous <= DONT)
+                    {
+                        if (previous != expectedReply)
+                        {
+                            throw new AssertionError("Expected reply "
+                                + expectedReply + " to " + command + " "
+                                + opt + ", but received " + previous);
+                        }
+                        return;
+                    }
+                    beforePrevious = previous;
+                    previous = b;
+                }
+                throw new AssertionError("No reply to " + command + " "
+                    + opt);
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.pan.textend;
+
+import java.util.List;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * Regression checks for {@link TriggerMatcher}:  whatever shortcuts it
+ * takes, it must find a trigger in exactly the lines which
+ * {@link Trigger#matches Trigger.matches} accepts.  Each check throws
+ * {@code AssertionError} on failure, so the program's exit status
+ * reports the result.
+ */
+public class TriggerMatcherTest
+{
+    /** U+0301 COMBINING ACUTE ACCENT. */
+    private static final String ACUTE = "\u0301";
+
+    /** U+00E9 LATIN SMALL LETTER E WITH ACUTE. */
+    private static final String E_ACUTE = "\u00e9";
+
+    public static void main(String[] args)
+    {
+        combiningMarkAfterASCII();
+        System.out.println("All checks passed.");
+    }
+
+    /**
+     * Globs are compiled with canonical equivalence, so an ASCII letter
+     * followed by a combining mark matches a precomposed character which
+     * does not contain the letter.  The letter must not be required text.
+     */
+    private static void combiningMarkAfterASCII()
+    {
+        String[][] cases =
+        {
+            { "e" + ACUTE, E_ACUTE },
+            { "cafe" + ACUTE, "caf" + E_ACUTE },
+            { "xe" + ACUTE + "*", "x" + E_ACUTE + "y" },
+            { "cafe\\" + ACUTE, "caf" + E_ACUTE },
+            { "cafe[" + ACUTE + "]", "caf" + E_ACUTE },
+            { "cafe" + ACUTE, "cafe" + ACUTE },
+            { "cafe", "caf" + E_ACUTE },
+        };
+
+        for (PatternType type :
+            new PatternType[] { PatternType.GLOB, PatternType.GLOB_CASELESS })
+        {
+            for (String[] c : cases)
+            {
+                checkAgrees(new Trigger("test", type, c[0]), c[1]);
+            }
+        }
+    }
+
+    private static void checkAgrees(Trigger trigger,
+                                    String line)
+    {
+        ObservableList<Trigger> triggers =
+            FXCollections.observableArrayList(trigger);
+        List<TriggerMatcher.Result> results =
+            new TriggerMatcher(triggers).match(line);
+
+        boolean expected = trigger.matches(line);
+        if (results.isEmpty() == expected)
+        {
+            throw new AssertionError(trigger.getPatternType() + " \""
+                + trigger.getPattern() + "\" on \"" + line + "\":  "
+                + "Trigger.matches gives " + expected
+                + ", but TriggerMatcher found "
+                + results.size() + " results");
+        }
+    }
+}